@@ -17,10 +17,8 @@
 package com.example.android.bluetoothadvertisements;
 
 import android.bluetooth.le.AdvertiseCallback;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.view.LayoutInflater;
@@ -29,6 +27,8 @@ import android.view.ViewGroup;
 import android.widget.Switch;
 import android.widget.Toast;
 
+import java.util.List;
+
 /**
  * Allows user to start & stop Bluetooth LE Advertising of their device.
  */
@@ -40,26 +40,29 @@ public class AdvertiserFragment extends Fragment implements View.OnClickListener
     private Switch mSwitch;
 
     /**
-     * Listens for notifications that the {@code AdvertiserService} has failed to start advertising.
-     * This Receiver deals with Fragment UI elements and only needs to be active when the Fragment
-     * is on-screen, so it's defined and registered in code instead of the Manifest.
+     * Listens for events that the {@code AdvertiserService} has failed to start advertising.
+     * This Subscriber deals with Fragment UI elements and only needs to be active when the
+     * Fragment is on-screen, so it's subscribed in onResume.
      */
-    private BroadcastReceiver advertisingFailureReceiver;
+    private GattEventBus.Subscriber<GattEventBus.AdvertisingFailedEvent> advertisingFailureSubscriber;
+
+    private GattEventBus.Subscription<GattEventBus.AdvertisingFailedEvent> advertisingFailureSubscription;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        advertisingFailureReceiver = new BroadcastReceiver() {
+        advertisingFailureSubscriber = new GattEventBus.Subscriber<GattEventBus.AdvertisingFailedEvent>() {
 
             /**
              * Receives Advertising error codes from {@code AdvertiserService} and displays error messages
              * to the user. Sets the advertising toggle to 'false.'
              */
             @Override
-            public void onReceive(Context context, Intent intent) {
+            public void onEvents(List<GattEventBus.AdvertisingFailedEvent> events) {
 
-                int errorCode = intent.getIntExtra(AdvertiserService.ADVERTISING_FAILED_EXTRA_CODE, -1);
+                // Only the latest failure is worth showing.
+                int errorCode = events.get(events.size() - 1).errorCode;
 
                 mSwitch.setChecked(false);
 
@@ -106,7 +109,7 @@ public class AdvertiserFragment extends Fragment implements View.OnClickListener
 
     /**
      * When app comes on screen, check if BLE Advertisements are running, set switch accordingly,
-     * and register the Receiver to be notified if Advertising fails.
+     * and subscribe to be notified if Advertising fails.
      */
     @Override
     public void onResume() {
@@ -118,19 +121,20 @@ public class AdvertiserFragment extends Fragment implements View.OnClickListener
             mSwitch.setChecked(false);
         }
 
-        IntentFilter failureFilter = new IntentFilter(AdvertiserService.ADVERTISING_FAILED);
-        getActivity().registerReceiver(advertisingFailureReceiver, failureFilter);
+        advertisingFailureSubscription = GattEventBus.getDefault().subscribe(
+                GattEventBus.AdvertisingFailedEvent.class, advertisingFailureSubscriber);
 
     }
 
     /**
-     * When app goes off screen, unregister the Advertising failure Receiver to stop memory leaks.
+     * When app goes off screen, unsubscribe from Advertising failures to stop memory leaks.
      * (and because the app doesn't care if Advertising fails while the UI isn't active)
      */
     @Override
     public void onPause() {
         super.onPause();
-        getActivity().unregisterReceiver(advertisingFailureReceiver);
+        GattEventBus.getDefault().unsubscribe(advertisingFailureSubscription);
+        advertisingFailureSubscription = null;
     }
 
     /**
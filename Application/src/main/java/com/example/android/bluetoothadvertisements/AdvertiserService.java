@@ -20,10 +20,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 import android.view.ViewDebug;
 import android.widget.Toast;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeUnit;
 
@@ -46,10 +49,6 @@ public class AdvertiserService extends Service {
      */
     public static boolean running = false;
 
-    public static final String ADVERTISING_FAILED ="advertising_failed";
-
-    public static final String ADVERTISING_FAILED_EXTRA_CODE = "failureCode";
-
     public static final int ADVERTISING_TIMED_OUT = 6;
 
     private BluetoothLeAdvertiser mBluetoothLeAdvertiser;
@@ -63,6 +62,47 @@ public class AdvertiserService extends Service {
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothGattServer server;
 
+    /**
+     * Runs {@link #serverCallback} off the binder threads.
+     */
+    private GattServerDispatcher mServerDispatcher;
+    private GattAttributeDatabase mAttributeDatabase;
+
+    private static final byte[] ALERT_LEVEL_VALUE = {0};
+
+    /**
+     * Notification and indication state of each client.
+     */
+    private final SubscriptionRegistry mSubscriptions = new SubscriptionRegistry();
+
+    /**
+     * MTU of each client, which sizes serial frames and read responses.
+     */
+    private final MtuTracker mMtus = new MtuTracker();
+
+    /**
+     * Receive buffer of the serial stream over the smallest frame.
+     */
+    private static final int SERIAL_RX_RING_SIZE =
+            GattSerialStream.DEFAULT_BUFFER_SIZE / GattSerialStream.DEFAULT_FRAME_SIZE + 1;
+
+    private BluetoothGattCharacteristic mSerialTx;
+
+    private BluetoothGattCharacteristic mSerialCredits;
+
+    /**
+     * Guards opening and closing the serial stream, which server callbacks for different
+     * devices may do at once. Readers of the two fields below don't need it.
+     */
+    private final Object mSerialLock = new Object();
+
+    /**
+     * Client the serial stream is open to. The stream serves one client at a time.
+     */
+    private volatile BluetoothDevice mSerialDevice;
+
+    private volatile GattSerialStream mSerialStream;
+
     /**
      * Length of time to allow advertising before automatically shutting off. (10 minutes)
      */
@@ -86,6 +126,13 @@ public class AdvertiserService extends Service {
          */
         running = false;
         stopAdvertising();
+        closeSerialStream(null);
+        mNotificationQueue.clear();
+        mSerialRxRing.stop();
+        if (mServerDispatcher != null) {
+            Log.d(TAG, "Server callbacks " + mServerDispatcher);
+            mServerDispatcher.shutdown();
+        }
         mHandler.removeCallbacks(timeoutRunnable);
         stopForeground(true);
         super.onDestroy();
@@ -107,7 +154,8 @@ public class AdvertiserService extends Service {
         if (mBluetoothLeAdvertiser == null) {
             BluetoothManager mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
             if (mBluetoothManager != null) {
-                server = mBluetoothManager.openGattServer(this, serverCallback);
+                mServerDispatcher = new GattServerDispatcher(serverCallback);
+                server = mBluetoothManager.openGattServer(this, mServerDispatcher);
                 initServer();
                 mBluetoothAdapter = mBluetoothManager.getAdapter();
                 if (mBluetoothAdapter != null) {
@@ -139,20 +187,37 @@ public class AdvertiserService extends Service {
         server.addService(service);
         */
 
-        BluetoothGattService service = new BluetoothGattService(Constants.SERVICEUUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        mAttributeDatabase = new GattAttributeDatabase(mMtus);
+        BluetoothGattService service = mAttributeDatabase.addService(Constants.SERVICEUUID);
 
-        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(Constants.ALERT_LEVEL_CHARACTERISTIC_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
-        characteristic.setValue(new byte[]{0});
+        BluetoothGattCharacteristic characteristic = mAttributeDatabase.addCharacteristic(service,
+                Constants.ALERT_LEVEL_CHARACTERISTIC_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ,
+                GattAttributeDatabase.staticValue(ALERT_LEVEL_VALUE), mMessageWriteHandler);
+        characteristic.setValue(ALERT_LEVEL_VALUE);
 
-        BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(Constants.UUID_CLIENT_CHARACTERISTIC_CONFIG,
-                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
-        descriptor.setValue(new byte[]{1});
+        mAttributeDatabase.addClientConfigDescriptor(characteristic, mSubscriptions);
 
-        characteristic.addDescriptor(descriptor);
-        service.addCharacteristic(characteristic);
+        BluetoothGattService serialService = mAttributeDatabase.addService(Constants.SERIAL_SERVICE_UUID);
+
+        mAttributeDatabase.addCharacteristic(serialService, Constants.SERIAL_RX_UUID,
+                BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE, null, mSerialRxRing.asWriteHandler());
+        mSerialRxRing.start();
+
+        mSerialTx = mAttributeDatabase.addCharacteristic(serialService, Constants.SERIAL_TX_UUID,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, BluetoothGattCharacteristic.PERMISSION_READ,
+                null, null);
+        mAttributeDatabase.addClientConfigDescriptor(mSerialTx, mSubscriptions);
 
-        boolean serviceadded = server.addService(service);
+        mSerialCredits = mAttributeDatabase.addCharacteristic(serialService, Constants.SERIAL_CREDITS_UUID,
+                BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE | BluetoothGattCharacteristic.PROPERTY_WRITE
+                        | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_WRITE, null, mSerialCreditsWriteHandler);
+        mAttributeDatabase.addClientConfigDescriptor(mSerialCredits, mSubscriptions);
+        mSubscriptions.setListener(mSubscriptionListener);
+
+        boolean serviceadded = mAttributeDatabase.open(server);
 
         sendNotification("WAS SERVICE ACTUALLY ADDED: " + serviceadded);
 
@@ -168,7 +233,7 @@ public class AdvertiserService extends Service {
             @Override
             public void run() {
                 Log.d(TAG, "AdvertiserService has reached timeout of "+TIMEOUT+" milliseconds, stopping advertising.");
-                sendFailureIntent(ADVERTISING_TIMED_OUT);
+                sendFailure(ADVERTISING_TIMED_OUT);
                 stopSelf();
             }
         };
@@ -292,8 +357,8 @@ public class AdvertiserService extends Service {
     }
 
     /**
-     * Custom callback after Advertising succeeds or fails to start. Broadcasts the error code
-     * in an Intent to be picked up by AdvertiserFragment and stops this Service.
+     * Custom callback after Advertising succeeds or fails to start. Publishes the error code
+     * to be picked up by AdvertiserFragment and stops this Service.
      */
     private class SampleAdvertiseCallback extends AdvertiseCallback {
 
@@ -302,7 +367,7 @@ public class AdvertiserService extends Service {
             super.onStartFailure(errorCode);
 
             Log.d(TAG, "Advertising failed reason:" + errorCode);
-            sendFailureIntent(errorCode);
+            sendFailure(errorCode);
             stopSelf();
 
         }
@@ -315,14 +380,174 @@ public class AdvertiserService extends Service {
     }
 
     /**
-     * Builds and sends a broadcast intent indicating Advertising has failed. Includes the error
-     * code as an extra. This is intended to be picked up by the {@code AdvertiserFragment}.
+     * Publishes an event indicating Advertising has failed, with the error code. This is
+     * intended to be picked up by the {@code AdvertiserFragment}.
+     */
+    private void sendFailure(int errorCode){
+        if (!GattEventBus.getDefault().publish(
+                new GattEventBus.AdvertisingFailedEvent(errorCode))) {
+            Log.w(TAG, "Advertising failure " + errorCode + " dropped, subscriber not keeping up");
+        }
+    }
+
+    /**
+     * Shows text written by a client.
+     */
+    private final GattAttributeDatabase.WriteHandler mMessageWriteHandler =
+            new GattAttributeDatabase.WriteHandler() {
+        @Override
+        public int onWrite(BluetoothDevice device, byte[] value) {
+            sendNotification(new String(value));
+            return android.bluetooth.BluetoothGatt.GATT_SUCCESS;
+        }
+    };
+
+    /**
+     * Frames written by the serial client, passed to the stream on their own thread so a client
+     * writing at full rate never holds up the binder thread. Holds more frames than the client
+     * can ever be granted credits for.
+     */
+    private final WriteRing mSerialRxRing = new WriteRing("SerialRx", SERIAL_RX_RING_SIZE,
+            new WriteRing.Consumer() {
+        @Override
+        public void onWrite(BluetoothDevice device, byte[] value) {
+            GattSerialStream stream = mSerialStream;
+            if (stream != null && device.equals(mSerialDevice)) {
+                stream.onFrameReceived(value);
+            }
+        }
+    });
+
+    /**
+     * TX credits granted by the serial client.
+     */
+    private final GattAttributeDatabase.WriteHandler mSerialCreditsWriteHandler =
+            new GattAttributeDatabase.WriteHandler() {
+        @Override
+        public int onWrite(BluetoothDevice device, byte[] value) {
+            GattSerialStream stream = mSerialStream;
+            if (stream == null || !device.equals(mSerialDevice)) {
+                return android.bluetooth.BluetoothGatt.GATT_WRITE_NOT_PERMITTED;
+            }
+            stream.onCreditsReceived(value);
+            return android.bluetooth.BluetoothGatt.GATT_SUCCESS;
+        }
+    };
+
+    /**
+     * The serial client can be granted credits once it listens for them.
+     */
+    private final SubscriptionRegistry.Listener mSubscriptionListener =
+            new SubscriptionRegistry.Listener() {
+        @Override
+        public void onSubscriptionChanged(BluetoothDevice device,
+                                          BluetoothGattCharacteristic characteristic, int config) {
+            GattSerialStream stream = mSerialStream;
+            if (characteristic == mSerialCredits && config != 0
+                    && stream != null && device.equals(mSerialDevice)) {
+                stream.start();
+            }
+        }
+    };
+
+    private final GattSerialStream.Link mSerialLink = new GattSerialStream.Link() {
+        @Override
+        public boolean sendData(byte[] frame) {
+            return notifySerialClient(mSerialTx, frame);
+        }
+
+        @Override
+        public boolean sendCredits(byte[] grant) {
+            return notifySerialClient(mSerialCredits, grant);
+        }
+    };
+
+    private boolean notifySerialClient(BluetoothGattCharacteristic characteristic, byte[] value) {
+        BluetoothDevice device = mSerialDevice;
+        return device != null && mNotificationQueue.send(device, characteristic, value, false);
+    }
+
+    private final NotificationQueue mNotificationQueue = new NotificationQueue(
+            new NotificationQueue.Sender() {
+                @Override
+                public boolean send(BluetoothDevice device,
+                                    BluetoothGattCharacteristic characteristic, byte[] value,
+                                    boolean confirm) {
+                    characteristic.setValue(value);
+                    return server.notifyCharacteristicChanged(device, characteristic, confirm);
+                }
+            },
+            new NotificationQueue.Listener() {
+                @Override
+                public void onSent(BluetoothDevice device,
+                                   BluetoothGattCharacteristic characteristic, int status) {
+                    if (status == NotificationQueue.STATUS_DROPPED) {
+                        // A lost frame breaks the stream; the client reconnects for a new one.
+                        Log.w(TAG, "Serial frame to " + device.getAddress() + " dropped");
+                        closeSerialStream(device);
+                        return;
+                    }
+                    GattSerialStream stream = mSerialStream;
+                    if (stream != null && device.equals(mSerialDevice)) {
+                        stream.onSendComplete();
+                    }
+                }
+            }, new Handler(Looper.getMainLooper()));
+
+    /**
+     * Open the serial stream to {@code device} unless it is already open to a client, and show
+     * the text it sends.
+     */
+    private void openSerialStream(BluetoothDevice device) {
+        final GattSerialStream stream;
+        synchronized (mSerialLock) {
+            if (mSerialDevice != null) {
+                return;
+            }
+            stream = new GattSerialStream(mSerialLink);
+            stream.setFrameSize(mMtus.getPayloadSize(device));
+            mSerialStream = stream;
+            mSerialDevice = device;
+        }
+
+        new Thread("SerialReader") {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[1024];
+                InputStream in = stream.getInputStream();
+                try {
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        sendNotification(new String(buffer, 0, count));
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Serial stream failed", e);
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Close the serial stream if it is open to {@code device}, or to any client if
+     * {@code device} is null.
      */
-    private void sendFailureIntent(int errorCode){
-        Intent failureIntent = new Intent();
-        failureIntent.setAction(ADVERTISING_FAILED);
-        failureIntent.putExtra(ADVERTISING_FAILED_EXTRA_CODE, errorCode);
-        sendBroadcast(failureIntent);
+    private void closeSerialStream(BluetoothDevice device) {
+        synchronized (mSerialLock) {
+            if (device != null && !device.equals(mSerialDevice)) {
+                return;
+            }
+            GattSerialStream stream = mSerialStream;
+            if (stream != null) {
+                stream.close();
+                Log.d(TAG, "Serial stream closed, received: " + stream.getBytesReceived()
+                        + " sent: " + stream.getBytesSent()
+                        + " dropped: " + stream.getOverflowBytes());
+                Log.d(TAG, "Notifications " + mNotificationQueue);
+                Log.d(TAG, String.valueOf(mSerialRxRing));
+            }
+            mSerialStream = null;
+            mSerialDevice = null;
+        }
     }
 
     private BluetoothGattServerCallback serverCallback = new BluetoothGattServerCallback() {
@@ -331,6 +556,7 @@ public class AdvertiserService extends Service {
             super.onConnectionStateChange(device, status, newState);
             if(newState == BluetoothProfile.STATE_CONNECTED) {
                 sendNotification("Client connected");
+                openSerialStream(device);
 
                 // debug
                 //for (BluetoothGattService srv: server.getServices()) {
@@ -343,6 +569,11 @@ public class AdvertiserService extends Service {
                 //sendNotification("The bonding started");
             }else if(newState == BluetoothProfile.STATE_DISCONNECTED){
                 sendNotification("client disconnected");
+                mAttributeDatabase.onDeviceDisconnected(device);
+                mNotificationQueue.onDeviceDisconnected(device);
+                mSubscriptions.onDeviceDisconnected(device);
+                mMtus.onDeviceDisconnected(device);
+                closeSerialStream(device);
                 // Restart Advertisements
                 startAdvertising();
             }
@@ -363,6 +594,7 @@ public class AdvertiserService extends Service {
             super.onServiceAdded(status, service);
             sendNotification("WAS THE ONSERVICEADDED Function Called? " + status);
             sendNotification( service.getIncludedServices().toArray().toString());
+            mAttributeDatabase.onServiceAdded(status, service);
 
             //mBluetoothGatt = mBluetoothDevice.connectGatt(getApplicationContext(), false, mGattCallback);
         }
@@ -370,44 +602,51 @@ public class AdvertiserService extends Service {
         @Override
         public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
+            mAttributeDatabase.onCharacteristicReadRequest(device, requestId, offset, characteristic);
         }
 
         @Override
         public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
             super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
-            byte[] bytes = value;
-            String message = new String(bytes);
-            sendNotification(message);
-            server.sendResponse(device, requestId, 0, offset, value);
+            mAttributeDatabase.onCharacteristicWriteRequest(device, requestId, characteristic,
+                    preparedWrite, responseNeeded, offset, value);
         }
 
         @Override
         public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
             super.onDescriptorReadRequest(device, requestId, offset, descriptor);
+            mAttributeDatabase.onDescriptorReadRequest(device, requestId, offset, descriptor);
         }
 
         @Override
         public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
             sendNotification("Descriptor write: " + descriptor.toString());
-            if(responseNeeded){
-                server.sendResponse(device, requestId, android.bluetooth.BluetoothGatt.GATT_SUCCESS, 0, value);
-            }
+            mAttributeDatabase.onDescriptorWriteRequest(device, requestId, descriptor,
+                    preparedWrite, responseNeeded, offset, value);
             super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value);
         }
 
         @Override
         public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
             super.onExecuteWrite(device, requestId, execute);
+            mAttributeDatabase.onExecuteWrite(device, requestId, execute);
         }
 
         @Override
         public void onNotificationSent(BluetoothDevice device, int status) {
             super.onNotificationSent(device, status);
+            mNotificationQueue.onNotificationSent(device, status);
         }
 
         @Override
         public void onMtuChanged(BluetoothDevice device, int mtu) {
             super.onMtuChanged(device, mtu);
+            sendNotification("MTU of " + device.getAddress() + " is now " + mtu);
+            mMtus.onMtuChanged(device, mtu);
+            GattSerialStream stream = mSerialStream;
+            if (stream != null && device.equals(mSerialDevice)) {
+                stream.setFrameSize(mMtus.getPayloadSize(device));
+            }
         }
     };
 
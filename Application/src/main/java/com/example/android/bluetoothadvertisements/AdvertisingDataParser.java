@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Walks the AD structures of a raw advertising payload (as returned by
+ * {@code ScanRecord.getBytes()}) in place.
+ *
+ * The parser is a flyweight cursor: {@link #reset(byte[])} points it at a payload and each call
+ * to {@link #next()} moves it to the following structure, whose fields are then read straight out
+ * of the backing array. Nothing is allocated per packet, so a single instance can be reused for
+ * every result on the thread that owns it.
+ *
+ * Payload layout is defined in the Bluetooth Core Specification, Vol 3, Part C, Section 11 and
+ * the Core Specification Supplement, Part A.
+ */
+public final class AdvertisingDataParser {
+
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16_COMPLETE = 0x03;
+    public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    public static final int TYPE_UUID32_COMPLETE = 0x05;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128_COMPLETE = 0x07;
+    public static final int TYPE_LOCAL_NAME_SHORT = 0x08;
+    public static final int TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_SERVICE_DATA_UUID16 = 0x16;
+    public static final int TYPE_SERVICE_DATA_UUID32 = 0x20;
+    public static final int TYPE_SERVICE_DATA_UUID128 = 0x21;
+    public static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    /**
+     * Returned by {@link #findTxPowerLevel()} when the payload carries no TX power level, same
+     * value {@code ScanRecord.getTxPowerLevel()} uses.
+     */
+    public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+    /**
+     * Least significant bits shared by every UUID derived from the Bluetooth Base UUID
+     * (0000xxxx-0000-1000-8000-00805F9B34FB).
+     */
+    public static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private byte[] mData;
+
+    private int mEnd;
+
+    /**
+     * Offset of the length byte of the next structure.
+     */
+    private int mNext;
+
+    private int mType;
+
+    private int mDataOffset;
+
+    private int mDataLength;
+
+    /**
+     * Point the cursor at a whole payload. Call {@link #next()} to move to its first structure.
+     */
+    public AdvertisingDataParser reset(byte[] data) {
+        return reset(data, 0, data != null ? data.length : 0);
+    }
+
+    /**
+     * Point the cursor at {@code length} bytes of {@code data} starting at {@code offset}.
+     */
+    public AdvertisingDataParser reset(byte[] data, int offset, int length) {
+        mData = data;
+        mNext = offset;
+        mEnd = offset + length;
+        mType = -1;
+        mDataOffset = 0;
+        mDataLength = 0;
+        return this;
+    }
+
+    /**
+     * Move to the next AD structure.
+     *
+     * @return false at the end of the payload, at a zero-length structure (the start of the
+     * zero padding controllers append) or at a structure that runs past the end of the payload.
+     */
+    public boolean next() {
+        if (mData == null || mNext >= mEnd) {
+            return false;
+        }
+        int length = mData[mNext] & 0xFF;
+        if (length == 0 || mNext + 1 + length > mEnd) {
+            mNext = mEnd;
+            return false;
+        }
+        mType = mData[mNext + 1] & 0xFF;
+        mDataOffset = mNext + 2;
+        mDataLength = length - 1;
+        mNext += 1 + length;
+        return true;
+    }
+
+    /**
+     * Move to the next structure of the given type.
+     *
+     * @return false if there are no more structures of that type.
+     */
+    public boolean next(int type) {
+        while (next()) {
+            if (mType == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * AD type of the current structure.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * The array backing the payload; the current structure's data starts at
+     * {@link #getDataOffset()}.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getDataOffset() {
+        return mDataOffset;
+    }
+
+    public int getDataLength() {
+        return mDataLength;
+    }
+
+    /**
+     * Value of a {@link #TYPE_FLAGS} structure.
+     */
+    public int getFlags() {
+        return mDataLength > 0 ? mData[mDataOffset] & 0xFF : 0;
+    }
+
+    /**
+     * Value of a {@link #TYPE_TX_POWER_LEVEL} structure, in dBm.
+     */
+    public int getTxPowerLevel() {
+        return mDataLength > 0 ? mData[mDataOffset] : TX_POWER_UNKNOWN;
+    }
+
+    /**
+     * Number of UUIDs in a 16, 32 or 128-bit service UUID list structure.
+     */
+    public int getUuidCount() {
+        int width = uuidWidth(mType);
+        return width > 0 ? mDataLength / width : 0;
+    }
+
+    /**
+     * The {@code index}th UUID of a 16-bit service UUID list structure.
+     */
+    public int getUuid16(int index) {
+        return readUInt16(mDataOffset + index * 2);
+    }
+
+    /**
+     * The {@code index}th UUID of a 32-bit service UUID list structure.
+     */
+    public long getUuid32(int index) {
+        return readUInt32(mDataOffset + index * 4);
+    }
+
+    /**
+     * Most significant bits of the {@code index}th UUID of a 128-bit service UUID list structure.
+     */
+    public long getUuid128MostSignificantBits(int index) {
+        return readUInt64(mDataOffset + index * 16 + 8);
+    }
+
+    /**
+     * Least significant bits of the {@code index}th UUID of a 128-bit service UUID list structure.
+     */
+    public long getUuid128LeastSignificantBits(int index) {
+        return readUInt64(mDataOffset + index * 16);
+    }
+
+    /**
+     * Whether the current UUID list structure contains the given UUID. 16 and 32-bit entries are
+     * expanded against the Bluetooth Base UUID before comparing.
+     */
+    public boolean containsUuid(long mostSignificantBits, long leastSignificantBits) {
+        int count = getUuidCount();
+        for (int i = 0; i < count; i++) {
+            long msb;
+            long lsb;
+            switch (mType) {
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16_COMPLETE:
+                    msb = toMostSignificantBits(getUuid16(i));
+                    lsb = BASE_UUID_LSB;
+                    break;
+                case TYPE_UUID32_INCOMPLETE:
+                case TYPE_UUID32_COMPLETE:
+                    msb = toMostSignificantBits(getUuid32(i));
+                    lsb = BASE_UUID_LSB;
+                    break;
+                default:
+                    msb = getUuid128MostSignificantBits(i);
+                    lsb = getUuid128LeastSignificantBits(i);
+            }
+            if (msb == mostSignificantBits && lsb == leastSignificantBits) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 16 or 32-bit UUID of a 16 or 32-bit service data structure.
+     *
+     * @return -1 if the structure is too short to hold its UUID.
+     */
+    public long getServiceDataShortUuid() {
+        if (!hasServiceDataUuid() || mType == TYPE_SERVICE_DATA_UUID128) {
+            return -1;
+        }
+        return mType == TYPE_SERVICE_DATA_UUID16
+                ? readUInt16(mDataOffset)
+                : readUInt32(mDataOffset);
+    }
+
+    /**
+     * Most significant bits of the UUID of any service data structure.
+     *
+     * @return 0, as for the nil UUID, if the structure is too short to hold its UUID.
+     */
+    public long getServiceDataUuidMostSignificantBits() {
+        if (!hasServiceDataUuid()) {
+            return 0;
+        }
+        return mType == TYPE_SERVICE_DATA_UUID128
+                ? readUInt64(mDataOffset + 8)
+                : toMostSignificantBits(getServiceDataShortUuid());
+    }
+
+    /**
+     * Least significant bits of the UUID of any service data structure.
+     *
+     * @return 0, as for the nil UUID, if the structure is too short to hold its UUID.
+     */
+    public long getServiceDataUuidLeastSignificantBits() {
+        if (!hasServiceDataUuid()) {
+            return 0;
+        }
+        return mType == TYPE_SERVICE_DATA_UUID128 ? readUInt64(mDataOffset) : BASE_UUID_LSB;
+    }
+
+    /**
+     * Whether the current structure is a service data structure long enough to hold its UUID.
+     * Truncated ones are valid over the air, so every UUID read checks this first.
+     */
+    public boolean hasServiceDataUuid() {
+        int width = serviceDataUuidWidth(mType);
+        return width > 0 && mDataLength >= width;
+    }
+
+    /**
+     * Offset in {@link #getData()} of the payload of a service data structure, past its UUID.
+     */
+    public int getServiceDataOffset() {
+        return mDataOffset + serviceDataUuidWidth(mType);
+    }
+
+    public int getServiceDataLength() {
+        return Math.max(0, mDataLength - serviceDataUuidWidth(mType));
+    }
+
+    /**
+     * Company identifier of a manufacturer specific data structure.
+     */
+    public int getManufacturerId() {
+        return mDataLength >= 2 ? readUInt16(mDataOffset) : -1;
+    }
+
+    /**
+     * Offset in {@link #getData()} of the payload of a manufacturer specific data structure, past
+     * its company identifier.
+     */
+    public int getManufacturerDataOffset() {
+        return mDataOffset + 2;
+    }
+
+    public int getManufacturerDataLength() {
+        return Math.max(0, mDataLength - 2);
+    }
+
+    /**
+     * Whether the current structure is a short or complete local name.
+     */
+    public boolean isLocalName() {
+        return mType == TYPE_LOCAL_NAME_SHORT || mType == TYPE_LOCAL_NAME_COMPLETE;
+    }
+
+    /**
+     * Append the local name in the current structure to {@code out}. Names are UTF-8; plain ASCII
+     * names, the common case, are copied without any intermediate allocation.
+     */
+    public void appendLocalName(StringBuilder out) {
+        int end = mDataOffset + mDataLength;
+        for (int i = mDataOffset; i < end; i++) {
+            int b = mData[i];
+            if (b < 0) {
+                out.append(new String(mData, i, end - i, StandardCharsets.UTF_8));
+                return;
+            }
+            out.append((char) b);
+        }
+    }
+
+    /**
+     * Scan the rest of the payload for a TX power level.
+     *
+     * @return the TX power level in dBm, or {@link #TX_POWER_UNKNOWN}.
+     */
+    public int findTxPowerLevel() {
+        return next(TYPE_TX_POWER_LEVEL) ? getTxPowerLevel() : TX_POWER_UNKNOWN;
+    }
+
+    /**
+     * Scan the rest of the payload for a local name, preferring the complete name over the
+     * shortened one, and append it to {@code out}.
+     *
+     * @return false if the payload carries no local name.
+     */
+    public boolean findLocalName(StringBuilder out) {
+        int shortOffset = -1;
+        int shortLength = 0;
+        while (next()) {
+            if (mType == TYPE_LOCAL_NAME_COMPLETE) {
+                appendLocalName(out);
+                return true;
+            } else if (mType == TYPE_LOCAL_NAME_SHORT && shortOffset < 0) {
+                shortOffset = mDataOffset;
+                shortLength = mDataLength;
+            }
+        }
+        if (shortOffset < 0) {
+            return false;
+        }
+        mType = TYPE_LOCAL_NAME_SHORT;
+        mDataOffset = shortOffset;
+        mDataLength = shortLength;
+        appendLocalName(out);
+        return true;
+    }
+
+    /**
+     * Expand a 16 or 32-bit UUID into the most significant bits of a Bluetooth Base UUID.
+     */
+    public static long toMostSignificantBits(long shortUuid) {
+        return (shortUuid << 32) | 0x1000L;
+    }
+
+    private static int uuidWidth(int type) {
+        switch (type) {
+            case TYPE_UUID16_INCOMPLETE:
+            case TYPE_UUID16_COMPLETE:
+                return 2;
+            case TYPE_UUID32_INCOMPLETE:
+            case TYPE_UUID32_COMPLETE:
+                return 4;
+            case TYPE_UUID128_INCOMPLETE:
+            case TYPE_UUID128_COMPLETE:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    private static int serviceDataUuidWidth(int type) {
+        switch (type) {
+            case TYPE_SERVICE_DATA_UUID16:
+                return 2;
+            case TYPE_SERVICE_DATA_UUID32:
+                return 4;
+            case TYPE_SERVICE_DATA_UUID128:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    // Multi-byte AD fields are little endian.
+
+    private int readUInt16(int offset) {
+        return (mData[offset] & 0xFF) | (mData[offset + 1] & 0xFF) << 8;
+    }
+
+    private long readUInt32(int offset) {
+        return (readUInt16(offset) | (long) readUInt16(offset + 2) << 16) & 0xFFFFFFFFL;
+    }
+
+    private long readUInt64(int offset) {
+        return readUInt32(offset) | readUInt32(offset + 4) << 32;
+    }
+}
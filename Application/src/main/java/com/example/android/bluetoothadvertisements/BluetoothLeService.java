@@ -4,7 +4,6 @@ import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
@@ -15,9 +14,14 @@ import android.bluetooth.BluetoothGattServerCallback;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
+
+import java.io.File;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -28,20 +32,45 @@ public class BluetoothLeService extends Service {
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
+    /**
+     * The device last asked to connect, which the methods without an address act on.
+     */
+    private volatile String mBluetoothDeviceAddress;
     private BluetoothGattCharacteristic mSupportedNewAlertCategory;
     private BluetoothGattCharacteristic mNewAlert;
     private BluetoothGattCharacteristic mSupportedUnreadCategory;
     private BluetoothGattCharacteristic mUnreadAlertStatus;
     private BluetoothGattCharacteristic mAlertNotificationControlPoint;
-    private BluetoothDevice mBluetoothDevice;
     private BluetoothGattServer mGattServer;
-    private BluetoothGattService mAlertNotificationService;
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    private GattAttributeDatabase mAttributeDatabase;
+    private SubscriptionRegistry mSubscriptions;
+
+    private GattBroadcaster mBroadcaster;
+
+    /**
+     * MTU of each client, which sizes notifications and read responses.
+     */
+    private final MtuTracker mMtus = new MtuTracker();
+
+    /**
+     * Client connections to the devices this service collects from.
+     */
+    private GattConnectionManager mConnections;
+
+    /**
+     * Alert category bit mask supported by this server: simple alert, email, news, call and
+     * missed call.
+     */
+    private static final byte[] SUPPORTED_CATEGORIES = {0x1f};
+
+    /**
+     * New Alert value: category 3 (call), 4 new alerts, and the caller's name.
+     */
+    private static final byte[] NEW_ALERT_VALUE =
+            {0x03, 0x04, 0x52, 0x69, 0x63, 0x68, 0x61, 0x72, 0x64};
+
+    private static final byte[] CONTROL_POINT_VALUE = {5};
+
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.android.bluetoothadvertisements.ACTION_GATT_CONNECTED";
@@ -53,64 +82,90 @@ public class BluetoothLeService extends Service {
             "com.example.android.bluetoothadvertisements.ACTION_DATA_AVAILABLE";
     public final static String EXTRA_DATA =
             "com.example.android.bluetoothadvertisements.EXTRA_DATA";
+    /**
+     * The characteristic's value as a byte array, for receivers that parse it themselves.
+     */
+    public final static String EXTRA_RAW_DATA =
+            "com.example.android.bluetoothadvertisements.EXTRA_RAW_DATA";
+
+    /**
+     * Formats values for {@link #EXTRA_DATA}; guarded by itself.
+     */
+    private final HexEncoder mHexEncoder = new HexEncoder();
+
+    private volatile boolean mFormatData = true;
+
+    /**
+     * Whether data events are also sent as system-wide broadcasts, for consumers outside this
+     * process. In-process consumers subscribe to {@link GattEventBus.DataEvent}s instead.
+     */
+    private volatile boolean mExternalBroadcasts;
+
+    private final GattEventBus mEventBus = GattEventBus.getDefault();
 
 
     // Implements callback methods for GATT events that the app cares about.  For example,
-// connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+// connection change and values received.
+    private final GattConnectionManager.Listener mConnectionListener =
+            new GattConnectionManager.Listener() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            Log.d("foo", "onConnectionStateChange");
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.d("foo", "status connected");
-                gatt.discoverServices();
+        public void onStateChanged(GattConnectionManager.Session session,
+                                   GattConnectionManager.State state) {
+            Log.d(TAG, "Session " + session);
+            int newState;
+            if (state == GattConnectionManager.State.DISCOVERING) {
+                newState = BluetoothProfile.STATE_CONNECTED;
+            } else if (state == GattConnectionManager.State.WAITING
+                    || state == GattConnectionManager.State.CLOSED) {
+                newState = BluetoothProfile.STATE_DISCONNECTED;
+            } else {
+                return;
             }
-            if (false) {
-                String intentAction;
-                if (newState == BluetoothProfile.STATE_CONNECTED) {
-                    intentAction = ACTION_GATT_CONNECTED;
-                    mConnectionState = STATE_CONNECTED;
-                    broadcastUpdate(intentAction);
-                    Log.i(TAG, "Connected to GATT server.");
-                    // Attempts to discover services after successful connection.
-                    Log.i(TAG, "Attempting to start service discovery:" +
-                            mBluetoothGatt.discoverServices());
-
-                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                    intentAction = ACTION_GATT_DISCONNECTED;
-                    mConnectionState = STATE_DISCONNECTED;
-                    Log.i(TAG, "Disconnected from GATT server.");
-                    broadcastUpdate(intentAction);
-                }
+            if (!mEventBus.publish(new GattEventBus.ConnectionEvent(session.getAddress(),
+                    newState))) {
+                Log.w(TAG, "Connection subscriber not keeping up, state " + newState + " of "
+                        + session.getAddress() + " dropped");
             }
-        }
-
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            Log.d("foo", "onServicesDiscovered");
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
+            if (mExternalBroadcasts) {
+                broadcastUpdate(newState == BluetoothProfile.STATE_CONNECTED
+                        ? ACTION_GATT_CONNECTED : ACTION_GATT_DISCONNECTED);
             }
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
+        public void onCharacteristicRead(GattConnectionManager.Session session,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
             Log.d(TAG, "setCharacterostisRead (GATT)");
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                publishData(session.getAddress(), characteristic);
             }
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
+        public void onCharacteristicChanged(GattConnectionManager.Session session,
                                             BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            publishData(session.getAddress(), characteristic);
         }
     };
 
+    /**
+     * Hand a received value to in-process subscribers, and to external ones if enabled. The
+     * stack sets a new array on the characteristic for every value, so the array is passed on
+     * without copying.
+     */
+    private void publishData(String address, BluetoothGattCharacteristic characteristic) {
+        if (mEventBus.hasSubscribers(GattEventBus.DataEvent.class)) {
+            if (!mEventBus.publish(new GattEventBus.DataEvent(address,
+                    characteristic.getUuid(), characteristic.getValue()))) {
+                Log.w(TAG, "Data subscriber falling behind, oldest values dropped");
+            }
+        }
+        if (mExternalBroadcasts) {
+            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        }
+    }
+
     private void broadcastUpdate(final String action) {
         final Intent intent = new Intent(action);
         sendBroadcast(intent);
@@ -127,14 +182,34 @@ public class BluetoothLeService extends Service {
         // For all other profiles, writes the data formatted in HEX.
         final byte[] data = characteristic.getValue();
         if (data != null && data.length > 0) {
-            final StringBuilder stringBuilder = new StringBuilder(data.length);
-            for (byte byteChar : data)
-                stringBuilder.append(String.format("%02X ", byteChar));
-            intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+            intent.putExtra(EXTRA_RAW_DATA, data);
+            if (mFormatData) {
+                synchronized (mHexEncoder) {
+                    intent.putExtra(EXTRA_DATA, mHexEncoder.encode(data));
+                }
+            }
         }
         sendBroadcast(intent);
     }
 
+    /**
+     * Whether data broadcasts carry the value formatted as text in {@link #EXTRA_DATA}, besides
+     * the raw bytes in {@link #EXTRA_RAW_DATA}. Receivers that only use the bytes can turn the
+     * formatting off.
+     */
+    public void setFormatData(boolean formatData) {
+        mFormatData = formatData;
+    }
+
+    /**
+     * Whether every value received is also sent as an {@link #ACTION_DATA_AVAILABLE} system
+     * broadcast. Off by default: each broadcast is a round trip through the system server, and
+     * consumers in this process get the values from the {@link GattEventBus}.
+     */
+    public void setExternalBroadcasts(boolean externalBroadcasts) {
+        mExternalBroadcasts = externalBroadcasts;
+    }
+
     public class LocalBinder extends Binder {
         BluetoothLeService getService() {
             return BluetoothLeService.this;
@@ -179,24 +254,35 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        if (mConnections == null) {
+            mConnections = new GattConnectionManager(getApplicationContext(), mBluetoothAdapter,
+                    new Handler(Looper.getMainLooper()),
+                    new GattDiscoveryCache(new File(getCacheDir(), "gatt")), mConnectionListener);
+        }
+
         return true;
     }
 
     public BluetoothGattServerCallback serverCallback = new BluetoothGattServerCallback() {
         @Override
         public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
-            byte value[] = {0x03, 0x04, 0x52, 0x69, 0x63, 0x68, 0x61, 0x72, 0x64};
             super.onConnectionStateChange(device, status, newState);
 
             Log.d(TAG, "onConnectionStateChage device " + device.getAddress());
-            mNewAlert.setValue(value);
-            mGattServer.notifyCharacteristicChanged(mBluetoothDevice, mNewAlert, true);
+            if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mAttributeDatabase.onDeviceDisconnected(device);
+                mNotificationQueue.onDeviceDisconnected(device);
+                mSubscriptions.onDeviceDisconnected(device);
+                mMtus.onDeviceDisconnected(device);
+            }
         }
 
         @Override
         public void onServiceAdded(int status, BluetoothGattService service) {
             super.onServiceAdded(status, service);
-            mBluetoothGatt = mBluetoothDevice.connectGatt(getApplicationContext(), false, mGattCallback);
+            mAttributeDatabase.onServiceAdded(status, service);
+            // Devices connect once the services they may read are in place.
+            mConnections.start();
 
             Log.d(TAG, "onServiceAdded");
         }
@@ -205,63 +291,163 @@ public class BluetoothLeService extends Service {
         public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
             Log.d(TAG, "onCharacteristicReadRequest UUID: " + characteristic.getUuid().toString() + " from device: " + device.getAddress());
-
-            if (characteristic.getUuid().equals(Constants.UUID_SUPPORTED_NEW_ALERT_CATEGORY)) {
-                byte value[] = {0x1f};
-                mSupportedNewAlertCategory.setValue(value);
-                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value);
-            } else if (characteristic.getUuid().equals(Constants.UUID_SUPPORTED_UNREAD_ALERT_CATEGORY)) {
-                byte value[] = {0x1f};
-                mSupportedUnreadCategory.setValue(value);
-                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value);
-            } else {
-                byte value[] = {0x03, 0x04, 0x52, 0x69, 0x63, 0x68, 0x61, 0x72, 0x64};
-                mNewAlert.setValue(value);
-                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value);
-            }
-
+            mAttributeDatabase.onCharacteristicReadRequest(device, requestId, offset, characteristic);
         }
 
         @Override
         public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
             super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
             Log.d(TAG, "onCharacteristicwriterequest UUID: " + characteristic.getUuid().toString());
-            mGattServer.notifyCharacteristicChanged(mBluetoothDevice, characteristic, true);
+            mAttributeDatabase.onCharacteristicWriteRequest(device, requestId, characteristic,
+                    preparedWrite, responseNeeded, offset, value);
         }
 
         @Override
         public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
             super.onDescriptorReadRequest(device, requestId, offset, descriptor);
             Log.d(TAG, "ondescriptorReadrequest UUID: " + descriptor.getUuid().toString());
-
-
+            mAttributeDatabase.onDescriptorReadRequest(device, requestId, offset, descriptor);
         }
 
         @Override
         public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
             super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value);
             Log.d(TAG, "ondescriptorwriterequest UUID: " + descriptor.getUuid().toString() + "Value: " + value[0]);
-            if (value[0] == 1) {
-                Log.d(TAG, "sending nofication!");
-                mGattServer.notifyCharacteristicChanged(mBluetoothDevice, mNewAlert, true);
-            }
+            mAttributeDatabase.onDescriptorWriteRequest(device, requestId, descriptor,
+                    preparedWrite, responseNeeded, offset, value);
+        }
+
+        @Override
+        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+            super.onExecuteWrite(device, requestId, execute);
+            mAttributeDatabase.onExecuteWrite(device, requestId, execute);
         }
 
         @Override
         public void onNotificationSent(BluetoothDevice device, int status) {
             super.onNotificationSent(device, status);
             Log.d(TAG, "onNotificationSent");
+            mNotificationQueue.onNotificationSent(device, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            super.onMtuChanged(device, mtu);
+            Log.d(TAG, "onMtuChanged " + mtu + " device " + device.getAddress());
+            mMtus.onMtuChanged(device, mtu);
         }
     };
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Paces notifications to each connected device by its onNotificationSent.
+     */
+    private final NotificationQueue mNotificationQueue = new NotificationQueue(
+            new NotificationQueue.Sender() {
+                @Override
+                public boolean send(BluetoothDevice device,
+                                    BluetoothGattCharacteristic characteristic, byte[] value,
+                                    boolean confirm) {
+                    characteristic.setValue(value);
+                    return mGattServer.notifyCharacteristicChanged(device, characteristic, confirm);
+                }
+            }, null, new Handler(Looper.getMainLooper()));
+
+    /**
+     * Logs the devices an update didn't reach.
+     */
+    private final GattBroadcaster.Callback mBroadcastCallback = new GattBroadcaster.Callback() {
+        @Override
+        public void onDelivered(GattBroadcaster.Broadcast broadcast, BluetoothDevice device,
+                                int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS
+                    && status != NotificationQueue.STATUS_SUPERSEDED) {
+                Log.w(TAG, "Update of " + broadcast.getCharacteristic().getUuid()
+                        + " not delivered to " + device.getAddress() + ", status: " + status);
+            }
+        }
+
+        @Override
+        public void onComplete(GattBroadcaster.Broadcast broadcast) {
+            Log.d(TAG, "Broadcast " + broadcast);
+        }
+    };
+
+    /**
+     * Notifies the written value to the characteristic's subscribers.
+     */
+    private GattAttributeDatabase.WriteHandler notifyOnWrite(final UUID uuid) {
+        return new GattAttributeDatabase.WriteHandler() {
+            @Override
+            public int onWrite(BluetoothDevice device, byte[] value) {
+                BluetoothGattCharacteristic characteristic = mAttributeDatabase.getCharacteristic(uuid);
+                mBroadcaster.broadcast(characteristic, value, mBroadcastCallback);
+                return BluetoothGatt.GATT_SUCCESS;
+            }
+        };
+    }
+
+    /**
+     * Sends a New Alert to a client once it subscribes to them.
+     */
+    private final SubscriptionRegistry.Listener mSubscriptionListener =
+            new SubscriptionRegistry.Listener() {
+        @Override
+        public void onSubscriptionChanged(BluetoothDevice device,
+                                          BluetoothGattCharacteristic characteristic, int config) {
+            if (characteristic == mNewAlert && config != 0) {
+                Log.d(TAG, "sending nofication!");
+                mNotificationQueue.post(device, mNewAlert, NEW_ALERT_VALUE,
+                        config == SubscriptionRegistry.INDICATE);
+            }
+        }
+    };
+
+    /**
+     * Registers the Alert Notification service hosted for the connected device.
+     */
+    private GattAttributeDatabase buildAttributeDatabase() {
+        GattAttributeDatabase database = new GattAttributeDatabase(mMtus);
+        mSubscriptions = new SubscriptionRegistry();
+        mBroadcaster = new GattBroadcaster(mSubscriptions, mNotificationQueue, mMtus);
+        BluetoothGattService service = database.addService(Constants.UUID_ALERT_NOTIFICATION_SERVICE);
+
+        mSupportedNewAlertCategory = database.addCharacteristic(service, Constants.UUID_SUPPORTED_NEW_ALERT_CATEGORY,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_READ,
+                GattAttributeDatabase.staticValue(SUPPORTED_CATEGORIES), notifyOnWrite(Constants.UUID_SUPPORTED_NEW_ALERT_CATEGORY));
+        mSupportedNewAlertCategory.setValue(SUPPORTED_CATEGORIES);
+
+        mNewAlert = database.addCharacteristic(service, Constants.UUID_NEW_ALERT,
+                BluetoothGattCharacteristic.FORMAT_UINT8 | BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ,
+                GattAttributeDatabase.staticValue(NEW_ALERT_VALUE), notifyOnWrite(Constants.UUID_NEW_ALERT));
+        mNewAlert.setValue(NEW_ALERT_VALUE);
+        database.addClientConfigDescriptor(mNewAlert, mSubscriptions);
+
+        mSupportedUnreadCategory = database.addCharacteristic(service, Constants.UUID_SUPPORTED_UNREAD_ALERT_CATEGORY,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_READ,
+                GattAttributeDatabase.staticValue(SUPPORTED_CATEGORIES), notifyOnWrite(Constants.UUID_SUPPORTED_UNREAD_ALERT_CATEGORY));
+        mSupportedUnreadCategory.setValue(SUPPORTED_CATEGORIES);
+
+        mUnreadAlertStatus = database.addCharacteristic(service, Constants.UUID_UNREAD_ALERT_STATUS,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, BluetoothGattCharacteristic.PERMISSION_READ,
+                null, notifyOnWrite(Constants.UUID_UNREAD_ALERT_STATUS));
+        database.addClientConfigDescriptor(mUnreadAlertStatus, mSubscriptions);
+
+        mAlertNotificationControlPoint = database.addCharacteristic(service, Constants.UUID_ALERT_NOTIFICATION_CONTROL_POINT,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ,
+                GattAttributeDatabase.staticValue(CONTROL_POINT_VALUE), notifyOnWrite(Constants.UUID_ALERT_NOTIFICATION_CONTROL_POINT));
+        mAlertNotificationControlPoint.setValue(CONTROL_POINT_VALUE);
+
+        mSubscriptions.setListener(mSubscriptionListener);
+        return database;
+    }
+
+    /**
+     * Connects to the GATT server hosted on the Bluetooth LE device. Several devices can be
+     * connected at once; beyond the controller's connection limit they take turns.
      *
      * @param address The device address of the destination device.
      * @return Return true if the connection is initiated successfully. The connection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * is reported asynchronously as a {@link GattEventBus.ConnectionEvent}.
      */
     public boolean connect(final String address) {
         if (mBluetoothAdapter == null || address == null) {
@@ -269,127 +455,141 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
-            }
+        if (mGattServer == null) {
+            mAttributeDatabase = buildAttributeDatabase();
+            mGattServer = mBluetoothManager.openGattServer(this, serverCallback);
+            mAttributeDatabase.open(mGattServer);
         }
 
-        mBluetoothDevice = mBluetoothAdapter.getRemoteDevice(address);
-        if (mBluetoothDevice == null) {
+        if (mConnections.connect(address) == null) {
             Log.w(TAG, "Device not found.  Unable to connect.");
             return false;
         }
-
-        mGattServer = mBluetoothManager.openGattServer(this, serverCallback);
-        mSupportedNewAlertCategory = new BluetoothGattCharacteristic(Constants.UUID_SUPPORTED_NEW_ALERT_CATEGORY, BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_READ);
-        mNewAlert = new BluetoothGattCharacteristic(Constants.UUID_NEW_ALERT, BluetoothGattCharacteristic.FORMAT_UINT8 | BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
-        mSupportedUnreadCategory = new BluetoothGattCharacteristic(Constants.UUID_SUPPORTED_UNREAD_ALERT_CATEGORY, BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_READ);
-        mUnreadAlertStatus = new BluetoothGattCharacteristic(Constants.UUID_UNREAD_ALERT_STATUS, BluetoothGattCharacteristic.PROPERTY_NOTIFY, BluetoothGattCharacteristic.PERMISSION_READ);
-        mAlertNotificationControlPoint = new BluetoothGattCharacteristic(Constants.UUID_ALERT_NOTIFICATION_CONTROL_POINT, BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
-        mAlertNotificationControlPoint.setValue(new byte[]{0});
-        mAlertNotificationControlPoint.setValue(new byte[]{1});
-        mAlertNotificationControlPoint.setValue(new byte[]{4});
-        mAlertNotificationControlPoint.setValue(new byte[]{5});
-
-        BluetoothGattDescriptor clientCharacteristicConfig = new BluetoothGattDescriptor(Constants.UUID_CLIENT_CHARACTERISTIC_CONFIG, BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
-        clientCharacteristicConfig.setValue(new byte[]{1});
-        mNewAlert.addDescriptor(clientCharacteristicConfig);
-        mUnreadAlertStatus.addDescriptor(clientCharacteristicConfig);
-
-        mAlertNotificationService = new BluetoothGattService(Constants.UUID_ALERT_NOTIFICATION_SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY);
-
-        mAlertNotificationService.addCharacteristic(mSupportedNewAlertCategory);
-        mAlertNotificationService.addCharacteristic(mNewAlert);
-        mAlertNotificationService.addCharacteristic(mSupportedUnreadCategory);
-        mAlertNotificationService.addCharacteristic(mUnreadAlertStatus);
-        mAlertNotificationService.addCharacteristic(mAlertNotificationControlPoint);
-
-        mGattServer.addService(mAlertNotificationService);
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        //        mGattServer.connect(mBluetoothDevice, true);
-
-        Log.d(TAG, "Trying to create a new connection.");
+        Log.d(TAG, "Connections " + mConnections);
         mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
         return true;
     }
 
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * Disconnects the device last connected, or cancels its pending connection.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        String address = mBluetoothDeviceAddress;
+        if (address != null) {
+            disconnect(address);
+        }
+    }
+
+    /**
+     * Disconnects a device, or cancels its pending connection, and stops reconnecting to it. The
+     * result is reported asynchronously as a {@link GattEventBus.ConnectionEvent}.
+     */
+    public void disconnect(String address) {
+        if (mConnections == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        mConnections.disconnect(address);
     }
 
     /**
-     * After using a given BLE device, the app must call this method to ensure resources are
+     * After using the BLE devices, the app must call this method to ensure resources are
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
+        if (mConnections == null) {
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        Log.d(TAG, "Connections " + mConnections);
+        mConnections.close();
     }
 
     /**
-     * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
-     * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
+     * Request a read on a given {@code BluetoothGattCharacteristic} of the device last
+     * connected. The result is published as a {@link GattEventBus.DataEvent}.
      *
      * @param characteristic The characteristic to read from.
      */
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+        readCharacteristic(mBluetoothDeviceAddress, characteristic);
+    }
+
+    public void readCharacteristic(String address, BluetoothGattCharacteristic characteristic) {
+        GattOperationQueue operations = getOperationQueue(address);
+        if (operations == null) {
+            Log.w(TAG, "Not connecting to " + address);
             return;
         }
         Log.d(TAG, "readCharacteristics (GATT)");
-        mBluetoothGatt.readCharacteristic(characteristic);
+        operations.readCharacteristic(characteristic, null);
     }
 
     /**
-     * Enables or disables notification on a give characteristic.
+     * Enables or disables notification on a give characteristic of the device last connected,
+     * locally and by writing its Client Characteristic Configuration descriptor.
      *
      * @param characteristic Characteristic to act on.
      * @param enabled        If true, enable notification.  False otherwise.
      */
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+        setCharacteristicNotification(mBluetoothDeviceAddress, characteristic, enabled);
+    }
+
+    public void setCharacteristicNotification(String address,
+                                              BluetoothGattCharacteristic characteristic,
+                                              boolean enabled) {
+        GattOperationQueue operations = getOperationQueue(address);
+        if (operations == null) {
+            Log.w(TAG, "Not connecting to " + address);
             return;
         }
         Log.d(TAG, "setCharacteristicNotification (GATT)");
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        operations.setNotification(characteristic, enabled, null);
+    }
+
+    /**
+     * The queue client operations on the device last connected go through, for callers that
+     * need completions, batches or timings.
+     */
+    public GattOperationQueue getOperationQueue() {
+        return getOperationQueue(mBluetoothDeviceAddress);
+    }
+
+    /**
+     * The queue client operations on {@code address} go through. Operations queued while the
+     * device waits for a connection slot run once it is connected.
+     *
+     * @return null if the device isn't being connected.
+     */
+    public GattOperationQueue getOperationQueue(String address) {
+        GattConnectionManager.Session session = getSession(address);
+        return session != null ? session.getOperationQueue() : null;
     }
 
     /**
-     * Retrieves a list of supported GATT services on the connected device. This should be
-     * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
+     * Retrieves a list of supported GATT services on the device last connected. Until
+     * {@code BluetoothGatt#discoverServices()} completes, these are the services cached from the
+     * device's last connection, if any; they describe the device but can't be read or written.
      *
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+        return getSupportedGattServices(mBluetoothDeviceAddress);
+    }
 
-        Log.d(TAG, "getSupportedServices (GATT)");
-        return mBluetoothGatt.getServices();
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        GattConnectionManager.Session session = getSession(address);
+        if (session == null) return null;
+
+        Log.d(TAG, "getSupportedServices " + session.getState());
+        return session.getServices();
+    }
+
+    private GattConnectionManager.Session getSession(String address) {
+        if (mConnections == null || address == null) {
+            return null;
+        }
+        return mConnections.getSession(address);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+/**
+ * Fixed-capacity FIFO of bytes, backed by one array that is never reallocated.
+ *
+ * Not thread-safe; callers synchronize.
+ */
+public class ByteRingBuffer {
+
+    private final byte[] mBuffer;
+
+    /**
+     * Index of the oldest byte.
+     */
+    private int mHead;
+
+    private int mSize;
+
+    public ByteRingBuffer(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Number of bytes that can be read.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Number of bytes that can be written.
+     */
+    public int free() {
+        return mBuffer.length - mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Append as many of the given bytes as fit.
+     *
+     * @return the number of bytes appended.
+     */
+    public int write(byte[] source, int offset, int length) {
+        int count = Math.min(length, free());
+        int tail = (mHead + mSize) % mBuffer.length;
+        int first = Math.min(count, mBuffer.length - tail);
+        System.arraycopy(source, offset, mBuffer, tail, first);
+        System.arraycopy(source, offset + first, mBuffer, 0, count - first);
+        mSize += count;
+        return count;
+    }
+
+    /**
+     * Remove up to {@code length} of the oldest bytes into {@code target}.
+     *
+     * @return the number of bytes removed.
+     */
+    public int read(byte[] target, int offset, int length) {
+        int count = Math.min(length, mSize);
+        int first = Math.min(count, mBuffer.length - mHead);
+        System.arraycopy(mBuffer, mHead, target, offset, first);
+        System.arraycopy(mBuffer, 0, target, offset + first, count - first);
+        mHead = (mHead + count) % mBuffer.length;
+        mSize -= count;
+        return count;
+    }
+
+    /**
+     * Remove and return the oldest byte, as 0 - 255. The buffer must not be empty.
+     */
+    public int read() {
+        int value = mBuffer[mHead] & 0xff;
+        mHead = (mHead + 1) % mBuffer.length;
+        mSize--;
+        return value;
+    }
+
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+}
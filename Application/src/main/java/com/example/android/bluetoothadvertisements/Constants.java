@@ -69,5 +69,19 @@ public class Constants {
     public static final java.util.UUID UUID_NEW_ALERT = java.util.UUID.fromString("00002a49-0000-1000-8000-00805f9b34fb");
     public static final java.util.UUID UUID_CLIENT_CHARACTERISTIC_CONFIG = java.util.UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
+    /** Generic Attribute service UUID */
+    public static final java.util.UUID GENERIC_ATTRIBUTE_SERVICE_UUID = java.util.UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    /** Service Changed characteristic UUID, indicated when the server's attributes change */
+    public static final java.util.UUID SERVICE_CHANGED_UUID = java.util.UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb");
+
+    /** Serial stream service, see {@link GattSerialStream} */
+    public static final java.util.UUID SERIAL_SERVICE_UUID = java.util.UUID.fromString("4a5d0001-8b2e-4c4f-9e3a-6b1f2c7d0e51");
+    /** Serial RX characteristic, written by the client */
+    public static final java.util.UUID SERIAL_RX_UUID = java.util.UUID.fromString("4a5d0002-8b2e-4c4f-9e3a-6b1f2c7d0e51");
+    /** Serial TX characteristic, notified to the client */
+    public static final java.util.UUID SERIAL_TX_UUID = java.util.UUID.fromString("4a5d0003-8b2e-4c4f-9e3a-6b1f2c7d0e51");
+    /** Serial flow control credits, written and notified in both directions */
+    public static final java.util.UUID SERIAL_CREDITS_UUID = java.util.UUID.fromString("4a5d0004-8b2e-4c4f-9e3a-6b1f2c7d0e51");
+
 
 }
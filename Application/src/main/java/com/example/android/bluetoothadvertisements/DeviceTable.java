@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Table of discovered devices keyed by MAC address, used by {@link ScanResultAdapter}.
+ *
+ * Lookups and upserts go through a hash index, so adding a result costs the same whether the
+ * table holds ten devices or ten thousand. Rows keep the order in which their device was first
+ * seen, and each row's id is derived from the 48-bit MAC address so it never changes for a device.
+ *
+ * Rows are also kept in a list ordered by when they were last seen, so {@link #evict(long, int)}
+ * can drop expired and least recently seen devices without scanning the whole table.
+ *
+ * Plain Java on purpose - it has no Android dependencies and can be exercised on a JVM.
+ * Not thread safe; callers must confine it to a single thread.
+ */
+public class DeviceTable<T> {
+
+    /**
+     * One row of the table.
+     */
+    static final class Entry<T> {
+        final String address;
+        final long id;
+        int position;
+        T record;
+        long lastSeenNanos;
+
+        // Neighbours in the last-seen order.
+        Entry<T> older;
+        Entry<T> newer;
+
+        Entry(String address, long id, int position, T record) {
+            this.address = address;
+            this.id = id;
+            this.position = position;
+            this.record = record;
+        }
+    }
+
+    private final HashMap<String, Entry<T>> mIndex;
+
+    private final ArrayList<Entry<T>> mRows;
+
+    private Entry<T> mOldest;
+
+    private Entry<T> mNewest;
+
+    public DeviceTable() {
+        mIndex = new HashMap<>();
+        mRows = new ArrayList<>();
+    }
+
+    /**
+     * Insert a record for the given address, or replace the record already stored for it, and
+     * mark the device as seen at {@code timestampNanos}.
+     *
+     * @return the position of the row if it already existed, otherwise the bitwise complement
+     * ({@code ~position}) of the newly appended row's position.
+     */
+    public int upsert(String address, T record, long timestampNanos) {
+        Entry<T> entry = mIndex.get(address);
+        if (entry != null) {
+            entry.record = record;
+            touch(entry, timestampNanos);
+            return entry.position;
+        }
+
+        int position = mRows.size();
+        entry = new Entry<>(address, addressToId(address), position, record);
+        mIndex.put(address, entry);
+        mRows.add(entry);
+        touch(entry, timestampNanos);
+        return ~position;
+    }
+
+    /**
+     * Mark the device at the given position as seen at {@code timestampNanos}.
+     */
+    public void touch(int position, long timestampNanos) {
+        touch(mRows.get(position), timestampNanos);
+    }
+
+    private void touch(Entry<T> entry, long timestampNanos) {
+        entry.lastSeenNanos = timestampNanos;
+        if (entry == mNewest) {
+            return;
+        }
+        unlink(entry);
+        entry.older = mNewest;
+        entry.newer = null;
+        if (mNewest != null) {
+            mNewest.newer = entry;
+        }
+        mNewest = entry;
+        if (mOldest == null) {
+            mOldest = entry;
+        }
+    }
+
+    private void unlink(Entry<T> entry) {
+        if (entry.older != null) {
+            entry.older.newer = entry.newer;
+        } else if (mOldest == entry) {
+            mOldest = entry.newer;
+        }
+        if (entry.newer != null) {
+            entry.newer.older = entry.older;
+        } else if (mNewest == entry) {
+            mNewest = entry.older;
+        }
+        entry.older = null;
+        entry.newer = null;
+    }
+
+    /**
+     * Remove devices last seen before {@code cutoffNanos}, then the least recently seen devices
+     * until at most {@code maxSize} remain. Remaining rows keep their relative order.
+     *
+     * @return the number of rows removed.
+     */
+    public int evict(long cutoffNanos, int maxSize) {
+        int removed = 0;
+        int size = mRows.size();
+        while (mOldest != null
+                && (mOldest.lastSeenNanos < cutoffNanos || size - removed > maxSize)) {
+            Entry<T> entry = mOldest;
+            unlink(entry);
+            mIndex.remove(entry.address);
+            entry.position = -1;
+            removed++;
+        }
+        if (removed == 0) {
+            return 0;
+        }
+
+        // Compact the rows in one pass.
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            Entry<T> entry = mRows.get(i);
+            if (entry.position >= 0) {
+                entry.position = kept;
+                mRows.set(kept++, entry);
+            }
+        }
+        mRows.subList(kept, size).clear();
+        return removed;
+    }
+
+    /**
+     * Return the position of the row for the given address, otherwise return -1.
+     */
+    public int indexOf(String address) {
+        Entry<T> entry = mIndex.get(address);
+        return entry != null ? entry.position : -1;
+    }
+
+    public T get(int position) {
+        return mRows.get(position).record;
+    }
+
+    public String getAddress(int position) {
+        return mRows.get(position).address;
+    }
+
+    /**
+     * Returns the stable id of the row at the given position.
+     */
+    public long getId(int position) {
+        return mRows.get(position).id;
+    }
+
+    public int size() {
+        return mRows.size();
+    }
+
+    /**
+     * Returns when the device at the given position was last seen.
+     */
+    public long getLastSeenNanos(int position) {
+        return mRows.get(position).lastSeenNanos;
+    }
+
+    public void clear() {
+        mIndex.clear();
+        mRows.clear();
+        mOldest = null;
+        mNewest = null;
+    }
+
+    /**
+     * Packs a MAC address of the form "AA:BB:CC:DD:EE:FF" into the low 48 bits of a long. Falls
+     * back to the string hash for anything that isn't a well-formed address.
+     */
+    static long addressToId(String address) {
+        if (address.length() != 17) {
+            return address.hashCode();
+        }
+        long id = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return address.hashCode();
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return address.hashCode();
+            }
+            id = (id << 4) | digit;
+        }
+        return id;
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The services, characteristics and descriptors a GATT server exposes, along with the handlers
+ * that answer requests for them.
+ *
+ * Attributes are registered once, before the server is opened. Requests are then dispatched
+ * through a map keyed by the attribute instance the stack hands back, instead of comparing UUIDs
+ * on every request. Attributes with a fixed value can use {@link #staticValue(byte[])}, which
+ * answers every read with the same preallocated array.
+ *
+ * Values longer than one packet are read by the client in several requests with increasing
+ * offsets. The value returned for the request at offset 0 is kept for the device, and the later
+ * requests are answered from it, so the client never stitches together parts of two different
+ * values. Each response carries only what fits the device's MTU, as tracked by a
+ * {@link MtuTracker}.
+ *
+ * Long writes are queued per device in a {@link PreparedWriteQueue} and only reach the write
+ * handlers when the client executes them. Queues are bounded, and are reused once their device
+ * disconnects.
+ *
+ * The server callback should forward its read, write, execute, onServiceAdded and disconnection
+ * calls to this class.
+ */
+public class GattAttributeDatabase {
+
+    private static final String TAG = GattAttributeDatabase.class.getSimpleName();
+
+    /**
+     * Supplies the value of an attribute for a read request.
+     */
+    public interface ReadHandler {
+
+        /**
+         * @return the full value of the attribute. The array may be kept for a long read, so
+         * once returned it must not be modified; return a new array when the value changes.
+         */
+        byte[] onRead(BluetoothDevice device);
+    }
+
+    /**
+     * Accepts the value written to an attribute.
+     */
+    public interface WriteHandler {
+
+        /**
+         * @return a {@link BluetoothGatt} status code, sent back if the client asked for a
+         * response.
+         */
+        int onWrite(BluetoothDevice device, byte[] value);
+    }
+
+    /**
+     * The part of {@link BluetoothGattServer} the database uses, so requests can also be answered
+     * by something other than the stack.
+     */
+    public interface Server {
+
+        boolean addService(BluetoothGattService service);
+
+        boolean sendResponse(BluetoothDevice device, int requestId, int status, int offset,
+                             byte[] value);
+    }
+
+    /**
+     * A write handler that can check a value without applying it. A long write is only applied
+     * if the handler of every attribute it touches accepts its value; handlers that don't
+     * implement this accept any value.
+     */
+    public interface ValidatingWriteHandler extends WriteHandler {
+
+        /**
+         * @return a {@link BluetoothGatt} status code, which {@link #onWrite} would return for
+         * the same value.
+         */
+        int onValidate(BluetoothDevice device, byte[] value);
+    }
+
+    private static final class Attribute {
+        final ReadHandler read;
+        final WriteHandler write;
+
+        Attribute(ReadHandler read, WriteHandler write) {
+            this.read = read;
+            this.write = write;
+        }
+    }
+
+    private static final class LongRead {
+        final Attribute attribute;
+        final byte[] value;
+
+        LongRead(Attribute attribute, byte[] value) {
+            this.attribute = attribute;
+            this.value = value;
+        }
+    }
+
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
+    /**
+     * Most bytes of prepared writes held for one device.
+     */
+    private static final int PREPARED_WRITE_CAPACITY = 4096;
+
+    /**
+     * Most unused prepared write queues kept for reuse.
+     */
+    private static final int MAX_SPARE_QUEUES = 2;
+
+    private final List<BluetoothGattService> mServices = new ArrayList<>();
+
+    private final IdentityHashMap<BluetoothGattCharacteristic, Attribute> mCharacteristics =
+            new IdentityHashMap<>();
+
+    private final IdentityHashMap<BluetoothGattDescriptor, Attribute> mDescriptors =
+            new IdentityHashMap<>();
+
+    private final HashMap<UUID, BluetoothGattCharacteristic> mCharacteristicsByUuid =
+            new HashMap<>();
+
+    /**
+     * Value read at offset 0 by each device, by address, for its long read in progress.
+     */
+    private final HashMap<String, LongRead> mLongReads = new HashMap<>();
+
+    /**
+     * Prepared writes of each device, by address.
+     */
+    private final HashMap<String, PreparedWriteQueue<Attribute>> mPreparedWrites =
+            new HashMap<>();
+
+    private final ArrayList<PreparedWriteQueue<Attribute>> mSpareQueues = new ArrayList<>();
+
+    private final MtuTracker mMtus;
+
+    private Server mServer;
+
+    /**
+     * Index in {@link #mServices} of the next service to add to the server.
+     */
+    private int mNextService;
+
+    /**
+     * A read handler that always answers with {@code value}.
+     */
+    public static ReadHandler staticValue(final byte[] value) {
+        return new ReadHandler() {
+            @Override
+            public byte[] onRead(BluetoothDevice device) {
+                return value;
+            }
+        };
+    }
+
+    /**
+     * @param mtus the MTU of each device, to size read responses with.
+     */
+    public GattAttributeDatabase(MtuTracker mtus) {
+        mMtus = mtus;
+    }
+
+    /**
+     * Register a primary service.
+     */
+    public BluetoothGattService addService(UUID uuid) {
+        BluetoothGattService service =
+                new BluetoothGattService(uuid, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        mServices.add(service);
+        return service;
+    }
+
+    /**
+     * Register a characteristic of {@code service}.
+     *
+     * @param read  answers read requests, or null to refuse them.
+     * @param write accepts write requests, or null to refuse them.
+     */
+    public BluetoothGattCharacteristic addCharacteristic(BluetoothGattService service, UUID uuid,
+                                                         int properties, int permissions,
+                                                         ReadHandler read, WriteHandler write) {
+        BluetoothGattCharacteristic characteristic =
+                new BluetoothGattCharacteristic(uuid, properties, permissions);
+        service.addCharacteristic(characteristic);
+        mCharacteristics.put(characteristic, new Attribute(read, write));
+        mCharacteristicsByUuid.put(uuid, characteristic);
+        return characteristic;
+    }
+
+    /**
+     * Register a descriptor of {@code characteristic}. Each characteristic needs its own
+     * descriptor instances; they can't be shared.
+     *
+     * @param read  answers read requests, or null to refuse them.
+     * @param write accepts write requests, or null to refuse them.
+     */
+    public BluetoothGattDescriptor addDescriptor(BluetoothGattCharacteristic characteristic,
+                                                 UUID uuid, int permissions,
+                                                 ReadHandler read, WriteHandler write) {
+        BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(uuid, permissions);
+        characteristic.addDescriptor(descriptor);
+        mDescriptors.put(descriptor, new Attribute(read, write));
+        return descriptor;
+    }
+
+    /**
+     * Register the Client Characteristic Configuration descriptor of {@code characteristic}, with
+     * its per-device state kept in {@code registry}.
+     */
+    public BluetoothGattDescriptor addClientConfigDescriptor(
+            final BluetoothGattCharacteristic characteristic, final SubscriptionRegistry registry) {
+        registry.register(characteristic);
+        return addDescriptor(characteristic, Constants.UUID_CLIENT_CHARACTERISTIC_CONFIG,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE,
+                new ReadHandler() {
+                    @Override
+                    public byte[] onRead(BluetoothDevice device) {
+                        return registry.getConfigValue(device, characteristic);
+                    }
+                },
+                new ValidatingWriteHandler() {
+                    @Override
+                    public int onValidate(BluetoothDevice device, byte[] value) {
+                        return registry.validateConfigWrite(characteristic, value);
+                    }
+
+                    @Override
+                    public int onWrite(BluetoothDevice device, byte[] value) {
+                        return registry.onConfigWrite(device, characteristic, value);
+                    }
+                });
+    }
+
+    /**
+     * The registered characteristic with the given UUID, or null.
+     */
+    public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+        return mCharacteristicsByUuid.get(uuid);
+    }
+
+    /**
+     * Start adding the registered services to {@code server}. The server only accepts one service
+     * at a time, so the rest are added from {@link #onServiceAdded(int, BluetoothGattService)}.
+     *
+     * @return false if the first service couldn't be added.
+     */
+    public boolean open(final BluetoothGattServer server) {
+        return open(new Server() {
+            @Override
+            public boolean addService(BluetoothGattService service) {
+                return server.addService(service);
+            }
+
+            @Override
+            public boolean sendResponse(BluetoothDevice device, int requestId, int status,
+                                        int offset, byte[] value) {
+                return server.sendResponse(device, requestId, status, offset, value);
+            }
+        });
+    }
+
+    public boolean open(Server server) {
+        mServer = server;
+        mNextService = 0;
+        return addNextService();
+    }
+
+    /**
+     * Forward {@code BluetoothGattServerCallback#onServiceAdded} here.
+     */
+    public void onServiceAdded(int status, BluetoothGattService service) {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, "Failed to add service " + service.getUuid() + ": " + status);
+        }
+        addNextService();
+    }
+
+    private boolean addNextService() {
+        if (mServer == null || mNextService >= mServices.size()) {
+            return true;
+        }
+        return mServer.addService(mServices.get(mNextService++));
+    }
+
+    /**
+     * Forget what was kept for a device, once it has disconnected.
+     */
+    public void onDeviceDisconnected(BluetoothDevice device) {
+        synchronized (mLongReads) {
+            mLongReads.remove(device.getAddress());
+        }
+        synchronized (mPreparedWrites) {
+            PreparedWriteQueue<Attribute> queue = mPreparedWrites.remove(device.getAddress());
+            if (queue != null && mSpareQueues.size() < MAX_SPARE_QUEUES) {
+                queue.cancel();
+                mSpareQueues.add(queue);
+            }
+        }
+    }
+
+    /**
+     * Forward {@code BluetoothGattServerCallback#onCharacteristicReadRequest} here.
+     */
+    public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
+                                            BluetoothGattCharacteristic characteristic) {
+        dispatchRead(mCharacteristics.get(characteristic), device, requestId, offset);
+    }
+
+    /**
+     * Forward {@code BluetoothGattServerCallback#onDescriptorReadRequest} here.
+     */
+    public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset,
+                                        BluetoothGattDescriptor descriptor) {
+        dispatchRead(mDescriptors.get(descriptor), device, requestId, offset);
+    }
+
+    /**
+     * Forward {@code BluetoothGattServerCallback#onCharacteristicWriteRequest} here.
+     */
+    public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
+                                             BluetoothGattCharacteristic characteristic,
+                                             boolean preparedWrite, boolean responseNeeded,
+                                             int offset, byte[] value) {
+        dispatchWrite(mCharacteristics.get(characteristic), device, requestId, preparedWrite,
+                responseNeeded, offset, value);
+    }
+
+    /**
+     * Forward {@code BluetoothGattServerCallback#onDescriptorWriteRequest} here.
+     */
+    public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
+                                         BluetoothGattDescriptor descriptor,
+                                         boolean preparedWrite, boolean responseNeeded,
+                                         int offset, byte[] value) {
+        dispatchWrite(mDescriptors.get(descriptor), device, requestId, preparedWrite,
+                responseNeeded, offset, value);
+    }
+
+    private void dispatchRead(Attribute attribute, BluetoothDevice device, int requestId,
+                              int offset) {
+        if (attribute == null || attribute.read == null) {
+            mServer.sendResponse(device, requestId, BluetoothGatt.GATT_READ_NOT_PERMITTED, offset,
+                    null);
+            return;
+        }
+
+        byte[] value = getReadValue(attribute, device, offset);
+        if (value == null) {
+            value = EMPTY_VALUE;
+        }
+        if (offset > value.length) {
+            mServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset,
+                    null);
+            return;
+        }
+        // Only what fits one response is sent, so a long read copies each byte once.
+        int end = Math.min(value.length, offset + mMtus.getReadPayloadSize(device));
+        byte[] part = offset == 0 && end == value.length
+                ? value : Arrays.copyOfRange(value, offset, end);
+        mServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, part);
+    }
+
+    /**
+     * The value to answer a read at {@code offset} from: a fresh one at offset 0, and the one
+     * kept from then for the rest of a long read.
+     */
+    private byte[] getReadValue(Attribute attribute, BluetoothDevice device, int offset) {
+        String address = device.getAddress();
+        synchronized (mLongReads) {
+            if (offset > 0) {
+                LongRead longRead = mLongReads.get(address);
+                if (longRead != null && longRead.attribute == attribute) {
+                    return longRead.value;
+                }
+            }
+        }
+
+        byte[] value = attribute.read.onRead(device);
+        synchronized (mLongReads) {
+            if (offset == 0 && value != null && value.length > 0) {
+                mLongReads.put(address, new LongRead(attribute, value));
+            } else {
+                mLongReads.remove(address);
+            }
+        }
+        return value;
+    }
+
+    private void dispatchWrite(Attribute attribute, BluetoothDevice device, int requestId,
+                               boolean preparedWrite, boolean responseNeeded, int offset,
+                               byte[] value) {
+        int status;
+        if (attribute == null || attribute.write == null) {
+            status = BluetoothGatt.GATT_WRITE_NOT_PERMITTED;
+        } else if (preparedWrite) {
+            synchronized (mPreparedWrites) {
+                status = getPreparedWriteQueue(device).prepare(attribute, offset, value);
+            }
+        } else {
+            status = attribute.write.onWrite(device, value);
+        }
+
+        if (responseNeeded) {
+            mServer.sendResponse(device, requestId, status, offset, value);
+        }
+    }
+
+    /**
+     * Forward {@code BluetoothGattServerCallback#onExecuteWrite} here.
+     */
+    public void onExecuteWrite(final BluetoothDevice device, int requestId, boolean execute) {
+        int status = BluetoothGatt.GATT_SUCCESS;
+        synchronized (mPreparedWrites) {
+            PreparedWriteQueue<Attribute> queue = mPreparedWrites.get(device.getAddress());
+            if (queue != null) {
+                if (execute) {
+                    status = queue.execute(new PreparedWriteQueue.Executor<Attribute>() {
+                        @Override
+                        public int onValidate(Attribute attribute, byte[] value) {
+                            return attribute.write instanceof ValidatingWriteHandler
+                                    ? ((ValidatingWriteHandler) attribute.write)
+                                            .onValidate(device, value)
+                                    : BluetoothGatt.GATT_SUCCESS;
+                        }
+
+                        @Override
+                        public int onWrite(Attribute attribute, byte[] value) {
+                            return attribute.write.onWrite(device, value);
+                        }
+                    });
+                } else {
+                    queue.cancel();
+                }
+            }
+        }
+        mServer.sendResponse(device, requestId, status, 0, null);
+    }
+
+    /**
+     * Must hold {@link #mPreparedWrites}.
+     */
+    private PreparedWriteQueue<Attribute> getPreparedWriteQueue(BluetoothDevice device) {
+        PreparedWriteQueue<Attribute> queue = mPreparedWrites.get(device.getAddress());
+        if (queue == null) {
+            int spares = mSpareQueues.size();
+            queue = spares > 0
+                    ? mSpareQueues.remove(spares - 1)
+                    : new PreparedWriteQueue<Attribute>(PREPARED_WRITE_CAPACITY);
+            mPreparedWrites.put(device.getAddress(), queue);
+        }
+        return queue;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pushes one characteristic update to every central subscribed to it.
+ *
+ * The value is queued as the same array for every device, so it is encoded once however many
+ * centrals are connected. Each device is paced by its own queue in the {@link NotificationQueue},
+ * so a slow link doesn't hold back the others, and the {@link Broadcast} returned reports what
+ * happened on each of them.
+ *
+ * A notification carries at most the MTU of its device less 3 bytes. A longer value is cut to
+ * that size for devices with a smaller MTU, as the stack would, and such clients read the rest
+ * with a long read.
+ */
+public class GattBroadcaster {
+
+    /**
+     * Told what became of a broadcast. Called on whichever thread reported the outcome, without
+     * any lock held.
+     */
+    public interface Callback {
+
+        /**
+         * @param status the status from onNotificationSent, or one of
+         *               {@link NotificationQueue#STATUS_SUPERSEDED} and
+         *               {@link NotificationQueue#STATUS_DROPPED}.
+         */
+        void onDelivered(Broadcast broadcast, BluetoothDevice device, int status);
+
+        /**
+         * Every device of the broadcast has been reported.
+         */
+        void onComplete(Broadcast broadcast);
+    }
+
+    /**
+     * One update sent to the devices subscribed when it was broadcast.
+     */
+    public static final class Broadcast implements NotificationQueue.Receipt {
+
+        private final BluetoothGattCharacteristic mCharacteristic;
+
+        private final int mDeviceCount;
+
+        private final Callback mCallback;
+
+        private int mDelivered;
+
+        private int mSuperseded;
+
+        private int mFailed;
+
+        Broadcast(BluetoothGattCharacteristic characteristic, int deviceCount,
+                  Callback callback) {
+            mCharacteristic = characteristic;
+            mDeviceCount = deviceCount;
+            mCallback = callback;
+        }
+
+        public BluetoothGattCharacteristic getCharacteristic() {
+            return mCharacteristic;
+        }
+
+        /**
+         * Devices the update was queued for.
+         */
+        public int getDeviceCount() {
+            return mDeviceCount;
+        }
+
+        public synchronized int getDeliveredCount() {
+            return mDelivered;
+        }
+
+        /**
+         * Devices that got a newer value of the characteristic instead.
+         */
+        public synchronized int getSupersededCount() {
+            return mSuperseded;
+        }
+
+        /**
+         * Devices the update was dropped for or failed on.
+         */
+        public synchronized int getFailedCount() {
+            return mFailed;
+        }
+
+        public synchronized boolean isComplete() {
+            return mDelivered + mSuperseded + mFailed == mDeviceCount;
+        }
+
+        @Override
+        public void onDelivered(BluetoothDevice device, int status) {
+            boolean complete;
+            synchronized (this) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mDelivered++;
+                } else if (status == NotificationQueue.STATUS_SUPERSEDED) {
+                    mSuperseded++;
+                } else {
+                    mFailed++;
+                }
+                complete = isComplete();
+            }
+            if (mCallback != null) {
+                mCallback.onDelivered(this, device, status);
+                if (complete) {
+                    mCallback.onComplete(this);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            synchronized (this) {
+                return mCharacteristic.getUuid() + " delivered: " + mDelivered + "/"
+                        + mDeviceCount + " superseded: " + mSuperseded + " failed: " + mFailed;
+            }
+        }
+    }
+
+    private final SubscriptionRegistry mSubscriptions;
+
+    private final NotificationQueue mQueue;
+
+    private final MtuTracker mMtus;
+
+    public GattBroadcaster(SubscriptionRegistry subscriptions, NotificationQueue queue,
+                           MtuTracker mtus) {
+        mSubscriptions = subscriptions;
+        mQueue = queue;
+        mMtus = mtus;
+    }
+
+    /**
+     * Queue {@code value} of {@code characteristic} for every device subscribed to it, as an
+     * indication to those that asked for indications only. {@code value} is shared by all
+     * devices and must not be modified afterwards.
+     *
+     * @param callback may be null.
+     */
+    public Broadcast broadcast(BluetoothGattCharacteristic characteristic, byte[] value,
+                               Callback callback) {
+        List<BluetoothDevice> subscribers = new ArrayList<>();
+        mSubscriptions.getSubscribers(characteristic, subscribers);
+
+        Broadcast broadcast = new Broadcast(characteristic, subscribers.size(), callback);
+        byte[] clipped = null;
+        for (BluetoothDevice device : subscribers) {
+            boolean confirm = mSubscriptions.getConfig(device, characteristic)
+                    == SubscriptionRegistry.INDICATE;
+            byte[] payload = value;
+            int payloadSize = mMtus.getPayloadSize(device);
+            if (value.length > payloadSize) {
+                // Devices with the same MTU share one copy.
+                if (clipped == null || clipped.length != payloadSize) {
+                    clipped = Arrays.copyOf(value, payloadSize);
+                }
+                payload = clipped;
+            }
+            if (!mQueue.post(device, characteristic, payload, confirm, broadcast)) {
+                broadcast.onDelivered(device, NotificationQueue.STATUS_DROPPED);
+            }
+        }
+        if (subscribers.isEmpty() && callback != null) {
+            callback.onComplete(broadcast);
+        }
+        return broadcast;
+    }
+}
@@ -0,0 +1,796 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GATT client connections to several devices at once, one {@link Session} per device address.
+ *
+ * Each session has its own {@link BluetoothGatt}, connection state and
+ * {@link GattOperationQueue}, so a slow device doesn't hold up the others. The controller only
+ * keeps a handful of connections, so at most {@code maxConnections} sessions hold one; the rest
+ * wait their turn in order. While sessions are waiting, a connected one that has had its slot for
+ * the rotation interval, and has nothing left in its queue, is disconnected and goes to the back
+ * of the line, so every device gets connected in turn. A connection attempt that doesn't complete
+ * within the connect timeout gives up its slot the same way, after a delay.
+ *
+ * A session outlives its connections: operations queued on it while it waits run once it is
+ * connected again, and an unexpected disconnection, a timed out attempt or a timed out operation
+ * puts it back in line with its queue intact. Only {@link #disconnect(String)} and {@link #close()} end it and fail
+ * what is left in its queue.
+ */
+public class GattConnectionManager {
+
+    private static final String TAG = GattConnectionManager.class.getSimpleName();
+
+    /**
+     * Android's default limit of LE connections, shared with other apps.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+
+    public static final long DEFAULT_ROTATION_MILLIS = 30000;
+
+    public static final long CONNECT_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Delay before a device that couldn't be connected is tried again.
+     */
+    static final long RETRY_DELAY_MILLIS = 2000;
+
+    /**
+     * How often slots are checked for rotation and timeouts while any session waits.
+     */
+    static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    private static final long CACHE_THREAD_KEEP_ALIVE_SECONDS = 10;
+
+    public enum State {
+        /**
+         * Waiting for a connection slot.
+         */
+        WAITING,
+        CONNECTING,
+        /**
+         * Connected, discovering services.
+         */
+        DISCOVERING,
+        READY,
+        /**
+         * Giving up its slot, to another session or for good.
+         */
+        DISCONNECTING,
+        CLOSED
+    }
+
+    /**
+     * Told of changes in every session. Called on binder threads or the manager's handler.
+     */
+    public interface Listener {
+
+        void onStateChanged(Session session, State state);
+
+        void onCharacteristicRead(Session session, BluetoothGattCharacteristic characteristic,
+                                  int status);
+
+        void onCharacteristicChanged(Session session,
+                                     BluetoothGattCharacteristic characteristic);
+    }
+
+    /**
+     * The part of {@link BluetoothDevice} the manager uses, so connections can also be opened by
+     * something other than the stack.
+     */
+    public interface Connector {
+
+        /**
+         * Start connecting to {@code device}, as {@code connectGatt} without auto-connect.
+         *
+         * @return null if the attempt couldn't be started.
+         */
+        BluetoothGatt connect(BluetoothDevice device, BluetoothGattCallback callback);
+    }
+
+    /**
+     * The connection to one device.
+     */
+    public final class Session {
+
+        private final BluetoothDevice mDevice;
+
+        private final GattOperationQueue mOperations;
+
+        private State mState = State.WAITING;
+
+        private BluetoothGatt mGatt;
+
+        /**
+         * Services cached from the device's last connection, until discovery completes.
+         */
+        private volatile List<BluetoothGattService> mCachedServices;
+
+        /**
+         * When the session got its slot, on the handler's clock.
+         */
+        private long mSlotMillis;
+
+        /**
+         * When it connected, until its first read completed.
+         */
+        private long mConnectedNanos;
+
+        private long mRetryMillis;
+
+        /**
+         * Whether it goes back in line once disconnected.
+         */
+        private boolean mRequeue = true;
+
+        private int mConnectionCount;
+
+        private Session(BluetoothDevice device) {
+            mDevice = device;
+            mOperations = new GattOperationQueue(mHandler,
+                    new GattOperationQueue.TimeoutListener() {
+                        @Override
+                        public void onTimeout(GattOperationQueue.Operation operation) {
+                            onOperationTimeout(Session.this);
+                        }
+                    });
+        }
+
+        public String getAddress() {
+            return mDevice.getAddress();
+        }
+
+        public State getState() {
+            synchronized (mLock) {
+                return mState;
+            }
+        }
+
+        /**
+         * Operations on this device. Those queued while it isn't connected wait until it is.
+         */
+        public GattOperationQueue getOperationQueue() {
+            return mOperations;
+        }
+
+        /**
+         * The device's services: until discovery completes, those cached from its last
+         * connection, if any, which describe the device but can't be read or written.
+         *
+         * @return null if neither is known yet.
+         */
+        public List<BluetoothGattService> getServices() {
+            List<BluetoothGattService> cached = mCachedServices;
+            if (cached != null) {
+                return cached;
+            }
+            BluetoothGatt gatt;
+            synchronized (mLock) {
+                gatt = mGatt;
+            }
+            return gatt != null ? gatt.getServices() : null;
+        }
+
+        /**
+         * Times the session has connected.
+         */
+        public int getConnectionCount() {
+            synchronized (mLock) {
+                return mConnectionCount;
+            }
+        }
+
+        @Override
+        public String toString() {
+            synchronized (mLock) {
+                return getAddress() + " " + mState + ", connections: " + mConnectionCount
+                        + ", queue depth: " + mOperations.getDepth();
+            }
+        }
+
+        /**
+         * Whether {@code gatt} is still this session's; callbacks of a closed one are ignored.
+         */
+        private boolean isCurrent(BluetoothGatt gatt) {
+            synchronized (mLock) {
+                return gatt == mGatt;
+            }
+        }
+
+        private final BluetoothGattCallback mCallback = new BluetoothGattCallback() {
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+                if (!isCurrent(gatt)) {
+                    return;
+                }
+                if (newState == BluetoothProfile.STATE_CONNECTED) {
+                    synchronized (mLock) {
+                        mConnectionCount++;
+                        mConnectedNanos = System.nanoTime();
+                        mState = State.DISCOVERING;
+                    }
+                    if (mDiscoveryCache != null) {
+                        loadCachedServices(gatt);
+                    }
+                    notifyState(Session.this, State.DISCOVERING);
+                    // Still needed for the stack to learn the handles, even with a cached tree.
+                    mOperations.attachAndDiscover(gatt, null);
+                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                    onDisconnected(Session.this, status);
+                }
+            }
+
+            @Override
+            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+                if (!isCurrent(gatt)) {
+                    return;
+                }
+                boolean ready = false;
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    if (mDiscoveryCache != null) {
+                        storeServices(gatt.getServices());
+                    }
+                    enableServiceChanged(gatt);
+                    synchronized (mLock) {
+                        // With the lock, so a cached tree loaded late isn't kept after this.
+                        mCachedServices = null;
+                        if (mState == State.DISCOVERING) {
+                            mState = State.READY;
+                            ready = true;
+                        }
+                    }
+                } else {
+                    Log.w(TAG, "onServicesDiscovered received: " + status);
+                }
+                mOperations.onServicesDiscovered(status);
+                if (ready) {
+                    notifyState(Session.this, State.READY);
+                }
+            }
+
+            @Override
+            public void onCharacteristicRead(BluetoothGatt gatt,
+                                             BluetoothGattCharacteristic characteristic,
+                                             int status) {
+                if (!isCurrent(gatt)) {
+                    return;
+                }
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    long connectedNanos;
+                    synchronized (mLock) {
+                        connectedNanos = mConnectedNanos;
+                        mConnectedNanos = 0;
+                    }
+                    if (connectedNanos != 0) {
+                        Log.d(TAG, "First read of " + getAddress() + " "
+                                + (System.nanoTime() - connectedNanos) / 1000000
+                                + " ms after connecting");
+                    }
+                }
+                mListener.onCharacteristicRead(Session.this, characteristic, status);
+                mOperations.onCharacteristicRead(characteristic, status);
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt,
+                                              BluetoothGattCharacteristic characteristic,
+                                              int status) {
+                if (isCurrent(gatt)) {
+                    mOperations.onCharacteristicWrite(characteristic, status);
+                }
+            }
+
+            @Override
+            public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                         int status) {
+                if (isCurrent(gatt)) {
+                    mOperations.onDescriptorRead(descriptor, status);
+                }
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                          int status) {
+                if (isCurrent(gatt)) {
+                    mOperations.onDescriptorWrite(descriptor, status);
+                }
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                if (isCurrent(gatt)) {
+                    mOperations.onMtuChanged(mtu, status);
+                }
+            }
+
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt,
+                                                BluetoothGattCharacteristic characteristic) {
+                if (!isCurrent(gatt)) {
+                    return;
+                }
+                if (Constants.SERVICE_CHANGED_UUID.equals(characteristic.getUuid())) {
+                    Log.d(TAG, "Services of " + getAddress() + " changed, discovering again");
+                    if (mDiscoveryCache != null) {
+                        mCacheExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                mDiscoveryCache.invalidate(getAddress());
+                            }
+                        });
+                    }
+                    mOperations.discoverServices(null);
+                    return;
+                }
+                mListener.onCharacteristicChanged(Session.this, characteristic);
+            }
+        };
+
+        /**
+         * Read the tree cached from the device's last connection, and show it until discovery
+         * completes, unless it completed first or {@code gatt} is no longer the session's.
+         */
+        private void loadCachedServices(final BluetoothGatt gatt) {
+            mCacheExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    List<BluetoothGattService> cached = mDiscoveryCache.load(getAddress());
+                    synchronized (mLock) {
+                        if (cached != null && gatt == mGatt && mState == State.DISCOVERING) {
+                            mCachedServices = cached;
+                        }
+                    }
+                }
+            });
+        }
+
+        private void storeServices(List<BluetoothGattService> services) {
+            final List<BluetoothGattService> discovered = new ArrayList<>(services);
+            mCacheExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mDiscoveryCache.store(getAddress(), discovered)) {
+                        Log.d(TAG, "Service cache of " + getAddress() + " updated");
+                    }
+                }
+            });
+        }
+
+        /**
+         * Ask the server to indicate Service Changed, so a cached tree is never used after the
+         * server's attributes changed.
+         */
+        private void enableServiceChanged(BluetoothGatt gatt) {
+            BluetoothGattService service =
+                    gatt.getService(Constants.GENERIC_ATTRIBUTE_SERVICE_UUID);
+            if (service == null) {
+                return;
+            }
+            BluetoothGattCharacteristic serviceChanged =
+                    service.getCharacteristic(Constants.SERVICE_CHANGED_UUID);
+            if (serviceChanged != null) {
+                mOperations.setNotification(serviceChanged, true, null);
+            }
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    private final Connector mConnector;
+
+    private final BluetoothAdapter mAdapter;
+
+    private final Handler mHandler;
+
+    private final Listener mListener;
+
+    private final GattDiscoveryCache mDiscoveryCache;
+
+    /**
+     * Loads and stores {@link #mDiscoveryCache}'s files, which would otherwise hold up the binder
+     * thread delivering the callbacks. One thread, so a device's loads, stores and invalidations
+     * happen in order; it ends when idle.
+     */
+    private final ExecutorService mCacheExecutor = new ThreadPoolExecutor(0, 1,
+            CACHE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    private final int mMaxConnections;
+
+    private final long mRotationMillis;
+
+    private final LinkedHashMap<String, Session> mSessions = new LinkedHashMap<>();
+
+    /**
+     * Sessions waiting for a slot, in turn.
+     */
+    private final ArrayDeque<Session> mWaiting = new ArrayDeque<>();
+
+    /**
+     * Sessions ended by {@link #disconnect(String)} that still hold their slot until the
+     * disconnection completes.
+     */
+    private final List<Session> mClosing = new ArrayList<>();
+
+    private boolean mStarted;
+
+    private long mRotationCount;
+
+    private final Runnable mSchedule = new Runnable() {
+        @Override
+        public void run() {
+            schedule();
+        }
+    };
+
+    /**
+     * @param handler runs the schedule and the sessions' operation timeouts.
+     * @param cache   where discovered services are kept across connections, or null.
+     */
+    public GattConnectionManager(Context context, BluetoothAdapter adapter, Handler handler,
+                                 GattDiscoveryCache cache, Listener listener) {
+        this(context, adapter, handler, cache, listener, DEFAULT_MAX_CONNECTIONS,
+                DEFAULT_ROTATION_MILLIS);
+    }
+
+    public GattConnectionManager(final Context context, BluetoothAdapter adapter,
+                                 Handler handler, GattDiscoveryCache cache, Listener listener,
+                                 int maxConnections, long rotationMillis) {
+        this(new Connector() {
+            @Override
+            public BluetoothGatt connect(BluetoothDevice device, BluetoothGattCallback callback) {
+                return device.connectGatt(context, false, callback);
+            }
+        }, adapter, handler, cache, listener, maxConnections, rotationMillis);
+    }
+
+    /**
+     * @param connector opens the sessions' connections.
+     */
+    public GattConnectionManager(Connector connector, BluetoothAdapter adapter, Handler handler,
+                                 GattDiscoveryCache cache, Listener listener,
+                                 int maxConnections, long rotationMillis) {
+        mConnector = connector;
+        mAdapter = adapter;
+        mHandler = handler;
+        mDiscoveryCache = cache;
+        mListener = listener;
+        mMaxConnections = maxConnections;
+        mRotationMillis = rotationMillis;
+    }
+
+    /**
+     * Start connecting. Sessions requested before wait until now, so that, for instance, a local
+     * GATT server is set up before any device connects.
+     */
+    public void start() {
+        synchronized (mLock) {
+            mStarted = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Connect to {@code address}, now or once a slot is free, and keep connecting to it until
+     * {@link #disconnect(String)}.
+     *
+     * @return the device's session, or null if the address is invalid.
+     */
+    public Session connect(String address) {
+        Session session;
+        synchronized (mLock) {
+            session = mSessions.get(address);
+            if (session == null) {
+                BluetoothDevice device = mAdapter.getRemoteDevice(address);
+                if (device == null) {
+                    return null;
+                }
+                session = new Session(device);
+                mSessions.put(address, session);
+                mWaiting.add(session);
+            }
+        }
+        schedule();
+        return session;
+    }
+
+    /**
+     * End the session of {@code address}, disconnecting it if connected.
+     */
+    public void disconnect(String address) {
+        Session session;
+        boolean closed = false;
+        synchronized (mLock) {
+            session = mSessions.remove(address);
+            if (session == null) {
+                return;
+            }
+            session.mRequeue = false;
+            if (session.mState == State.WAITING) {
+                mWaiting.remove(session);
+                session.mState = State.CLOSED;
+                closed = true;
+            } else if (session.mState == State.CONNECTING) {
+                // A cancelled attempt may never report back.
+                session.mGatt.disconnect();
+                release(session, 0);
+                closed = true;
+            } else {
+                mClosing.add(session);
+                if (session.mState != State.DISCONNECTING) {
+                    session.mState = State.DISCONNECTING;
+                    session.mGatt.disconnect();
+                }
+            }
+        }
+        if (closed) {
+            session.mOperations.onDisconnected();
+            notifyState(session, State.CLOSED);
+        } else {
+            notifyState(session, State.DISCONNECTING);
+        }
+        schedule();
+    }
+
+    /**
+     * End every session and release its {@link BluetoothGatt} at once, without waiting for the
+     * disconnections to complete. The manager stays started, so devices connected later are
+     * connected as usual.
+     */
+    public void close() {
+        List<Session> sessions;
+        synchronized (mLock) {
+            sessions = new ArrayList<>(mSessions.values());
+            sessions.addAll(mClosing);
+            mSessions.clear();
+            mWaiting.clear();
+            mClosing.clear();
+            mHandler.removeCallbacks(mSchedule);
+            for (Session session : sessions) {
+                session.mRequeue = false;
+                session.mState = State.CLOSED;
+                if (session.mGatt != null) {
+                    session.mGatt.close();
+                    session.mGatt = null;
+                }
+            }
+        }
+        for (Session session : sessions) {
+            session.mOperations.onDisconnected();
+            notifyState(session, State.CLOSED);
+        }
+    }
+
+    /**
+     * @return null if {@code address} has no session.
+     */
+    public Session getSession(String address) {
+        synchronized (mLock) {
+            return mSessions.get(address);
+        }
+    }
+
+    public List<Session> getSessions() {
+        synchronized (mLock) {
+            return new ArrayList<>(mSessions.values());
+        }
+    }
+
+    /**
+     * Sessions holding a slot, connected or not yet.
+     */
+    public int getActiveCount() {
+        synchronized (mLock) {
+            return countActive();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (mLock) {
+            builder.append("sessions: ").append(mSessions.size())
+                    .append(" active: ").append(countActive())
+                    .append(" waiting: ").append(mWaiting.size())
+                    .append(" rotations: ").append(mRotationCount);
+            for (Session session : mSessions.values()) {
+                builder.append('\n').append(session);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Must hold {@link #mLock}.
+     */
+    private int countActive() {
+        int active = mClosing.size();
+        for (Session session : mSessions.values()) {
+            if (session.mGatt != null) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Hand free slots to the sessions waiting longest, time out connection attempts, and rotate
+     * a slot if its holder has had it long enough.
+     */
+    private void schedule() {
+        List<Session> changed = new ArrayList<>();
+        List<State> states = new ArrayList<>();
+        synchronized (mLock) {
+            mHandler.removeCallbacks(mSchedule);
+            if (!mStarted) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            Session rotate = null;
+            for (Session session : mSessions.values()) {
+                if (session.mState == State.CONNECTING
+                        && now - session.mSlotMillis > CONNECT_TIMEOUT_MILLIS) {
+                    Log.w(TAG, "Timed out connecting to " + session.getAddress());
+                    // No callback comes once closed, so the slot is freed here.
+                    session.mGatt.disconnect();
+                    release(session, RETRY_DELAY_MILLIS);
+                    changed.add(session);
+                    states.add(session.mState);
+                } else if (session.mState == State.READY
+                        && now - session.mSlotMillis > mRotationMillis
+                        && session.mOperations.isIdle()
+                        && (rotate == null || session.mSlotMillis < rotate.mSlotMillis)) {
+                    rotate = session;
+                }
+            }
+
+            int active = countActive();
+            int skipped = 0;
+            while (active < mMaxConnections && skipped < mWaiting.size()) {
+                Session session = mWaiting.poll();
+                if (session.mRetryMillis > now) {
+                    mWaiting.add(session);
+                    skipped++;
+                    continue;
+                }
+                session.mGatt = mConnector.connect(session.mDevice, session.mCallback);
+                if (session.mGatt == null) {
+                    Log.w(TAG, "Unable to connect to " + session.getAddress());
+                    session.mRetryMillis = now + RETRY_DELAY_MILLIS;
+                    mWaiting.add(session);
+                    skipped++;
+                    continue;
+                }
+                session.mState = State.CONNECTING;
+                session.mSlotMillis = now;
+                changed.add(session);
+                states.add(State.CONNECTING);
+                active++;
+            }
+
+            if (rotate != null && active == mMaxConnections && mWaiting.size() > skipped) {
+                Log.d(TAG, "Rotating out " + rotate.getAddress());
+                mRotationCount++;
+                rotate.mState = State.DISCONNECTING;
+                rotate.mGatt.disconnect();
+                changed.add(rotate);
+                states.add(State.DISCONNECTING);
+            }
+
+            boolean connecting = false;
+            for (Session session : mSessions.values()) {
+                connecting |= session.mState == State.CONNECTING;
+            }
+            if (connecting || !mWaiting.isEmpty()) {
+                mHandler.postDelayed(mSchedule, CHECK_INTERVAL_MILLIS);
+            }
+        }
+        for (int i = 0; i < changed.size(); i++) {
+            State state = states.get(i);
+            if (state == State.WAITING) {
+                // Queued operations wait for the next attempt.
+                changed.get(i).mOperations.detach();
+            }
+            notifyState(changed.get(i), state);
+        }
+    }
+
+    /**
+     * Drop the connection of a session whose operation got no completion, since the stack may
+     * refuse anything else on it. It goes back in line and reconnects, keeping its queue.
+     */
+    private void onOperationTimeout(Session session) {
+        synchronized (mLock) {
+            if (session.mState != State.DISCOVERING && session.mState != State.READY) {
+                return;
+            }
+            Log.w(TAG, "Operation timed out on " + session.getAddress() + ", reconnecting");
+            session.mState = State.DISCONNECTING;
+            session.mGatt.disconnect();
+        }
+        notifyState(session, State.DISCONNECTING);
+    }
+
+    private void onDisconnected(Session session, int status) {
+        State state;
+        synchronized (mLock) {
+            boolean connected = session.mState != State.CONNECTING;
+            if (!connected || status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "Lost " + session.getAddress() + " while " + session.mState
+                        + ", status: " + status);
+            }
+            // A failed attempt is retried after a delay; a device that was connected may take
+            // its turn again at once.
+            release(session, connected ? 0 : RETRY_DELAY_MILLIS);
+            state = session.mState;
+        }
+        if (state == State.WAITING) {
+            session.mOperations.detach();
+        } else {
+            session.mOperations.onDisconnected();
+        }
+        Log.d(TAG, "GATT operations of " + session.getAddress() + " " + session.mOperations);
+        notifyState(session, state);
+        schedule();
+    }
+
+    /**
+     * Close the session's {@link BluetoothGatt}, freeing its slot, and put it back in line if
+     * still wanted. Every disconnected {@link BluetoothGatt} is closed: the stack only has a few
+     * client registrations to go around. Must hold {@link #mLock}.
+     */
+    private void release(Session session, long retryDelayMillis) {
+        session.mGatt.close();
+        session.mGatt = null;
+        mClosing.remove(session);
+        session.mCachedServices = null;
+        if (session.mRequeue) {
+            session.mState = State.WAITING;
+            session.mRetryMillis = SystemClock.uptimeMillis() + retryDelayMillis;
+            mWaiting.add(session);
+        } else {
+            session.mState = State.CLOSED;
+        }
+    }
+
+    private void notifyState(Session session, State state) {
+        mListener.onStateChanged(session, state);
+    }
+}
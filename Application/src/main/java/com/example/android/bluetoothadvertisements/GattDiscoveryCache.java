@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The service, characteristic and descriptor tree discovered on each device, kept in a small
+ * binary file per device address.
+ *
+ * Discovery is one of the slowest steps of connecting. With the tree of the last connection at
+ * hand, the services a device offers are known as soon as it reconnects, while discovery runs in
+ * the background; the stack still needs it to learn the attribute handles. Each file carries a
+ * hash of the tree, so a discovery that finds the same tree doesn't rewrite it, and one that
+ * finds a different tree replaces it. A Service Changed indication invalidates the entry.
+ *
+ * File layout, big-endian: magic, format version, schema hash, then per service its UUID, type
+ * and characteristics, per characteristic its UUID, properties, permissions and descriptors, and
+ * per descriptor its UUID and permissions. Included services are not kept.
+ */
+public class GattDiscoveryCache {
+
+    private static final String TAG = GattDiscoveryCache.class.getSimpleName();
+
+    private static final int MAGIC = 0x47445343;
+
+    private static final int VERSION = 1;
+
+    private static final String SUFFIX = ".gatt";
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File mDirectory;
+
+    /**
+     * @param directory where the files are kept, typically under the app's cache directory.
+     */
+    public GattDiscoveryCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * The tree last stored for {@code address}, rebuilt as new, unattached objects.
+     *
+     * @return null if nothing valid is stored.
+     */
+    public synchronized List<BluetoothGattService> load(String address) {
+        File file = getFile(address);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                return null;
+            }
+            in.readLong();
+            int serviceCount = in.readUnsignedShort();
+            List<BluetoothGattService> services = new ArrayList<>(serviceCount);
+            for (int i = 0; i < serviceCount; i++) {
+                BluetoothGattService service =
+                        new BluetoothGattService(readUuid(in), in.readUnsignedByte());
+                int characteristicCount = in.readUnsignedShort();
+                for (int j = 0; j < characteristicCount; j++) {
+                    BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+                            readUuid(in), in.readUnsignedByte(), in.readUnsignedShort());
+                    int descriptorCount = in.readUnsignedByte();
+                    for (int k = 0; k < descriptorCount; k++) {
+                        characteristic.addDescriptor(
+                                new BluetoothGattDescriptor(readUuid(in), in.readUnsignedShort()));
+                    }
+                    service.addCharacteristic(characteristic);
+                }
+                services.add(service);
+            }
+            return services;
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable cache of " + address, e);
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Store the tree discovered on {@code address}, unless the same tree is stored already.
+     *
+     * @return true if the stored tree changed.
+     */
+    public synchronized boolean store(String address, List<BluetoothGattService> services) {
+        long hash = schemaHash(services);
+        if (readHash(address) == hash) {
+            return false;
+        }
+
+        File file = getFile(address);
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            mDirectory.mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(hash);
+            out.writeShort(services.size());
+            for (BluetoothGattService service : services) {
+                writeUuid(out, service.getUuid());
+                out.writeByte(service.getType());
+                List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+                out.writeShort(characteristics.size());
+                for (BluetoothGattCharacteristic characteristic : characteristics) {
+                    writeUuid(out, characteristic.getUuid());
+                    out.writeByte(characteristic.getProperties());
+                    out.writeShort(characteristic.getPermissions());
+                    List<BluetoothGattDescriptor> descriptors = characteristic.getDescriptors();
+                    out.writeByte(descriptors.size());
+                    for (BluetoothGattDescriptor descriptor : descriptors) {
+                        writeUuid(out, descriptor.getUuid());
+                        out.writeShort(descriptor.getPermissions());
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            // Readers see the old file or the new one, never half of one.
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can't rename " + temp);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't store cache of " + address, e);
+            temp.delete();
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Forget the tree of {@code address}, after a Service Changed indication.
+     */
+    public synchronized void invalidate(String address) {
+        getFile(address).delete();
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the UUIDs, types, properties and permissions of the tree, in
+     * order.
+     */
+    public static long schemaHash(List<BluetoothGattService> services) {
+        long hash = FNV_OFFSET_BASIS;
+        for (BluetoothGattService service : services) {
+            hash = hashUuid(hash, service.getUuid());
+            hash = hashInt(hash, service.getType());
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                hash = hashUuid(hash, characteristic.getUuid());
+                hash = hashInt(hash, characteristic.getProperties());
+                hash = hashInt(hash, characteristic.getPermissions());
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    hash = hashUuid(hash, descriptor.getUuid());
+                    hash = hashInt(hash, descriptor.getPermissions());
+                }
+            }
+            // Keeps a characteristic from hashing the same at the end of one service as at
+            // the start of the next.
+            hash = hashInt(hash, -1);
+        }
+        return hash;
+    }
+
+    /**
+     * @return the hash stored for {@code address}, or 0 if there is none.
+     */
+    private long readHash(String address) {
+        File file = getFile(address);
+        if (!file.exists()) {
+            return 0;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                return 0;
+            }
+            return in.readLong();
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private File getFile(String address) {
+        return new File(mDirectory, address.replace(":", "") + SUFFIX);
+    }
+
+    private static UUID readUuid(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static long hashUuid(long hash, UUID uuid) {
+        hash = hashLong(hash, uuid.getMostSignificantBits());
+        return hashLong(hash, uuid.getLeastSignificantBits());
+    }
+
+    private static long hashLong(long hash, long value) {
+        hash = hashInt(hash, (int) (value >>> 32));
+        return hashInt(hash, (int) value);
+    }
+
+    private static long hashInt(long hash, int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            hash ^= (value >>> shift) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing left to do.
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers Bluetooth events to subscribers in this process, without the cross-process round trip
+ * of a system broadcast.
+ *
+ * Subscribers register for an event class and receive events of that class on their own
+ * {@link Handler}. Each subscription has a bounded queue, and what is waiting in it is delivered
+ * as one batch, so a burst of data events costs one message to the subscriber's thread instead of
+ * one per event. When a queue is full, the subscription's {@link Overflow} policy decides whether
+ * the oldest event or the new one is dropped, and {@link #publish} reports the drop so a
+ * publisher can back off.
+ */
+public class GattEventBus {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    public static final int DEFAULT_MAX_BATCH = 64;
+
+    /**
+     * What a full subscription does with a new event.
+     */
+    public enum Overflow {
+        /**
+         * Drop the oldest waiting event, for data where the latest matters most.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new event, for state changes where no event may be lost unnoticed: the
+         * publisher learns of the drop from {@link #publish}, while the subscriber still has
+         * every event before it.
+         */
+        DROP_NEWEST
+    }
+
+    /**
+     * Receives batches of events, on the subscription's handler.
+     */
+    public interface Subscriber<E> {
+
+        /**
+         * @param events in the order they were published. The list is not reused.
+         */
+        void onEvents(List<E> events);
+    }
+
+    /**
+     * A characteristic value received from a device.
+     */
+    public static final class DataEvent {
+
+        public final String address;
+
+        public final UUID uuid;
+
+        /**
+         * Shared with other subscribers; must not be modified.
+         */
+        public final byte[] value;
+
+        public final long timestampNanos;
+
+        public DataEvent(String address, UUID uuid, byte[] value) {
+            this.address = address;
+            this.uuid = uuid;
+            this.value = value;
+            this.timestampNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * A device connected or disconnected.
+     */
+    public static final class ConnectionEvent {
+
+        public final String address;
+
+        /**
+         * A {@code BluetoothProfile.STATE_*} constant.
+         */
+        public final int state;
+
+        public ConnectionEvent(String address, int state) {
+            this.address = address;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Advertising failed to start or timed out.
+     */
+    public static final class AdvertisingFailedEvent {
+
+        /**
+         * An {@code AdvertiseCallback.ADVERTISE_FAILED_*} code, or
+         * {@link AdvertiserService#ADVERTISING_TIMED_OUT}.
+         */
+        public final int errorCode;
+
+        public AdvertisingFailedEvent(int errorCode) {
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * One subscriber's queue. Returned by {@link #subscribe} to unsubscribe with.
+     */
+    public static final class Subscription<E> implements Runnable {
+
+        private final Class<E> mType;
+
+        private final Subscriber<E> mSubscriber;
+
+        private final Handler mHandler;
+
+        private final int mCapacity;
+
+        private final Overflow mOverflow;
+
+        private final ArrayDeque<E> mQueue = new ArrayDeque<>();
+
+        private boolean mScheduled;
+
+        private boolean mActive = true;
+
+        private long mDroppedCount;
+
+        private Subscription(Class<E> type, Subscriber<E> subscriber, Handler handler,
+                             int capacity, Overflow overflow) {
+            mType = type;
+            mSubscriber = subscriber;
+            mHandler = handler;
+            mCapacity = capacity;
+            mOverflow = overflow;
+        }
+
+        /**
+         * Events dropped because the queue was full.
+         */
+        public synchronized long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        /**
+         * @return false if an event was dropped.
+         */
+        private boolean offer(Object event) {
+            E typed = mType.cast(event);
+            boolean dropped = false;
+            boolean schedule;
+            synchronized (this) {
+                if (!mActive) {
+                    return true;
+                }
+                if (mQueue.size() == mCapacity) {
+                    mDroppedCount++;
+                    dropped = true;
+                    if (mOverflow == Overflow.DROP_NEWEST) {
+                        return false;
+                    }
+                    mQueue.poll();
+                }
+                mQueue.add(typed);
+                schedule = !mScheduled;
+                mScheduled = true;
+            }
+            if (schedule) {
+                mHandler.post(this);
+            }
+            return !dropped;
+        }
+
+        /**
+         * Deliver a batch of what is waiting, on the subscriber's handler.
+         */
+        @Override
+        public void run() {
+            List<E> batch;
+            boolean more;
+            synchronized (this) {
+                if (!mActive) {
+                    return;
+                }
+                int count = Math.min(mQueue.size(), DEFAULT_MAX_BATCH);
+                batch = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    batch.add(mQueue.poll());
+                }
+                more = !mQueue.isEmpty();
+                mScheduled = more;
+            }
+            if (more) {
+                // Let other messages on the handler's thread run between batches.
+                mHandler.post(this);
+            }
+            if (!batch.isEmpty()) {
+                mSubscriber.onEvents(batch);
+            }
+        }
+
+        private synchronized void cancel() {
+            mActive = false;
+            mQueue.clear();
+        }
+    }
+
+    private static final GattEventBus sDefault = new GattEventBus();
+
+    private final CopyOnWriteArrayList<Subscription<?>> mSubscriptions =
+            new CopyOnWriteArrayList<>();
+
+    /**
+     * The bus shared by the app's services and UI.
+     */
+    public static GattEventBus getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Receive events of {@code type} on the main thread, with {@link #DEFAULT_CAPACITY} and the
+     * type's {@link #defaultOverflow}.
+     */
+    public <E> Subscription<E> subscribe(Class<E> type, Subscriber<E> subscriber) {
+        return subscribe(type, subscriber, new Handler(Looper.getMainLooper()), DEFAULT_CAPACITY,
+                defaultOverflow(type));
+    }
+
+    /**
+     * {@link Overflow#DROP_OLDEST} for {@link DataEvent}s, where a newer value supersedes an
+     * older one; {@link Overflow#DROP_NEWEST} for everything else, such as connection changes
+     * and advertising failures, which aren't superseded and whose publishers are told of a drop.
+     */
+    public static Overflow defaultOverflow(Class<?> type) {
+        return DataEvent.class.isAssignableFrom(type) ? Overflow.DROP_OLDEST : Overflow.DROP_NEWEST;
+    }
+
+    /**
+     * @param handler  delivers the batches.
+     * @param capacity most events waiting for this subscriber.
+     */
+    public <E> Subscription<E> subscribe(Class<E> type, Subscriber<E> subscriber,
+                                         Handler handler, int capacity, Overflow overflow) {
+        Subscription<E> subscription =
+                new Subscription<E>(type, subscriber, handler, capacity, overflow);
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Stop delivering to {@code subscription}; events still waiting are dropped.
+     */
+    public void unsubscribe(Subscription<?> subscription) {
+        if (subscription != null) {
+            mSubscriptions.remove(subscription);
+            subscription.cancel();
+        }
+    }
+
+    /**
+     * Whether anything subscribed to {@code type}, so a publisher can skip building events.
+     */
+    public boolean hasSubscribers(Class<?> type) {
+        for (Subscription<?> subscription : mSubscriptions) {
+            if (subscription.mType.isAssignableFrom(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queue {@code event} for every subscriber of its class. Never blocks.
+     *
+     * @return false if a subscriber's queue was full and an event was dropped.
+     */
+    public boolean publish(Object event) {
+        boolean accepted = true;
+        for (Subscription<?> subscription : mSubscriptions) {
+            if (subscription.mType.isInstance(event)) {
+                accepted &= subscription.offer(event);
+            }
+        }
+        return accepted;
+    }
+}
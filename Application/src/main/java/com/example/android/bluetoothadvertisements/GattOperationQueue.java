@@ -0,0 +1,842 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * GATT client operations, run one at a time.
+ *
+ * {@link BluetoothGatt} accepts only one outstanding operation and refuses, or silently loses,
+ * any issued before the previous one completed. Operations queued here are started in order, each
+ * once the previous one has completed through the matching {@code BluetoothGattCallback} method,
+ * which must be forwarded to this class.
+ *
+ * An operation the stack refuses to start is retried after a short delay, up to a few attempts.
+ * One that gets no completion within the timeout fails with {@link #STATUS_TIMEOUT} and is not
+ * issued again: it may have taken effect, a late completion would be taken for the new attempt's,
+ * and the stack may stay busy with it until the connection is dropped. So nothing more runs on
+ * that {@link BluetoothGatt}; the {@link TimeoutListener} is told, to reconnect, and the
+ * operations still waiting run once the queue is attached again. Operations queued together as a {@link Batch} run back to back and report once when all are
+ * done. The time from queueing to completion is recorded per operation type.
+ */
+public class GattOperationQueue {
+
+    private static final String TAG = GattOperationQueue.class.getSimpleName();
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    static final long RETRY_DELAY_MILLIS = 100;
+
+    /**
+     * Status of an operation that got no completion in time. Whether it took effect is unknown.
+     */
+    public static final int STATUS_TIMEOUT = -1;
+
+    /**
+     * Status of an operation the stack refused to start on every attempt.
+     */
+    public static final int STATUS_NOT_STARTED = -2;
+
+    /**
+     * Status of an operation still queued when the connection was lost.
+     */
+    public static final int STATUS_DISCONNECTED = -3;
+
+    /**
+     * Status of an operation kept across a reconnection whose attribute the device no longer has.
+     */
+    public static final int STATUS_NOT_FOUND = -4;
+
+    public enum Type {
+        DISCOVER_SERVICES,
+        READ_CHARACTERISTIC,
+        WRITE_CHARACTERISTIC,
+        READ_DESCRIPTOR,
+        WRITE_DESCRIPTOR,
+        REQUEST_MTU
+    }
+
+    /**
+     * Told when an operation completed. Called without the queue's lock held.
+     */
+    public interface Callback {
+
+        /**
+         * @param status a {@link BluetoothGatt} status, or one of this class's.
+         */
+        void onComplete(Operation operation, int status);
+    }
+
+    /**
+     * Told when an operation timed out and the queue stopped using its {@link BluetoothGatt}.
+     * Called on the queue's handler, after the operation's own callback.
+     */
+    public interface TimeoutListener {
+
+        /**
+         * The connection should be dropped, and the queue attached to a new one.
+         */
+        void onTimeout(Operation operation);
+    }
+
+    /**
+     * The part of {@link BluetoothGatt} the queue uses, so operations can also be run by
+     * something other than the stack.
+     */
+    public interface Client {
+
+        boolean discoverServices();
+
+        boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+        boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+
+        boolean readDescriptor(BluetoothGattDescriptor descriptor);
+
+        boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+        boolean requestMtu(int mtu);
+
+        boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                              boolean enabled);
+
+        List<BluetoothGattService> getServices();
+    }
+
+    /**
+     * Told when every operation of a batch completed.
+     */
+    public interface BatchCallback {
+
+        /**
+         * @param failed the number of operations that didn't complete with GATT_SUCCESS.
+         */
+        void onComplete(Batch batch, int failed);
+    }
+
+    /**
+     * One queued operation.
+     */
+    public static final class Operation {
+
+        private final Type mType;
+
+        private BluetoothGattCharacteristic mCharacteristic;
+
+        private BluetoothGattDescriptor mDescriptor;
+
+        private final byte[] mWriteValue;
+
+        private final int mArgument;
+
+        private final Callback mCallback;
+
+        private Batch mBatch;
+
+        private long mQueuedNanos;
+
+        /**
+         * On the handler's clock, which its timeout runs by.
+         */
+        private long mStartedMillis;
+
+        private int mAttempts;
+
+        private int mStatus;
+
+        private byte[] mResult;
+
+        private Operation(Type type, BluetoothGattCharacteristic characteristic,
+                          BluetoothGattDescriptor descriptor, byte[] writeValue, int argument,
+                          Callback callback) {
+            mType = type;
+            mCharacteristic = characteristic;
+            mDescriptor = descriptor;
+            mWriteValue = writeValue;
+            mArgument = argument;
+            mCallback = callback;
+        }
+
+        public Type getType() {
+            return mType;
+        }
+
+        /**
+         * The characteristic operated on; after a reconnection, the new connection's.
+         */
+        public BluetoothGattCharacteristic getCharacteristic() {
+            return mCharacteristic;
+        }
+
+        public BluetoothGattDescriptor getDescriptor() {
+            return mDescriptor;
+        }
+
+        /**
+         * The value read, or the MTU granted as one byte pair, once complete.
+         */
+        public byte[] getResult() {
+            return mResult;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        /**
+         * Hand the operation to the stack.
+         *
+         * @return false if the stack refused it.
+         */
+        boolean start(Client gatt) {
+            mAttempts++;
+            mStartedMillis = SystemClock.uptimeMillis();
+            switch (mType) {
+                case DISCOVER_SERVICES:
+                    return gatt.discoverServices();
+                case READ_CHARACTERISTIC:
+                    return gatt.readCharacteristic(mCharacteristic);
+                case WRITE_CHARACTERISTIC:
+                    // The characteristic is shared, so its value is only set when it is written.
+                    mCharacteristic.setValue(mWriteValue);
+                    mCharacteristic.setWriteType(mArgument);
+                    return gatt.writeCharacteristic(mCharacteristic);
+                case READ_DESCRIPTOR:
+                    return gatt.readDescriptor(mDescriptor);
+                case WRITE_DESCRIPTOR:
+                    mDescriptor.setValue(mWriteValue);
+                    return gatt.writeDescriptor(mDescriptor);
+                case REQUEST_MTU:
+                    return gatt.requestMtu(mArgument);
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Point the operation at the same attribute among {@code services}: by service UUID and
+         * instance, characteristic UUID and instance, and descriptor UUID.
+         *
+         * @return false if the attribute isn't there.
+         */
+        boolean resolve(List<BluetoothGattService> services) {
+            if (mDescriptor != null) {
+                BluetoothGattCharacteristic characteristic =
+                        find(services, mDescriptor.getCharacteristic());
+                BluetoothGattDescriptor descriptor = characteristic != null
+                        ? characteristic.getDescriptor(mDescriptor.getUuid()) : null;
+                if (descriptor == null) {
+                    return false;
+                }
+                mDescriptor = descriptor;
+            } else if (mCharacteristic != null) {
+                BluetoothGattCharacteristic characteristic = find(services, mCharacteristic);
+                if (characteristic == null) {
+                    return false;
+                }
+                mCharacteristic = characteristic;
+            }
+            return true;
+        }
+
+        private static BluetoothGattCharacteristic find(List<BluetoothGattService> services,
+                                                        BluetoothGattCharacteristic old) {
+            if (old == null) {
+                return null;
+            }
+            BluetoothGattService oldService = old.getService();
+            for (BluetoothGattService service : services) {
+                if (oldService != null && (!service.getUuid().equals(oldService.getUuid())
+                        || service.getInstanceId() != oldService.getInstanceId())) {
+                    continue;
+                }
+                for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                    if (characteristic.getUuid().equals(old.getUuid())
+                            && characteristic.getInstanceId() == old.getInstanceId()) {
+                        return characteristic;
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return mType + (mCharacteristic != null ? " " + mCharacteristic.getUuid() : "")
+                    + (mDescriptor != null ? " " + mDescriptor.getUuid() : "");
+        }
+    }
+
+    /**
+     * Operations queued together, with builder methods like the queue's.
+     */
+    public static final class Batch {
+
+        private final List<Operation> mOperations = new ArrayList<>();
+
+        private BatchCallback mCallback;
+
+        private int mRemaining;
+
+        private int mFailed;
+
+        public Batch readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return add(new Operation(Type.READ_CHARACTERISTIC, characteristic, null, null, 0,
+                    null));
+        }
+
+        public Batch writeCharacteristic(BluetoothGattCharacteristic characteristic,
+                                         byte[] value, int writeType) {
+            return add(new Operation(Type.WRITE_CHARACTERISTIC, characteristic, null, value,
+                    writeType, null));
+        }
+
+        public Batch readDescriptor(BluetoothGattDescriptor descriptor) {
+            return add(new Operation(Type.READ_DESCRIPTOR, null, descriptor, null, 0, null));
+        }
+
+        public Batch writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+            return add(new Operation(Type.WRITE_DESCRIPTOR, null, descriptor, value, 0, null));
+        }
+
+        public List<Operation> getOperations() {
+            return mOperations;
+        }
+
+        private Batch add(Operation operation) {
+            operation.mBatch = this;
+            mOperations.add(operation);
+            return this;
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    private final Handler mHandler;
+
+    private final long mTimeoutMillis;
+
+    private final int mMaxAttempts;
+
+    private final TimeoutListener mTimeoutListener;
+
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<>();
+
+    private final EnumMap<Type, LatencyHistogram> mLatency = new EnumMap<>(Type.class);
+
+    private Client mGatt;
+
+    private Operation mCurrent;
+
+    private long mCompletedCount;
+
+    private long mFailedCount;
+
+    private long mRetryCount;
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Operation operation;
+            synchronized (mLock) {
+                operation = mCurrent;
+                if (operation == null) {
+                    return;
+                }
+                // A timeout already running when its operation completed must not hit the next.
+                long remainingMillis = mTimeoutMillis
+                        - (SystemClock.uptimeMillis() - operation.mStartedMillis);
+                if (remainingMillis > 0) {
+                    mHandler.postDelayed(this, remainingMillis);
+                    return;
+                }
+                Log.w(TAG, "Timed out: " + operation);
+                mCurrent = null;
+                // The stack may still count it as outstanding, refusing everything after it.
+                mGatt = null;
+                mHandler.removeCallbacks(mNext);
+            }
+            finish(operation, STATUS_TIMEOUT, null);
+            if (mTimeoutListener != null) {
+                mTimeoutListener.onTimeout(operation);
+            }
+        }
+    };
+
+    private final Runnable mNext = new Runnable() {
+        @Override
+        public void run() {
+            next();
+        }
+    };
+
+    /**
+     * @param handler runs timeouts and delayed retries.
+     */
+    public GattOperationQueue(Handler handler) {
+        this(handler, null);
+    }
+
+    /**
+     * @param timeoutListener may be null, leaving the queue stalled after a timeout until it is
+     *                        attached again.
+     */
+    public GattOperationQueue(Handler handler, TimeoutListener timeoutListener) {
+        this(handler, timeoutListener, DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * @param maxAttempts times an operation the stack refuses is tried before it fails.
+     */
+    public GattOperationQueue(Handler handler, TimeoutListener timeoutListener,
+                              long timeoutMillis, int maxAttempts) {
+        mHandler = handler;
+        mTimeoutListener = timeoutListener;
+        mTimeoutMillis = timeoutMillis;
+        mMaxAttempts = maxAttempts;
+        for (Type type : Type.values()) {
+            mLatency.put(type, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Run operations on {@code gatt} from now on, once it is connected.
+     */
+    public void attach(BluetoothGatt gatt) {
+        attach(wrap(gatt));
+    }
+
+    public void attach(Client gatt) {
+        synchronized (mLock) {
+            mGatt = gatt;
+        }
+        next();
+    }
+
+    /**
+     * Like {@link #attach}, with service discovery queued ahead of everything waiting, since
+     * operations kept from an earlier connection by {@link #detach} need the handles it finds.
+     * Once it succeeds they are pointed at the new connection's attributes, and those the device
+     * no longer has fail with {@link #STATUS_NOT_FOUND}.
+     */
+    public Operation attachAndDiscover(BluetoothGatt gatt, Callback callback) {
+        return attachAndDiscover(wrap(gatt), callback);
+    }
+
+    public Operation attachAndDiscover(Client gatt, Callback callback) {
+        Operation operation = new Operation(Type.DISCOVER_SERVICES, null, null, null, 0,
+                callback);
+        synchronized (mLock) {
+            mGatt = gatt;
+            operation.mQueuedNanos = System.nanoTime();
+            mPending.addFirst(operation);
+        }
+        next();
+        return operation;
+    }
+
+    /**
+     * Stop running operations on a {@link BluetoothGatt} that lost its connection, keeping those
+     * not started yet for the next {@link #attach}. The one running fails with
+     * {@link #STATUS_DISCONNECTED}, since whether it took effect is unknown.
+     */
+    public void detach() {
+        Operation dropped;
+        synchronized (mLock) {
+            mGatt = null;
+            dropped = mCurrent;
+            mCurrent = null;
+            mHandler.removeCallbacks(mTimeout);
+            mHandler.removeCallbacks(mNext);
+        }
+        if (dropped != null) {
+            finish(dropped, STATUS_DISCONNECTED, null);
+        }
+    }
+
+    /**
+     * Fail everything queued with {@link #STATUS_DISCONNECTED}, once the connection ends for
+     * good. Operations queued later wait for the next {@link #attach}.
+     */
+    public void onDisconnected() {
+        List<Operation> dropped = new ArrayList<>();
+        synchronized (mLock) {
+            mGatt = null;
+            if (mCurrent != null) {
+                dropped.add(mCurrent);
+                mCurrent = null;
+            }
+            dropped.addAll(mPending);
+            mPending.clear();
+            mHandler.removeCallbacks(mTimeout);
+            mHandler.removeCallbacks(mNext);
+        }
+        for (Operation operation : dropped) {
+            finish(operation, STATUS_DISCONNECTED, null);
+        }
+    }
+
+    public Operation discoverServices(Callback callback) {
+        return enqueue(new Operation(Type.DISCOVER_SERVICES, null, null, null, 0, callback));
+    }
+
+    public Operation readCharacteristic(BluetoothGattCharacteristic characteristic,
+                                        Callback callback) {
+        return enqueue(new Operation(Type.READ_CHARACTERISTIC, characteristic, null, null, 0,
+                callback));
+    }
+
+    /**
+     * @param writeType one of {@code BluetoothGattCharacteristic.WRITE_TYPE_*}.
+     */
+    public Operation writeCharacteristic(BluetoothGattCharacteristic characteristic,
+                                         byte[] value, int writeType, Callback callback) {
+        return enqueue(new Operation(Type.WRITE_CHARACTERISTIC, characteristic, null, value,
+                writeType, callback));
+    }
+
+    public Operation readDescriptor(BluetoothGattDescriptor descriptor, Callback callback) {
+        return enqueue(new Operation(Type.READ_DESCRIPTOR, null, descriptor, null, 0, callback));
+    }
+
+    public Operation writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value,
+                                     Callback callback) {
+        return enqueue(new Operation(Type.WRITE_DESCRIPTOR, null, descriptor, value, 0,
+                callback));
+    }
+
+    public Operation requestMtu(int mtu, Callback callback) {
+        return enqueue(new Operation(Type.REQUEST_MTU, null, null, null, mtu, callback));
+    }
+
+    /**
+     * Turn notifications of {@code characteristic} on or off: locally at once, and on the server
+     * by queueing a write of its Client Characteristic Configuration descriptor. Indications are
+     * enabled instead for a characteristic that only supports those.
+     *
+     * @return the descriptor write, or null if the characteristic has no such descriptor.
+     */
+    public Operation setNotification(BluetoothGattCharacteristic characteristic,
+                                     boolean enabled, Callback callback) {
+        Client gatt;
+        synchronized (mLock) {
+            gatt = mGatt;
+        }
+        if (gatt != null) {
+            gatt.setCharacteristicNotification(characteristic, enabled);
+        }
+        BluetoothGattDescriptor descriptor =
+                characteristic.getDescriptor(Constants.UUID_CLIENT_CHARACTERISTIC_CONFIG);
+        if (descriptor == null) {
+            return null;
+        }
+        byte[] value;
+        if (!enabled) {
+            value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        } else if ((characteristic.getProperties()
+                & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0) {
+            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        } else {
+            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        }
+        return writeDescriptor(descriptor, value, callback);
+    }
+
+    /**
+     * Queue all operations of {@code batch} back to back, with nothing queued in between.
+     */
+    public void submit(Batch batch, BatchCallback callback) {
+        synchronized (mLock) {
+            batch.mCallback = callback;
+            batch.mRemaining = batch.mOperations.size();
+            long now = System.nanoTime();
+            for (Operation operation : batch.mOperations) {
+                operation.mQueuedNanos = now;
+                mPending.add(operation);
+            }
+        }
+        if (batch.mOperations.isEmpty() && callback != null) {
+            callback.onComplete(batch, 0);
+        }
+        next();
+    }
+
+    /**
+     * Read every characteristic in {@code characteristics}, as one batch.
+     */
+    public Batch readAll(List<BluetoothGattCharacteristic> characteristics,
+                         BatchCallback callback) {
+        Batch batch = new Batch();
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+            batch.readCharacteristic(characteristic);
+        }
+        submit(batch, callback);
+        return batch;
+    }
+
+    // Completions, forwarded from BluetoothGattCallback.
+
+    public void onServicesDiscovered(int status) {
+        complete(Type.DISCOVER_SERVICES, null, status, null);
+    }
+
+    public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+        complete(Type.READ_CHARACTERISTIC, characteristic, status, characteristic.getValue());
+    }
+
+    public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        complete(Type.WRITE_CHARACTERISTIC, characteristic, status, null);
+    }
+
+    public void onDescriptorRead(BluetoothGattDescriptor descriptor, int status) {
+        complete(Type.READ_DESCRIPTOR, descriptor, status, descriptor.getValue());
+    }
+
+    public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        complete(Type.WRITE_DESCRIPTOR, descriptor, status, null);
+    }
+
+    public void onMtuChanged(int mtu, int status) {
+        complete(Type.REQUEST_MTU, null, status, new byte[]{(byte) mtu, (byte) (mtu >> 8)});
+    }
+
+    /**
+     * Operations waiting, not counting the one running.
+     */
+    public int getDepth() {
+        synchronized (mLock) {
+            return mPending.size();
+        }
+    }
+
+    /**
+     * Whether no operation is waiting or running.
+     */
+    public boolean isIdle() {
+        synchronized (mLock) {
+            return mCurrent == null && mPending.isEmpty();
+        }
+    }
+
+    /**
+     * Time from queueing to completion of operations of {@code type}.
+     */
+    public LatencyHistogram getLatency(Type type) {
+        return mLatency.get(type);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (mLock) {
+            builder.append("depth: ").append(mPending.size())
+                    .append(" completed: ").append(mCompletedCount)
+                    .append(" failed: ").append(mFailedCount)
+                    .append(" retries: ").append(mRetryCount);
+        }
+        for (Type type : Type.values()) {
+            LatencyHistogram latency = mLatency.get(type);
+            if (latency.getCount() > 0) {
+                builder.append('\n').append(type).append(": ").append(latency);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static Client wrap(final BluetoothGatt gatt) {
+        return new Client() {
+            @Override
+            public boolean discoverServices() {
+                return gatt.discoverServices();
+            }
+
+            @Override
+            public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+                return gatt.readCharacteristic(characteristic);
+            }
+
+            @Override
+            public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+                return gatt.writeCharacteristic(characteristic);
+            }
+
+            @Override
+            public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+                return gatt.readDescriptor(descriptor);
+            }
+
+            @Override
+            public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+                return gatt.writeDescriptor(descriptor);
+            }
+
+            @Override
+            public boolean requestMtu(int mtu) {
+                return gatt.requestMtu(mtu);
+            }
+
+            @Override
+            public boolean setCharacteristicNotification(
+                    BluetoothGattCharacteristic characteristic, boolean enabled) {
+                return gatt.setCharacteristicNotification(characteristic, enabled);
+            }
+
+            @Override
+            public List<BluetoothGattService> getServices() {
+                return gatt.getServices();
+            }
+        };
+    }
+
+    private Operation enqueue(Operation operation) {
+        synchronized (mLock) {
+            operation.mQueuedNanos = System.nanoTime();
+            mPending.add(operation);
+        }
+        next();
+        return operation;
+    }
+
+    /**
+     * Start the next operation, if none is running.
+     */
+    private void next() {
+        Operation refused = null;
+        synchronized (mLock) {
+            if (mCurrent != null || mGatt == null || mPending.isEmpty()) {
+                return;
+            }
+            Operation operation = mPending.poll();
+            mCurrent = operation;
+            if (operation.start(mGatt)) {
+                mHandler.postDelayed(mTimeout, mTimeoutMillis);
+                return;
+            }
+            mCurrent = null;
+            if (operation.mAttempts < mMaxAttempts) {
+                // Usually the stack is still busy with an operation issued elsewhere.
+                mRetryCount++;
+                mPending.addFirst(operation);
+                mHandler.postDelayed(mNext, RETRY_DELAY_MILLIS);
+                return;
+            }
+            refused = operation;
+        }
+        finish(refused, STATUS_NOT_STARTED, null);
+        next();
+    }
+
+    private void complete(Type type, Object target, int status, byte[] result) {
+        Operation operation;
+        List<Operation> missing = null;
+        synchronized (mLock) {
+            operation = mCurrent;
+            if (operation == null || operation.mType != type
+                    || (target != null && target != operation.mCharacteristic
+                    && target != operation.mDescriptor)) {
+                Log.w(TAG, "Unexpected completion of " + type + ", running: " + operation);
+                return;
+            }
+            mCurrent = null;
+            mHandler.removeCallbacks(mTimeout);
+            if (type == Type.DISCOVER_SERVICES && status == BluetoothGatt.GATT_SUCCESS
+                    && mGatt != null) {
+                missing = resolvePending();
+            }
+        }
+        finish(operation, status, result);
+        if (missing != null) {
+            for (Operation lost : missing) {
+                Log.w(TAG, "No longer on the device: " + lost);
+                finish(lost, STATUS_NOT_FOUND, null);
+            }
+        }
+        next();
+    }
+
+    /**
+     * Point the operations waiting at the attributes {@link #mGatt} just discovered. Those kept
+     * from an earlier connection still hold the closed one's objects, which no completion would
+     * match. Must hold {@link #mLock}.
+     *
+     * @return the operations whose attribute is gone, removed from the queue.
+     */
+    private List<Operation> resolvePending() {
+        List<Operation> missing = new ArrayList<>();
+        List<BluetoothGattService> services = mGatt.getServices();
+        Iterator<Operation> iterator = mPending.iterator();
+        while (iterator.hasNext()) {
+            Operation operation = iterator.next();
+            if (!operation.resolve(services)) {
+                iterator.remove();
+                missing.add(operation);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Record and report an operation that is no longer queued.
+     */
+    private void finish(Operation operation, int status, byte[] result) {
+        operation.mStatus = status;
+        operation.mResult = result;
+        mLatency.get(operation.mType).record(System.nanoTime() - operation.mQueuedNanos);
+        Batch batch = operation.mBatch;
+        boolean batchDone = false;
+        int batchFailed = 0;
+        synchronized (mLock) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mCompletedCount++;
+            } else {
+                mFailedCount++;
+            }
+            if (batch != null) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    batch.mFailed++;
+                }
+                batchDone = --batch.mRemaining == 0;
+                batchFailed = batch.mFailed;
+            }
+        }
+        if (operation.mCallback != null) {
+            operation.mCallback.onComplete(operation, status);
+        }
+        if (batchDone && batch.mCallback != null) {
+            batch.mCallback.onComplete(batch, batchFailed);
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Bidirectional byte stream carried over GATT, exposed as an {@link InputStream} and an
+ * {@link OutputStream}.
+ *
+ * The peer writes to the RX characteristic without response and receives notifications of the
+ * TX characteristic. Both directions are split into frames of at most one ATT payload
+ * ({@link #setFrameSize(int)}), and both are flow controlled with credits, one credit per frame:
+ * <ul>
+ * <li>The peer grants TX credits by writing a count to the credits characteristic, and no more
+ * frames are sent than it has granted.</li>
+ * <li>This side grants RX credits by notifying the credits characteristic, never more than
+ * there is room for in the receive buffer, so frames the peer sends are never dropped.</li>
+ * </ul>
+ * The peer frames its writes to the RX characteristic to the size in effect when it was first
+ * granted credits: later frame size changes only apply to frames sent to the peer, since credits
+ * already granted can't be taken back and would let larger frames overflow the receive buffer.
+ *
+ * Only one notification is in flight at a time; the next one is sent from
+ * {@link #onSendComplete()}, which the server callback's onNotificationSent should call.
+ *
+ * Incoming and outgoing bytes are kept in {@link ByteRingBuffer}s. Reads block until data
+ * arrives and writes block while the send buffer is full.
+ */
+public class GattSerialStream {
+
+    /**
+     * ATT payload of the default MTU of 23.
+     */
+    public static final int DEFAULT_FRAME_SIZE = 20;
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * Credit grants are one unsigned byte.
+     */
+    private static final int MAX_GRANT = 255;
+
+    /**
+     * Sends notifications to the peer. Called without any lock held, never concurrently.
+     */
+    public interface Link {
+
+        /**
+         * Notify one frame of the TX characteristic. The array may be reused once this returns.
+         *
+         * @return false if the notification couldn't be sent; it is retried on the next event.
+         */
+        boolean sendData(byte[] frame);
+
+        /**
+         * Notify an RX credit grant on the credits characteristic.
+         *
+         * @return false if the notification couldn't be sent.
+         */
+        boolean sendCredits(byte[] grant);
+    }
+
+    private final Object mLock = new Object();
+
+    private final Link mLink;
+
+    private final ByteRingBuffer mReceiveBuffer;
+
+    private final ByteRingBuffer mSendBuffer;
+
+    private final InputStream mInputStream = new SerialInputStream();
+
+    private final OutputStream mOutputStream = new SerialOutputStream();
+
+    private int mFrameSize = DEFAULT_FRAME_SIZE;
+
+    /**
+     * Frame size RX credits are counted in, fixed once the first credits are granted.
+     */
+    private int mReceiveFrameSize = DEFAULT_FRAME_SIZE;
+
+    private boolean mGranted;
+
+    /**
+     * Reused for full-size frames, since only one notification is in flight at a time.
+     */
+    private byte[] mFrame = new byte[DEFAULT_FRAME_SIZE];
+
+    /**
+     * Frame the link refused, to send again before anything else.
+     */
+    private byte[] mRetryFrame;
+
+    /**
+     * Frames the peer will still accept.
+     */
+    private int mSendCredits;
+
+    /**
+     * Frames the peer has been allowed to send and hasn't sent yet.
+     */
+    private int mReceiveCredits;
+
+    private boolean mStarted;
+
+    private boolean mSending;
+
+    private boolean mClosed;
+
+    private long mBytesReceived;
+
+    private long mBytesSent;
+
+    private long mOverflowBytes;
+
+    public GattSerialStream(Link link) {
+        this(link, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize capacity of each of the receive and send buffers.
+     */
+    public GattSerialStream(Link link, int bufferSize) {
+        mLink = link;
+        mReceiveBuffer = new ByteRingBuffer(bufferSize);
+        mSendBuffer = new ByteRingBuffer(bufferSize);
+    }
+
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * Set the largest frame, normally the negotiated MTU minus the 3-byte ATT header. Once RX
+     * credits have been granted, only frames sent to the peer change size.
+     */
+    public void setFrameSize(int frameSize) {
+        synchronized (mLock) {
+            mFrameSize = frameSize;
+            mFrame = new byte[frameSize];
+            if (!mGranted) {
+                mReceiveFrameSize = frameSize;
+            }
+        }
+    }
+
+    /**
+     * Grant the peer its first RX credits, once it is listening for them.
+     */
+    public void start() {
+        synchronized (mLock) {
+            mStarted = true;
+        }
+        pump();
+    }
+
+    /**
+     * Called when the peer wrote a frame to the RX characteristic.
+     */
+    public void onFrameReceived(byte[] value) {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            int written = mReceiveBuffer.write(value, 0, value.length);
+            mOverflowBytes += value.length - written;
+            mBytesReceived += written;
+            if (mReceiveCredits > 0) {
+                mReceiveCredits--;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Called when the peer wrote to the credits characteristic.
+     */
+    public void onCreditsReceived(byte[] value) {
+        if (value == null || value.length == 0) {
+            return;
+        }
+        synchronized (mLock) {
+            mSendCredits += value[0] & 0xff;
+        }
+        pump();
+    }
+
+    /**
+     * Called when the last notification was delivered, from onNotificationSent.
+     */
+    public void onSendComplete() {
+        synchronized (mLock) {
+            mSending = false;
+        }
+        pump();
+    }
+
+    /**
+     * Unblock readers and writers; reads return end of stream and writes fail from now on.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mReceiveBuffer.clear();
+            mSendBuffer.clear();
+            mLock.notifyAll();
+        }
+    }
+
+    public long getBytesReceived() {
+        synchronized (mLock) {
+            return mBytesReceived;
+        }
+    }
+
+    public long getBytesSent() {
+        synchronized (mLock) {
+            return mBytesSent;
+        }
+    }
+
+    /**
+     * Bytes the peer sent beyond the credits it was given, which didn't fit and were dropped.
+     */
+    public long getOverflowBytes() {
+        synchronized (mLock) {
+            return mOverflowBytes;
+        }
+    }
+
+    /**
+     * Send the next notification, if none is in flight: a credit grant if one is due, otherwise
+     * a frame of pending data if the peer has credit for it.
+     */
+    private void pump() {
+        byte[] grant = null;
+        byte[] frame = null;
+        synchronized (mLock) {
+            if (mSending || mClosed) {
+                return;
+            }
+            int credits = getDueReceiveCredits();
+            if (credits > 0) {
+                grant = new byte[]{(byte) credits};
+                mReceiveCredits += credits;
+                mGranted = true;
+            } else if (mRetryFrame != null) {
+                frame = mRetryFrame;
+                mRetryFrame = null;
+                mLock.notifyAll();
+            } else if (mSendCredits > 0 && !mSendBuffer.isEmpty()) {
+                int length = Math.min(mFrameSize, mSendBuffer.size());
+                frame = length == mFrame.length ? mFrame : new byte[length];
+                mSendBuffer.read(frame, 0, length);
+                mSendCredits--;
+                mBytesSent += length;
+                mLock.notifyAll();
+            } else {
+                return;
+            }
+            mSending = true;
+        }
+
+        boolean sent = grant != null ? mLink.sendCredits(grant) : mLink.sendData(frame);
+        if (!sent) {
+            synchronized (mLock) {
+                mSending = false;
+                if (grant != null) {
+                    mReceiveCredits -= grant[0] & 0xff;
+                } else {
+                    mRetryFrame = frame;
+                }
+            }
+        }
+    }
+
+    /**
+     * RX credits to grant now: the frames there is room for that haven't been granted yet. Small
+     * grants are held back until the peer runs low, so the link isn't spent on credit traffic.
+     * Must hold {@link #mLock}.
+     */
+    private int getDueReceiveCredits() {
+        if (!mStarted) {
+            return 0;
+        }
+        int room = mReceiveBuffer.free() / mReceiveFrameSize - mReceiveCredits;
+        int threshold = Math.max(1, mReceiveBuffer.capacity() / mReceiveFrameSize / 4);
+        if (room <= 0 || (room < threshold && mReceiveCredits > 0)) {
+            return 0;
+        }
+        return Math.min(room, MAX_GRANT);
+    }
+
+    private class SerialInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            int value;
+            synchronized (mLock) {
+                if (!awaitData()) {
+                    return -1;
+                }
+                value = mReceiveBuffer.read();
+            }
+            pump();
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int count;
+            synchronized (mLock) {
+                if (!awaitData()) {
+                    return -1;
+                }
+                count = mReceiveBuffer.read(buffer, offset, length);
+            }
+            // Room was made, so more credits may be due.
+            pump();
+            return count;
+        }
+
+        @Override
+        public int available() {
+            synchronized (mLock) {
+                return mReceiveBuffer.size();
+            }
+        }
+
+        @Override
+        public void close() {
+            GattSerialStream.this.close();
+        }
+
+        /**
+         * @return false at end of stream. Must hold {@link #mLock}.
+         */
+        private boolean awaitData() throws IOException {
+            try {
+                while (mReceiveBuffer.isEmpty() && !mClosed) {
+                    mLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading", e);
+            }
+            return !mReceiveBuffer.isEmpty();
+        }
+    }
+
+    private class SerialOutputStream extends OutputStream {
+
+        private final byte[] mSingleByte = new byte[1];
+
+        @Override
+        public void write(int value) throws IOException {
+            synchronized (mLock) {
+                awaitRoom();
+                mSingleByte[0] = (byte) value;
+                mSendBuffer.write(mSingleByte, 0, 1);
+            }
+            pump();
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                int count;
+                synchronized (mLock) {
+                    awaitRoom();
+                    count = mSendBuffer.write(buffer, offset, length);
+                }
+                offset += count;
+                length -= count;
+                pump();
+            }
+        }
+
+        /**
+         * Block until everything written has been handed to the link.
+         */
+        @Override
+        public void flush() throws IOException {
+            synchronized (mLock) {
+                try {
+                    while ((!mSendBuffer.isEmpty() || mRetryFrame != null) && !mClosed) {
+                        mLock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while flushing", e);
+                }
+                if (mClosed) {
+                    throw new IOException("Stream closed");
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            GattSerialStream.this.close();
+        }
+
+        /**
+         * Must hold {@link #mLock}.
+         */
+        private void awaitRoom() throws IOException {
+            try {
+                while (mSendBuffer.free() == 0 && !mClosed) {
+                    mLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing", e);
+            }
+            if (mClosed) {
+                throw new IOException("Stream closed");
+            }
+        }
+    }
+}
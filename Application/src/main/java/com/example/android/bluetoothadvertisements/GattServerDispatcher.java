@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Server callback that runs another callback's methods on its own threads instead of the binder
+ * threads the stack calls from.
+ *
+ * The stack delivers server events on a small binder pool; a handler that logs, builds strings or
+ * waits on a lock holds up every other event, for every device. Here each event is queued to one
+ * of a few single-threaded stripes, picked by the device's address. All events of a device run on
+ * the same stripe, in the order they arrived, so its responses are sent in requestId order and
+ * its onNotificationSent and disconnection are seen after the events before them. Devices on
+ * different stripes don't wait for each other.
+ *
+ * How long events wait for their stripe, and how long the handlers take, are recorded in
+ * {@link LatencyHistogram}s.
+ */
+public class GattServerDispatcher extends BluetoothGattServerCallback {
+
+    private static final String TAG = GattServerDispatcher.class.getSimpleName();
+
+    public static final int DEFAULT_STRIPES = 2;
+
+    private final BluetoothGattServerCallback mCallback;
+
+    private final ExecutorService[] mStripes;
+
+    private final LatencyHistogram mQueueLatency = new LatencyHistogram();
+
+    private final LatencyHistogram mHandlerTime = new LatencyHistogram();
+
+    /**
+     * An event waiting for its stripe.
+     */
+    private abstract class Event implements Runnable {
+
+        private final long mQueuedNanos = System.nanoTime();
+
+        @Override
+        public final void run() {
+            long start = System.nanoTime();
+            mQueueLatency.record(start - mQueuedNanos);
+            try {
+                dispatch();
+            } catch (RuntimeException e) {
+                // Keep the stripe alive for the events behind this one.
+                Log.e(TAG, "Server callback failed", e);
+            }
+            mHandlerTime.record(System.nanoTime() - start);
+        }
+
+        abstract void dispatch();
+    }
+
+    public GattServerDispatcher(BluetoothGattServerCallback callback) {
+        this(callback, DEFAULT_STRIPES);
+    }
+
+    public GattServerDispatcher(BluetoothGattServerCallback callback, int stripes) {
+        mCallback = callback;
+        mStripes = new ExecutorService[stripes];
+        for (int i = 0; i < stripes; i++) {
+            final String name = "GattServer-" + i;
+            mStripes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, name);
+                }
+            });
+        }
+    }
+
+    /**
+     * Time from the stack delivering an event to its handler starting.
+     */
+    public LatencyHistogram getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    /**
+     * Time the handlers took.
+     */
+    public LatencyHistogram getHandlerTime() {
+        return mHandlerTime;
+    }
+
+    /**
+     * Stop taking events, and let the stripes finish the ones already queued.
+     */
+    public void shutdown() {
+        for (ExecutorService stripe : mStripes) {
+            stripe.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "queue latency " + mQueueLatency + ", handler time " + mHandlerTime;
+    }
+
+    @Override
+    public void onConnectionStateChange(final BluetoothDevice device, final int status,
+                                        final int newState) {
+        post(device, new Event() {
+            @Override
+            void dispatch() {
+                mCallback.onConnectionStateChange(device, status, newState);
+            }
+        });
+    }
+
+    @Override
+    public void onServiceAdded(final int status, final BluetoothGattService service) {
+        post(null, new Event() {
+            @Override
+            void dispatch() {
+                mCallback.onServiceAdded(status, service);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicReadRequest(final BluetoothDevice device, final int requestId,
+                                            final int offset,
+                                            final BluetoothGattCharacteristic characteristic) {
+        post(device, new Event() {
+            @Override
+            void dispatch() {
+                mCallback.onCharacteristicReadRequest(device, requestId, offset, characteristic);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicWriteRequest(final BluetoothDevice device, final int requestId,
+                                             final BluetoothGattCharacteristic characteristic,
+                                             final boolean preparedWrite,
+                                             final boolean responseNeeded, final int offset,
+                                             final byte[] value) {
+        post(device, new Event() {
+            @Override
+            void dispatch() {
+                mCallback.onCharacteristicWriteRequest(device, requestId, characteristic,
+                        preparedWrite, responseNeeded, offset, value);
+            }
+        });
+    }
+
+    @Override
+    public void onDescriptorReadRequest(final BluetoothDevice device, final int requestId,
+                                        final int offset, final BluetoothGattDescriptor descriptor) {
+        post(device, new Event() {
+            @Override
+            void dispatch() {
+                mCallback.onDescriptorReadRequest(device, requestId, offset, descriptor);
+            }
+        });
+    }
+
+    @Override
+    public void onDescriptorWriteRequest(final BluetoothDevice device, final int requestId,
+                                         final BluetoothGattDescriptor descriptor,
+                                         final boolean preparedWrite, final boolean responseNeeded,
+                                         final int offset, final byte[] value) {
+        post(device, new Event() {
+            @Override
+            void dispatch() {
+                mCallback.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite,
+                        responseNeeded, offset, value);
+            }
+        });
+    }
+
+    @Override
+    public void onExecuteWrite(final BluetoothDevice device, final int requestId,
+                               final boolean execute) {
+        post(device, new Event() {
+            @Override
+            void dispatch() {
+                mCallback.onExecuteWrite(device, requestId, execute);
+            }
+        });
+    }
+
+    @Override
+    public void onNotificationSent(final BluetoothDevice device, final int status) {
+        post(device, new Event() {
+            @Override
+            void dispatch() {
+                mCallback.onNotificationSent(device, status);
+            }
+        });
+    }
+
+    @Override
+    public void onMtuChanged(final BluetoothDevice device, final int mtu) {
+        post(device, new Event() {
+            @Override
+            void dispatch() {
+                mCallback.onMtuChanged(device, mtu);
+            }
+        });
+    }
+
+    /**
+     * @param device null for events not tied to a device.
+     */
+    private void post(BluetoothDevice device, Event event) {
+        int stripe = device == null
+                ? 0 : (device.getAddress().hashCode() & Integer.MAX_VALUE) % mStripes.length;
+        try {
+            mStripes[stripe].execute(event);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Event after shutdown dropped");
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+/**
+ * Formats bytes as printable ASCII and as hex, from lookup tables into a reused char buffer.
+ *
+ * Not thread-safe; use one instance per thread or synchronize.
+ */
+public class HexEncoder {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Printable character of each byte value; '.' for control and non-ASCII bytes.
+     */
+    private static final char[] PRINTABLE = new char[256];
+
+    static {
+        for (int i = 0; i < PRINTABLE.length; i++) {
+            PRINTABLE[i] = i >= 0x20 && i < 0x7f ? (char) i : '.';
+        }
+    }
+
+    private char[] mBuffer = new char[64];
+
+    /**
+     * {@code data} as ASCII, a newline, then as space-separated hex, e.g. {@code "Hi\n48 69 "}.
+     */
+    public String encode(byte[] data) {
+        int length = data.length * 4 + 1;
+        char[] buffer = ensureCapacity(length);
+        int position = appendAscii(data, buffer, 0);
+        buffer[position++] = '\n';
+        appendHex(data, buffer, position);
+        return new String(buffer, 0, length);
+    }
+
+    /**
+     * {@code data} as space-separated hex, e.g. {@code "48 69 "}.
+     */
+    public String encodeHex(byte[] data) {
+        int length = data.length * 3;
+        char[] buffer = ensureCapacity(length);
+        appendHex(data, buffer, 0);
+        return new String(buffer, 0, length);
+    }
+
+    /**
+     * Write each byte of {@code data} as two hex digits and a space, from {@code position}.
+     *
+     * @return the position after the last character written.
+     */
+    public static int appendHex(byte[] data, char[] buffer, int position) {
+        for (byte b : data) {
+            buffer[position++] = HEX_DIGITS[(b >> 4) & 0xf];
+            buffer[position++] = HEX_DIGITS[b & 0xf];
+            buffer[position++] = ' ';
+        }
+        return position;
+    }
+
+    /**
+     * Write each byte of {@code data} as a printable character, from {@code position}.
+     *
+     * @return the position after the last character written.
+     */
+    public static int appendAscii(byte[] data, char[] buffer, int position) {
+        for (byte b : data) {
+            buffer[position++] = PRINTABLE[b & 0xff];
+        }
+        return position;
+    }
+
+    private char[] ensureCapacity(int length) {
+        if (mBuffer.length < length) {
+            mBuffer = new char[Math.max(length, mBuffer.length * 2)];
+        }
+        return mBuffer;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.content.res.Resources;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formats a human-readable, vague description of how long ago a device was last seen.
+ *
+ * Elapsed time is first reduced to a bucket ("just now", N seconds, N minutes, N hours) and only
+ * the bucket is formatted, so callers can skip rows whose bucket hasn't changed since they were
+ * last drawn. The resource strings are resolved once, and formatting appends to a caller-owned
+ * {@link StringBuilder} instead of concatenating new strings.
+ */
+public class LastSeenFormatter {
+
+    private static final int KIND_JUST_NOW = 0;
+    private static final int KIND_SECONDS = 1;
+    private static final int KIND_MINUTES = 2;
+    private static final int KIND_HOURS = 3;
+
+    /**
+     * Bucket that never matches a real one, for rows that haven't been formatted yet.
+     */
+    public static final long NO_BUCKET = -1;
+
+    private final String mLastSeen;
+    private final String mJustNow;
+    private final String mSecondsAgo;
+    private final String mMinuteAgo;
+    private final String mMinutesAgo;
+    private final String mHourAgo;
+    private final String mHoursAgo;
+
+    public LastSeenFormatter(Resources resources) {
+        mLastSeen = resources.getString(R.string.last_seen);
+        mJustNow = resources.getString(R.string.just_now);
+        mSecondsAgo = resources.getString(R.string.seconds_ago);
+        mMinuteAgo = resources.getString(R.string.minute_ago);
+        mMinutesAgo = resources.getString(R.string.minutes_ago);
+        mHourAgo = resources.getString(R.string.hour_ago);
+        mHoursAgo = resources.getString(R.string.hours_ago);
+    }
+
+    /**
+     * Reduce an elapsed time to the bucket it is displayed as. Two times with the same bucket
+     * format identically.
+     */
+    public static long getBucket(long elapsedNanos) {
+        long secondsSince = TimeUnit.SECONDS.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+        if (secondsSince < 5) {
+            return KIND_JUST_NOW;
+        } else if (secondsSince < 60) {
+            return secondsSince << 2 | KIND_SECONDS;
+        }
+        long minutesSince = TimeUnit.MINUTES.convert(secondsSince, TimeUnit.SECONDS);
+        if (minutesSince < 60) {
+            return minutesSince << 2 | KIND_MINUTES;
+        }
+        long hoursSince = TimeUnit.HOURS.convert(minutesSince, TimeUnit.MINUTES);
+        return hoursSince << 2 | KIND_HOURS;
+    }
+
+    /**
+     * Append the text for a bucket returned by {@link #getBucket(long)} to {@code out}.
+     */
+    public void format(long bucket, StringBuilder out) {
+        out.append(mLastSeen).append(' ');
+
+        long value = bucket >> 2;
+        switch ((int) (bucket & 3)) {
+            case KIND_JUST_NOW:
+                out.append(mJustNow);
+                break;
+            case KIND_SECONDS:
+                out.append(value).append(' ').append(mSecondsAgo);
+                break;
+            case KIND_MINUTES:
+                out.append(value).append(' ').append(value == 1 ? mMinuteAgo : mMinutesAgo);
+                break;
+            default:
+                out.append(value).append(' ').append(value == 1 ? mHourAgo : mHoursAgo);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations, in power-of-two buckets of microseconds.
+ *
+ * Recording is lock-free and allocation-free, so it can be done on every event of a hot path.
+ * Percentiles are reported as the upper bound of the bucket they fall in, so they are accurate
+ * to within a factor of two.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Bucket {@code i} counts durations below {@code 2^i} microseconds, and at least half that.
+     * The last bucket also counts everything longer.
+     */
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        mCounts.incrementAndGet(bucket);
+
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return a bound in microseconds that at least {@code percentile} percent of the durations
+     * fall below, or 0 if none were recorded.
+     */
+    public long getPercentileMicros(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank && seen > 0) {
+                // The last bucket has no upper bound but the max.
+                return i == BUCKETS - 1 ? getMaxMicros() : Math.min(1L << i, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    public long getMaxMicros() {
+        return mMaxNanos.get() / 1000;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mMaxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count: " + getCount() + " p50: " + getPercentileMicros(50)
+                + " p99: " + getPercentileMicros(99) + " max: " + getMaxMicros() + " us";
+    }
+}
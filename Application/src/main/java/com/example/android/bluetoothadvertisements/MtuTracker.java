@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.HashMap;
+
+/**
+ * The ATT MTU negotiated with each connected device, and the payload sizes that follow from it.
+ *
+ * Every connection starts at the default MTU of 23 bytes, and the client may raise it once with
+ * an Exchange MTU request, reported in {@code onMtuChanged}. Anything sent to a device should be
+ * sized from its own MTU: a larger MTU carries the same data in fewer packets.
+ */
+public class MtuTracker {
+
+    public static final int DEFAULT_MTU = 23;
+
+    /**
+     * Largest MTU Android negotiates.
+     */
+    public static final int MAX_MTU = 517;
+
+    /**
+     * Opcode and attribute handle of a notification or write.
+     */
+    private static final int ATT_HEADER_SIZE = 3;
+
+    /**
+     * Opcode of a read response.
+     */
+    private static final int READ_RESPONSE_HEADER_SIZE = 1;
+
+    private final HashMap<String, Integer> mMtus = new HashMap<>();
+
+    /**
+     * Forward {@code BluetoothGattServerCallback#onMtuChanged} here.
+     */
+    public synchronized void onMtuChanged(BluetoothDevice device, int mtu) {
+        mMtus.put(device.getAddress(), Math.max(DEFAULT_MTU, Math.min(mtu, MAX_MTU)));
+    }
+
+    public synchronized void onDeviceDisconnected(BluetoothDevice device) {
+        mMtus.remove(device.getAddress());
+    }
+
+    public synchronized int getMtu(BluetoothDevice device) {
+        Integer mtu = mMtus.get(device.getAddress());
+        return mtu != null ? mtu : DEFAULT_MTU;
+    }
+
+    /**
+     * Most bytes of value in one notification or indication to {@code device}, and in one write
+     * from it.
+     */
+    public int getPayloadSize(BluetoothDevice device) {
+        return getMtu(device) - ATT_HEADER_SIZE;
+    }
+
+    /**
+     * Most bytes of value in one read response to {@code device}.
+     */
+    public int getReadPayloadSize(BluetoothDevice device) {
+        return getMtu(device) - READ_RESPONSE_HEADER_SIZE;
+    }
+}
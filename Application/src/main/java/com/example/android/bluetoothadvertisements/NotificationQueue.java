@@ -0,0 +1,550 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Outbound notifications and indications of a GATT server, queued per device and sent no faster
+ * than the stack delivers them.
+ *
+ * The stack only accepts a new notification for a device after reporting the previous one in
+ * {@code onNotificationSent}, and silently refuses it otherwise. This queue keeps at most
+ * {@code maxInFlight} notifications outstanding per device and sends the next one from
+ * {@link #onNotificationSent(BluetoothDevice, int)}. A notification the stack refuses stays at the
+ * head of its device's queue and is sent again on the next completion, or after
+ * {@link #RETRY_DELAY_MILLIS} if none comes first. After {@link #MAX_SEND_ATTEMPTS} refusals it is
+ * dropped, so a value the stack never takes doesn't hold up the device's queue.
+ *
+ * Values queued with {@link #post} replace a value of the same characteristic that is still
+ * waiting for the same device, since the client only needs the latest one. Values queued with
+ * {@link #send} are never merged or dropped, for data where every value counts.
+ *
+ * A value may be posted with a {@link Receipt}, to learn what became of it for that device.
+ */
+public class NotificationQueue {
+
+    private static final String TAG = NotificationQueue.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+
+    public static final int DEFAULT_MAX_DEPTH = 32;
+
+    /**
+     * Delay before sending again to devices whose notification the stack refused.
+     */
+    public static final long RETRY_DELAY_MILLIS = 50;
+
+    /**
+     * Times a notification is offered to the stack before it is dropped.
+     */
+    public static final int MAX_SEND_ATTEMPTS = 10;
+
+    /**
+     * Receipt status of a value replaced by a newer one before it was sent.
+     */
+    public static final int STATUS_SUPERSEDED = -1;
+
+    /**
+     * Receipt status of a value dropped because the queue was full, the device disconnected or
+     * the stack kept refusing it.
+     */
+    public static final int STATUS_DROPPED = -2;
+
+    /**
+     * Hands one notification to the stack. Typically sets the characteristic's value and calls
+     * {@code BluetoothGattServer#notifyCharacteristicChanged}.
+     */
+    public interface Sender {
+
+        /**
+         * Called for one notification at a time, so the characteristic's value isn't changed by
+         * another send before the stack has copied it, but without the lock guarding the queues.
+         *
+         * @return false if the stack refused the notification.
+         */
+        boolean send(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                     byte[] value, boolean confirm);
+    }
+
+    /**
+     * Told when a value queued with {@link #send} was delivered, or dropped with
+     * {@link #STATUS_DROPPED}. Called without the queue's lock held.
+     */
+    public interface Listener {
+        void onSent(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                    int status);
+    }
+
+    /**
+     * Told once what became of one posted value for one device. Called without the queue's lock
+     * held.
+     */
+    public interface Receipt {
+
+        /**
+         * @param status the status from onNotificationSent, or {@link #STATUS_SUPERSEDED} or
+         *               {@link #STATUS_DROPPED}.
+         */
+        void onDelivered(BluetoothDevice device, int status);
+    }
+
+    private static final class Entry {
+        BluetoothGattCharacteristic characteristic;
+        byte[] value;
+        boolean confirm;
+        boolean coalesce;
+        Receipt receipt;
+        long queuedNanos;
+        int attempts;
+    }
+
+    private static final class DeviceQueue {
+        final BluetoothDevice device;
+        final ArrayDeque<Entry> pending = new ArrayDeque<>();
+        final ArrayDeque<Entry> inFlight = new ArrayDeque<>();
+
+        /**
+         * The stack refused the head of {@link #pending}; retried on the next completion or by
+         * {@link #mRetry}.
+         */
+        boolean refused;
+
+        /**
+         * An entry is being handed to the stack; the next waits for it.
+         */
+        boolean sending;
+
+        DeviceQueue(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
+    private final Sender mSender;
+
+    private final Listener mListener;
+
+    private final Handler mHandler;
+
+    private final int mMaxInFlight;
+
+    private final int mMaxDepth;
+
+    private final HashMap<String, DeviceQueue> mQueues = new HashMap<>();
+
+    private int mDepth;
+
+    private int mInFlight;
+
+    private long mSentCount;
+
+    private long mCoalescedCount;
+
+    private long mDroppedCount;
+
+    private long mTotalLatencyNanos;
+
+    private long mMaxLatencyNanos;
+
+    private boolean mRetryScheduled;
+
+    /**
+     * Held while the sender runs, so sends never overlap.
+     */
+    private final Object mSendLock = new Object();
+
+    /**
+     * Sends again to the devices the stack refused, when no completion came to do it.
+     */
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mQueues) {
+                mRetryScheduled = false;
+            }
+            pumpRefused();
+        }
+    };
+
+    public NotificationQueue(Sender sender, Listener listener, Handler handler) {
+        this(sender, listener, handler, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * @param listener    may be null if nothing is queued with {@link #send}.
+     * @param handler     runs retries of refused notifications.
+     * @param maxInFlight notifications outstanding per device at once.
+     * @param maxDepth    notifications waiting per device at once.
+     */
+    public NotificationQueue(Sender sender, Listener listener, Handler handler, int maxInFlight,
+                             int maxDepth) {
+        mSender = sender;
+        mListener = listener;
+        mHandler = handler;
+        mMaxInFlight = maxInFlight;
+        mMaxDepth = maxDepth;
+    }
+
+    /**
+     * Queue the latest value of a characteristic for a device. A value of the same
+     * characteristic still waiting for the device is replaced. If the device's queue is full, its
+     * oldest such value is dropped to make room.
+     *
+     * @return false if the value was dropped.
+     */
+    public boolean post(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                        byte[] value, boolean confirm) {
+        return post(device, characteristic, value, confirm, null);
+    }
+
+    /**
+     * Like {@link #post(BluetoothDevice, BluetoothGattCharacteristic, byte[], boolean)}, and
+     * tell {@code receipt} once the value was sent, replaced or dropped. The receipt is not
+     * called if this returns false.
+     */
+    public boolean post(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                        byte[] value, boolean confirm, Receipt receipt) {
+        Receipt displaced = null;
+        int displacedStatus = STATUS_SUPERSEDED;
+        DeviceQueue queue;
+        synchronized (mQueues) {
+            queue = getQueue(device);
+            Entry waiting = null;
+            for (Entry entry : queue.pending) {
+                if (entry.coalesce && entry.characteristic == characteristic
+                        && entry.confirm == confirm) {
+                    waiting = entry;
+                    break;
+                }
+            }
+            if (waiting != null) {
+                displaced = waiting.receipt;
+                waiting.value = value;
+                waiting.receipt = receipt;
+                mCoalescedCount++;
+            } else {
+                if (queue.pending.size() >= mMaxDepth) {
+                    Entry dropped = dropOldestCoalescable(queue);
+                    if (dropped == null) {
+                        mDroppedCount++;
+                        return false;
+                    }
+                    displaced = dropped.receipt;
+                    displacedStatus = STATUS_DROPPED;
+                }
+                enqueue(queue, characteristic, value, confirm, true, receipt);
+            }
+        }
+        pump(queue);
+        if (displaced != null) {
+            displaced.onDelivered(device, displacedStatus);
+        }
+        return true;
+    }
+
+    /**
+     * Queue a value that must be delivered in order and not merged with others. The
+     * {@link Listener} is told once it was sent; if the stack refuses it, it is retried.
+     *
+     * @return false if the device's queue is full; nothing was queued.
+     */
+    public boolean send(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                        byte[] value, boolean confirm) {
+        DeviceQueue queue;
+        synchronized (mQueues) {
+            queue = getQueue(device);
+            if (queue.pending.size() >= mMaxDepth) {
+                return false;
+            }
+            enqueue(queue, characteristic, value, confirm, false, null);
+        }
+        pump(queue);
+        return true;
+    }
+
+    /**
+     * Forward {@code BluetoothGattServerCallback#onNotificationSent} here.
+     */
+    public void onNotificationSent(BluetoothDevice device, int status) {
+        Entry done;
+        DeviceQueue queue;
+        synchronized (mQueues) {
+            queue = mQueues.get(device.getAddress());
+            if (queue == null || queue.inFlight.isEmpty()) {
+                return;
+            }
+            done = queue.inFlight.poll();
+            mInFlight--;
+            mSentCount++;
+            long latency = System.nanoTime() - done.queuedNanos;
+            mTotalLatencyNanos += latency;
+            mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+        }
+        pump(queue);
+        // The stack may have refused other devices while this one was busy.
+        pumpRefused();
+        report(device, done, status);
+    }
+
+    /**
+     * Drop everything queued for a device that disconnected.
+     */
+    public void onDeviceDisconnected(BluetoothDevice device) {
+        List<Receipt> receipts = new ArrayList<>();
+        synchronized (mQueues) {
+            DeviceQueue queue = mQueues.remove(device.getAddress());
+            if (queue == null) {
+                return;
+            }
+            mDepth -= queue.pending.size();
+            mInFlight -= queue.inFlight.size();
+            mDroppedCount += queue.pending.size();
+            collectReceipts(queue.inFlight, receipts);
+            collectReceipts(queue.pending, receipts);
+        }
+        for (Receipt receipt : receipts) {
+            receipt.onDelivered(device, STATUS_DROPPED);
+        }
+    }
+
+    /**
+     * Drop everything queued and stop retrying, once the server is closed. Receipts aren't told.
+     */
+    public void clear() {
+        synchronized (mQueues) {
+            mDroppedCount += mDepth;
+            mQueues.clear();
+            mDepth = 0;
+            mInFlight = 0;
+            mHandler.removeCallbacks(mRetry);
+            mRetryScheduled = false;
+        }
+    }
+
+    /**
+     * Notifications waiting to be sent, across all devices.
+     */
+    public int getDepth() {
+        synchronized (mQueues) {
+            return mDepth;
+        }
+    }
+
+    public int getInFlight() {
+        synchronized (mQueues) {
+            return mInFlight;
+        }
+    }
+
+    public long getSentCount() {
+        synchronized (mQueues) {
+            return mSentCount;
+        }
+    }
+
+    /**
+     * Values that replaced one still waiting, instead of being queued.
+     */
+    public long getCoalescedCount() {
+        synchronized (mQueues) {
+            return mCoalescedCount;
+        }
+    }
+
+    /**
+     * Values dropped because a queue was full or its device disconnected.
+     */
+    public long getDroppedCount() {
+        synchronized (mQueues) {
+            return mDroppedCount;
+        }
+    }
+
+    /**
+     * Mean time from queueing a notification to the stack reporting it sent.
+     */
+    public long getAverageLatencyMillis() {
+        synchronized (mQueues) {
+            return mSentCount == 0 ? 0 : mTotalLatencyNanos / mSentCount / 1000000;
+        }
+    }
+
+    public long getMaxLatencyMillis() {
+        synchronized (mQueues) {
+            return mMaxLatencyNanos / 1000000;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mQueues) {
+            return "depth: " + mDepth + " in flight: " + mInFlight + " sent: " + mSentCount
+                    + " coalesced: " + mCoalescedCount + " dropped: " + mDroppedCount
+                    + " latency avg/max: " + getAverageLatencyMillis() + "/"
+                    + getMaxLatencyMillis() + " ms";
+        }
+    }
+
+    /**
+     * Must hold {@link #mQueues}.
+     */
+    private DeviceQueue getQueue(BluetoothDevice device) {
+        DeviceQueue queue = mQueues.get(device.getAddress());
+        if (queue == null) {
+            queue = new DeviceQueue(device);
+            mQueues.put(device.getAddress(), queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Must hold {@link #mQueues}.
+     */
+    private void enqueue(DeviceQueue queue, BluetoothGattCharacteristic characteristic,
+                         byte[] value, boolean confirm, boolean coalesce, Receipt receipt) {
+        Entry entry = new Entry();
+        entry.characteristic = characteristic;
+        entry.value = value;
+        entry.confirm = confirm;
+        entry.coalesce = coalesce;
+        entry.receipt = receipt;
+        entry.queuedNanos = System.nanoTime();
+        queue.pending.add(entry);
+        mDepth++;
+    }
+
+    /**
+     * Must hold {@link #mQueues}.
+     *
+     * @return the dropped entry, or null if there was none to drop.
+     */
+    private Entry dropOldestCoalescable(DeviceQueue queue) {
+        Iterator<Entry> iterator = queue.pending.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.coalesce) {
+                iterator.remove();
+                mDepth--;
+                mDroppedCount++;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static void collectReceipts(ArrayDeque<Entry> entries, List<Receipt> out) {
+        for (Entry entry : entries) {
+            if (entry.receipt != null) {
+                out.add(entry.receipt);
+            }
+        }
+    }
+
+    /**
+     * Send from the head of a device's queue while it has room in flight. Must not hold
+     * {@link #mQueues}: the sender is called without it, so a binder call to the stack never
+     * holds up posting or completions.
+     */
+    private void pump(DeviceQueue queue) {
+        while (true) {
+            Entry entry;
+            synchronized (mQueues) {
+                if (queue.sending || queue.inFlight.size() >= mMaxInFlight
+                        || queue.pending.isEmpty()) {
+                    return;
+                }
+                // In flight before it is sent, in case the completion beats the sender back.
+                entry = queue.pending.poll();
+                queue.inFlight.add(entry);
+                mDepth--;
+                mInFlight++;
+                queue.sending = true;
+                queue.refused = false;
+            }
+
+            boolean sent;
+            synchronized (mSendLock) {
+                sent = mSender.send(queue.device, entry.characteristic, entry.value,
+                        entry.confirm);
+            }
+
+            synchronized (mQueues) {
+                queue.sending = false;
+                if (sent || mQueues.get(queue.device.getAddress()) != queue) {
+                    // Sent, or dropped with its device in the meantime.
+                    continue;
+                }
+                queue.inFlight.removeLastOccurrence(entry);
+                mInFlight--;
+                if (++entry.attempts < MAX_SEND_ATTEMPTS) {
+                    queue.pending.addFirst(entry);
+                    mDepth++;
+                    queue.refused = true;
+                    // A completion may never come, if nothing else is in flight.
+                    if (!mRetryScheduled) {
+                        mRetryScheduled = true;
+                        mHandler.postDelayed(mRetry, RETRY_DELAY_MILLIS);
+                    }
+                    return;
+                }
+                mDroppedCount++;
+            }
+            Log.w(TAG, "Dropped notification of " + entry.characteristic.getUuid() + " to "
+                    + queue.device.getAddress() + " after " + entry.attempts + " refusals");
+            report(queue.device, entry, STATUS_DROPPED);
+        }
+    }
+
+    /**
+     * Send again to the devices the stack refused. Must not hold {@link #mQueues}.
+     */
+    private void pumpRefused() {
+        List<DeviceQueue> refused = new ArrayList<>();
+        synchronized (mQueues) {
+            for (DeviceQueue queue : mQueues.values()) {
+                if (queue.refused) {
+                    refused.add(queue);
+                }
+            }
+        }
+        for (DeviceQueue queue : refused) {
+            pump(queue);
+        }
+    }
+
+    /**
+     * Tell the receipt and, for values queued with {@link #send}, the listener what became of
+     * an entry. Must not hold {@link #mQueues}.
+     */
+    private void report(BluetoothDevice device, Entry entry, int status) {
+        if (entry.receipt != null) {
+            entry.receipt.onDelivered(device, status);
+        }
+        if (!entry.coalesce && mListener != null) {
+            mListener.onSent(device, entry.characteristic, status);
+        }
+    }
+}
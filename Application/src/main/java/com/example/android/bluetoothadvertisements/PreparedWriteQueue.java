@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Prepared writes of one connection, held until the client executes or cancels them.
+ *
+ * Fragments are appended to a single buffer of fixed capacity, which bounds the memory a client
+ * can make the server hold and can be reused for the next transaction or connection. Fragments
+ * are checked as they arrive, and a bad one is refused without being queued, so nothing is
+ * applied until execute, and execute only ever applies complete values.
+ *
+ * Execute applies all of the values or none: every value is validated before the first is
+ * written, and the transaction is cancelled at the first failure.
+ *
+ * Each attribute's fragments must follow on from each other, starting at offset 0, which is how
+ * clients split a long write.
+ *
+ * @param <K> identifies an attribute; compared by identity.
+ */
+public class PreparedWriteQueue<K> {
+
+    /**
+     * ATT error for a full prepare queue. {@link BluetoothGatt} has no constant for it.
+     */
+    public static final int PREPARE_QUEUE_FULL = 0x09;
+
+    /**
+     * Longest value an attribute may have.
+     */
+    public static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    /**
+     * Applies a value once its transaction is executed.
+     */
+    public interface Executor<K> {
+
+        /**
+         * Check a value without applying it.
+         *
+         * @return a {@link BluetoothGatt} status code.
+         */
+        int onValidate(K attribute, byte[] value);
+
+        /**
+         * @return a {@link BluetoothGatt} status code.
+         */
+        int onWrite(K attribute, byte[] value);
+    }
+
+    private final byte[] mBuffer;
+
+    private final ArrayList<K> mAttributes = new ArrayList<>();
+
+    private int[] mStarts = new int[16];
+
+    private int[] mLengths = new int[16];
+
+    private int mUsed;
+
+    /**
+     * Attributes of the transaction being executed, each with its joined value.
+     */
+    private final ArrayList<K> mExecuting = new ArrayList<>();
+
+    private final ArrayList<byte[]> mExecutingValues = new ArrayList<>();
+
+    /**
+     * @param capacity most bytes held for a connection at once.
+     */
+    public PreparedWriteQueue(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * Queue one fragment.
+     *
+     * @return a {@link BluetoothGatt} status code for the prepare request.
+     */
+    public int prepare(K attribute, int offset, byte[] value) {
+        int length = value == null ? 0 : value.length;
+        if (offset != getPreparedLength(attribute)) {
+            return BluetoothGatt.GATT_INVALID_OFFSET;
+        }
+        if (offset + length > MAX_ATTRIBUTE_LENGTH) {
+            return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+        }
+        if (mUsed + length > mBuffer.length) {
+            return PREPARE_QUEUE_FULL;
+        }
+
+        int index = mAttributes.size();
+        if (index == mStarts.length) {
+            mStarts = Arrays.copyOf(mStarts, index * 2);
+            mLengths = Arrays.copyOf(mLengths, index * 2);
+        }
+        if (length > 0) {
+            System.arraycopy(value, 0, mBuffer, mUsed, length);
+        }
+        mAttributes.add(attribute);
+        mStarts[index] = mUsed;
+        mLengths[index] = length;
+        mUsed += length;
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * Apply the queued values, one per attribute in the order they were first written, then
+     * empty the queue. Nothing is written unless the executor validates every value.
+     *
+     * @return {@link BluetoothGatt#GATT_SUCCESS}, or the first failure reported by the executor.
+     */
+    public int execute(Executor<K> executor) {
+        // Offsets and lengths were checked as the fragments came in, so every value is complete.
+        try {
+            for (int i = 0; i < mAttributes.size(); i++) {
+                K attribute = mAttributes.get(i);
+                if (isFirstFragment(attribute, i)) {
+                    mExecuting.add(attribute);
+                    mExecutingValues.add(join(attribute, i));
+                }
+            }
+            int count = mExecuting.size();
+            for (int i = 0; i < count; i++) {
+                int status = executor.onValidate(mExecuting.get(i), mExecutingValues.get(i));
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    return status;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                int status = executor.onWrite(mExecuting.get(i), mExecutingValues.get(i));
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    // Only a handler that validated the value and then failed gets here.
+                    return status;
+                }
+            }
+            return BluetoothGatt.GATT_SUCCESS;
+        } finally {
+            mExecuting.clear();
+            mExecutingValues.clear();
+            cancel();
+        }
+    }
+
+    /**
+     * Discard the queued fragments. The buffer is kept for reuse.
+     */
+    public void cancel() {
+        mAttributes.clear();
+        mUsed = 0;
+    }
+
+    public boolean isEmpty() {
+        return mAttributes.isEmpty();
+    }
+
+    /**
+     * Bytes queued so far, across all attributes.
+     */
+    public int getUsed() {
+        return mUsed;
+    }
+
+    private int getPreparedLength(K attribute) {
+        int length = 0;
+        for (int i = 0; i < mAttributes.size(); i++) {
+            if (mAttributes.get(i) == attribute) {
+                length += mLengths[i];
+            }
+        }
+        return length;
+    }
+
+    private boolean isFirstFragment(K attribute, int index) {
+        for (int i = 0; i < index; i++) {
+            if (mAttributes.get(i) == attribute) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the fragments of {@code attribute}, the first of which is at {@code first}, into a new
+     * array. Handlers may keep the array, so it can't come from the pool.
+     */
+    private byte[] join(K attribute, int first) {
+        byte[] value = new byte[getPreparedLength(attribute)];
+        int position = 0;
+        for (int i = first; i < mAttributes.size(); i++) {
+            if (mAttributes.get(i) == attribute) {
+                System.arraycopy(mBuffer, mStarts[i], value, position, mLengths[i]);
+                position += mLengths[i];
+            }
+        }
+        return value;
+    }
+}
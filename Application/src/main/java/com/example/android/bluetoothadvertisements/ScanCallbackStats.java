@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts scan callbacks over one scan session. Every callback is a wakeup of the app processor,
+ * so callbacks per minute is the figure to compare between per-result and batched scanning.
+ */
+public class ScanCallbackStats {
+
+    private long mStartMillis;
+
+    private long mStopMillis;
+
+    private long mCallbackCount;
+
+    private long mResultCount;
+
+    public void start(long nowMillis) {
+        mStartMillis = nowMillis;
+        mStopMillis = 0;
+        mCallbackCount = 0;
+        mResultCount = 0;
+    }
+
+    public void stop(long nowMillis) {
+        mStopMillis = nowMillis;
+    }
+
+    /**
+     * Record one callback delivering the given number of results.
+     */
+    public void onCallback(int resultCount) {
+        mCallbackCount++;
+        mResultCount += resultCount;
+    }
+
+    public long getCallbackCount() {
+        return mCallbackCount;
+    }
+
+    public long getResultCount() {
+        return mResultCount;
+    }
+
+    public double getCallbacksPerMinute() {
+        return perMinute(mCallbackCount);
+    }
+
+    public double getResultsPerMinute() {
+        return perMinute(mResultCount);
+    }
+
+    private double perMinute(long count) {
+        long elapsed = mStopMillis - mStartMillis;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return count * (double) TimeUnit.MINUTES.toMillis(1) / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "callbacks: " + mCallbackCount + " (" + Math.round(getCallbacksPerMinute())
+                + "/min) results: " + mResultCount + " (" + Math.round(getResultsPerMinute())
+                + "/min)";
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves scan results off the main thread. Results are queued from the scan callback, folded into
+ * a {@link DeviceTable} on a dedicated worker thread and published to a {@link Listener} as
+ * immutable {@link ScanSnapshot}s, at most once per {@link ScanUpdateCoalescer} interval. Each
+ * device's RSSI readings are aggregated by a {@link SignalTracker} along the way.
+ *
+ * Memory is bounded with {@link #setEvictionPolicy}: devices not seen for a while, and the least
+ * recently seen devices beyond a cap, are evicted about once a second and disappear from the
+ * next snapshot.
+ *
+ * Plain Java, so it can be fed synthetic results and load tested on a JVM. If the worker falls
+ * behind and the queue fills up, new results are dropped rather than blocking the caller.
+ */
+public class ScanIngestor<T> {
+
+    private static final String THREAD_NAME = "ScanIngestor";
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    /**
+     * Maximum number of queued results applied before checking whether a snapshot is due.
+     */
+    private static final int MAX_BATCH = 256;
+
+    /**
+     * How often expired devices are looked for.
+     */
+    private static final long EVICTION_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Queued to wake the worker up when there is something other than a result to handle.
+     */
+    private static final Object WAKE_UP = new Object();
+
+    /**
+     * Results delivered together by the controller, applied as one unit so they end up in the
+     * same snapshot.
+     */
+    private static final class Batch {
+        final List<?> results;
+
+        Batch(List<?> results) {
+            this.results = results;
+        }
+    }
+
+    /**
+     * Extracts the fields of a result the ingestor needs. Called on the ingestion thread.
+     */
+    public interface ResultReader<T> {
+
+        /**
+         * Address results are deduplicated by.
+         */
+        String getAddress(T result);
+
+        int getRssi(T result);
+
+        /**
+         * Advertised TX power level, or {@link AdvertisingDataParser#TX_POWER_UNKNOWN}.
+         */
+        int getTxPowerLevel(T result);
+
+        /**
+         * When the result was received, on the same time base as {@link Clock#nanos()}.
+         */
+        long getTimestampNanos(T result);
+    }
+
+    /**
+     * Source of the current time that result timestamps are compared against for eviction.
+     */
+    public interface Clock {
+        long nanos();
+    }
+
+    /**
+     * The latest result for a device together with its signal history.
+     */
+    private static final class Row<T> {
+        T result;
+        final SignalTracker signal;
+
+        Row(SignalTracker.Config config) {
+            signal = new SignalTracker(config);
+        }
+    }
+
+    /**
+     * Receives snapshots. Called on the ingestion thread.
+     */
+    public interface Listener<T> {
+        void onSnapshot(ScanSnapshot<T> snapshot);
+    }
+
+    private final ResultReader<T> mReader;
+
+    private final SignalTracker.Config mSignalConfig;
+
+    private final Listener<T> mListener;
+
+    private final ArrayBlockingQueue<Object> mQueue;
+
+    private final ArrayList<Object> mBatch = new ArrayList<>(MAX_BATCH);
+
+    private final DeviceTable<Row<T>> mTable = new DeviceTable<>();
+
+    private final ScanUpdateCoalescer mCoalescer;
+
+    private final AtomicLong mReceivedCount = new AtomicLong();
+
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    private final AtomicLong mNewDeviceCount = new AtomicLong();
+
+    private volatile long mMergedCount;
+
+    private volatile boolean mClearRequested;
+
+    private volatile Clock mEvictionClock;
+
+    private volatile long mTtlNanos = Long.MAX_VALUE;
+
+    private volatile int mMaxDevices = Integer.MAX_VALUE;
+
+    private final AtomicLong mEvictedCount = new AtomicLong();
+
+    private long mNextEvictionMillis;
+
+    private volatile boolean mRunning;
+
+    private Thread mThread;
+
+    private long mSequence;
+
+    public ScanIngestor(ResultReader<T> reader, Listener<T> listener) {
+        this(reader, listener, SignalTracker.Config.DEFAULT, DEFAULT_QUEUE_CAPACITY,
+                ScanUpdateCoalescer.DEFAULT_INTERVAL_MILLIS);
+    }
+
+    public ScanIngestor(ResultReader<T> reader, Listener<T> listener,
+                        SignalTracker.Config signalConfig, int queueCapacity,
+                        long publishIntervalMillis) {
+        mReader = reader;
+        mSignalConfig = signalConfig;
+        mListener = listener;
+        mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        mCoalescer = new ScanUpdateCoalescer(publishIntervalMillis);
+    }
+
+    /**
+     * Bound the number of devices kept. Devices not seen for {@code ttlMillis} according to
+     * {@code clock} are evicted, as are the least recently seen devices beyond
+     * {@code maxDevices}.
+     */
+    public void setEvictionPolicy(Clock clock, long ttlMillis, int maxDevices) {
+        mTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        mMaxDevices = maxDevices;
+        mEvictionClock = clock;
+    }
+
+    /**
+     * Start the ingestion thread. Does nothing if it is already running.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, THREAD_NAME);
+        mThread.start();
+    }
+
+    /**
+     * Stop the ingestion thread. Results still queued are discarded.
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mThread.interrupt();
+        mThread = null;
+    }
+
+    /**
+     * Queue a result for ingestion. Safe to call from any thread.
+     *
+     * @return false if the queue was full and the result was dropped.
+     */
+    public boolean submit(T result) {
+        mReceivedCount.incrementAndGet();
+        if (!mQueue.offer(result)) {
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queue a batch of results, e.g. from {@code ScanCallback.onBatchScanResults}. The batch is
+     * applied in one go and published in a single snapshot. Safe to call from any thread.
+     *
+     * @return false if the queue was full and the whole batch was dropped.
+     */
+    public boolean submitAll(List<T> results) {
+        mReceivedCount.addAndGet(results.size());
+        if (!mQueue.offer(new Batch(results))) {
+            mDroppedCount.addAndGet(results.size());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forget every device seen so far. The next snapshot will be empty.
+     */
+    public void clear() {
+        mQueue.clear();
+        mClearRequested = true;
+        mQueue.offer(WAKE_UP);
+    }
+
+    public long getReceivedCount() {
+        return mReceivedCount.get();
+    }
+
+    /**
+     * Number of results dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Number of devices added to the table so far, i.e. seen for the first time.
+     */
+    public long getNewDeviceCount() {
+        return mNewDeviceCount.get();
+    }
+
+    /**
+     * Number of devices evicted so far.
+     */
+    public long getEvictedCount() {
+        return mEvictedCount.get();
+    }
+
+    /**
+     * Number of results folded into a row change that was already waiting to be published, as
+     * of the last snapshot.
+     */
+    public long getMergedCount() {
+        return mMergedCount;
+    }
+
+    private void loop() {
+        try {
+            while (mRunning && !Thread.currentThread().isInterrupted()) {
+                long timeout = Long.MAX_VALUE;
+                if (mCoalescer.isPending()) {
+                    timeout = mCoalescer.getPublishDelay(now());
+                }
+                if (mEvictionClock != null) {
+                    timeout = Math.min(timeout, Math.max(0, mNextEvictionMillis - now()));
+                }
+                Object first = timeout == Long.MAX_VALUE
+                        ? mQueue.take()
+                        : mQueue.poll(timeout, TimeUnit.MILLISECONDS);
+
+                if (mClearRequested) {
+                    mClearRequested = false;
+                    mTable.clear();
+                    mCoalescer.reset();
+                    mCoalescer.markStructural();
+                }
+
+                if (first != null) {
+                    apply(first);
+                    mQueue.drainTo(mBatch, MAX_BATCH);
+                    for (int i = 0; i < mBatch.size(); i++) {
+                        apply(mBatch.get(i));
+                    }
+                    mBatch.clear();
+                }
+
+                long now = now();
+                if (mEvictionClock != null
+                        && (now >= mNextEvictionMillis || mTable.size() > mMaxDevices)) {
+                    evict();
+                    mNextEvictionMillis = now + EVICTION_INTERVAL_MILLIS;
+                }
+                if (mCoalescer.isPending() && mCoalescer.getPublishDelay(now) == 0) {
+                    mCoalescer.publish(now, mPublishListener);
+                }
+            }
+        } catch (InterruptedException e) {
+            // stop() was called.
+        }
+    }
+
+    private void evict() {
+        long cutoff = mTtlNanos == Long.MAX_VALUE
+                ? Long.MIN_VALUE
+                : mEvictionClock.nanos() - mTtlNanos;
+        int evicted = mTable.evict(cutoff, mMaxDevices);
+        if (evicted > 0) {
+            // Positions shift, so row-level changes already pending are superseded.
+            mEvictedCount.addAndGet(evicted);
+            mCoalescer.markStructural();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void apply(Object item) {
+        if (item == WAKE_UP) {
+            return;
+        }
+        if (item instanceof Batch) {
+            List<?> results = ((Batch) item).results;
+            for (int i = 0; i < results.size(); i++) {
+                apply(results.get(i));
+            }
+            return;
+        }
+        T result = (T) item;
+        String address = mReader.getAddress(result);
+        long timestampNanos = mReader.getTimestampNanos(result);
+        Row<T> row;
+        int position = mTable.indexOf(address);
+        if (position >= 0) {
+            row = mTable.get(position);
+            mTable.touch(position, timestampNanos);
+            mCoalescer.markChanged(position);
+        } else {
+            row = new Row<>(mSignalConfig);
+            mTable.upsert(address, row, timestampNanos);
+            mNewDeviceCount.incrementAndGet();
+            mCoalescer.markStructural();
+        }
+        row.result = result;
+        row.signal.addSample(mReader.getRssi(result));
+        row.signal.setTxPowerLevel(mReader.getTxPowerLevel(result));
+    }
+
+    private final ScanUpdateCoalescer.Listener mPublishListener =
+            new ScanUpdateCoalescer.Listener() {
+        @Override
+        public void onPublish(int[] positions, int count, boolean structural) {
+            int size = mTable.size();
+            Object[] records = new Object[size];
+            long[] ids = new long[size];
+            float[] rssi = new float[size];
+            float[] distance = new float[size];
+            for (int i = 0; i < size; i++) {
+                Row<T> row = mTable.get(i);
+                records[i] = row.result;
+                ids[i] = mTable.getId(i);
+                rssi[i] = (float) row.signal.getFilteredRssi();
+                distance[i] = (float) row.signal.getDistance();
+            }
+            int[] changed = new int[count];
+            System.arraycopy(positions, 0, changed, 0, count);
+            mMergedCount = mCoalescer.getMergedCount();
+
+            mListener.onSnapshot(
+                    new ScanSnapshot<T>(++mSequence, records, ids, rssi, distance, changed,
+                            structural));
+        }
+    };
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -19,149 +19,173 @@ package com.example.android.bluetoothadvertisements;
 import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.os.SystemClock;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
 
 /**
- * Holds and displays {@link ScanResult}s, used by {@link ScannerFragment}.
+ * Displays the latest {@link ScanSnapshot} of {@link ScanResult}s, used by {@link ScannerFragment}.
+ *
+ * Row ids are derived from the device MAC address and are stable. Rows whose device was seen
+ * again are notified with {@link #PAYLOAD_SIGNAL}, which rebinds only the signal and 'last seen'
+ * text instead of the whole row.
  */
-public class ScanResultAdapter extends BaseAdapter {
+public class ScanResultAdapter extends RecyclerView.Adapter<ScanResultAdapter.ViewHolder> {
 
-    private ArrayList<ScanResult> mArrayList;
+    /**
+     * Change payload for a row whose device was seen again: only its signal and 'last seen' text
+     * need rebinding.
+     */
+    public static final Object PAYLOAD_SIGNAL = new Object();
+
+    private ScanSnapshot<ScanResult> mSnapshot;
 
     private Context mContext;
 
     private LayoutInflater mInflater;
 
+    private final AdvertisingDataParser mParser = new AdvertisingDataParser();
+
+    private final StringBuilder mNameBuilder = new StringBuilder();
+
+    private final LastSeenFormatter mLastSeenFormatter;
+
+    /**
+     * Holds the views of one row, along with the buffers its 'last seen' text is written into.
+     */
+    static final class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView deviceName;
+        final TextView deviceAddress;
+        final TextView signal;
+        final TextView lastSeen;
+
+        final StringBuilder lastSeenBuilder = new StringBuilder();
+        char[] lastSeenChars = new char[32];
+        long lastSeenBucket = LastSeenFormatter.NO_BUCKET;
+
+        ViewHolder(View view) {
+            super(view);
+            deviceName = (TextView) view.findViewById(R.id.device_name);
+            deviceAddress = (TextView) view.findViewById(R.id.device_address);
+            signal = (TextView) view.findViewById(R.id.signal);
+            lastSeen = (TextView) view.findViewById(R.id.last_seen);
+        }
+    }
+
     ScanResultAdapter(Context context, LayoutInflater inflater) {
         super();
         mContext = context;
         mInflater = inflater;
-        mArrayList = new ArrayList<>();
+        mSnapshot = ScanSnapshot.empty();
+        mLastSeenFormatter = new LastSeenFormatter(context.getResources());
+        setHasStableIds(true);
     }
 
     @Override
-    public int getCount() {
-        return mArrayList.size();
+    public int getItemCount() {
+        return mSnapshot.size();
     }
 
     @Override
-    public Object getItem(int position) {
-        return mArrayList.get(position);
+    public long getItemId(int position) {
+        return mSnapshot.getId(position);
     }
 
     @Override
-    public long getItemId(int position) {
-        return mArrayList.get(position).getDevice().getAddress().hashCode();
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new ViewHolder(mInflater.inflate(R.layout.listitem_scanresult, parent, false));
     }
 
     @Override
-    public View getView(int position, View view, ViewGroup parent) {
-
-        // Reuse an old view if we can, otherwise create a new one.
-        if (view == null) {
-            view = mInflater.inflate(R.layout.listitem_scanresult, null);
+    public void onBindViewHolder(ViewHolder holder, int position, List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
         }
 
-        TextView deviceNameView = (TextView) view.findViewById(R.id.device_name);
-        TextView deviceAddressView = (TextView) view.findViewById(R.id.device_address);
-        TextView lastSeenView = (TextView) view.findViewById(R.id.last_seen);
+        // Only PAYLOAD_SIGNAL is ever sent, so the row still shows the same device.
+        long now = SystemClock.elapsedRealtimeNanos();
+        bindSignal(holder, position);
+        bindLastSeen(holder, mSnapshot.get(position), now);
+    }
 
-        ScanResult scanResult = mArrayList.get(position);
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        ScanResult scanResult = mSnapshot.get(position);
 
-        String name = scanResult.getDevice().getName();
+        CharSequence name = scanResult.getDevice().getName();
         if (name == null) {
-            name = mContext.getResources().getString(R.string.no_name);
+            // Fall back to the name in the advertisement, if the device sent one.
+            mNameBuilder.setLength(0);
+            if (scanResult.getScanRecord() != null
+                    && mParser.reset(scanResult.getScanRecord().getBytes())
+                    .findLocalName(mNameBuilder)) {
+                name = mNameBuilder;
+            } else {
+                name = mContext.getResources().getString(R.string.no_name);
+            }
         }
-        deviceNameView.setText(name);
-        deviceAddressView.setText(scanResult.getDevice().getAddress());
-        lastSeenView.setText(getTimeSinceString(mContext, scanResult.getTimestampNanos()));
+        holder.deviceName.setText(name);
+        holder.deviceAddress.setText(scanResult.getDevice().getAddress());
+        bindSignal(holder, position);
 
-        return view;
+        // The row may now show a different device, so always rewrite the text.
+        holder.lastSeenBucket = LastSeenFormatter.NO_BUCKET;
+        bindLastSeen(holder, scanResult, SystemClock.elapsedRealtimeNanos());
     }
 
-    /**
-     * Search the adapter for an existing device address and return it, otherwise return -1.
-     */
-    private int getPosition(String address) {
-        int position = -1;
-        for (int i = 0; i < mArrayList.size(); i++) {
-            if (mArrayList.get(i).getDevice().getAddress().equals(address)) {
-                position = i;
-                break;
-            }
+    private void bindSignal(ViewHolder holder, int position) {
+        int rssi = Math.round(mSnapshot.getRssi(position));
+        float distance = mSnapshot.getDistance(position);
+        if (Float.isNaN(distance)) {
+            holder.signal.setText(mContext.getResources().getString(R.string.signal_rssi, rssi));
+        } else {
+            holder.signal.setText(mContext.getResources()
+                    .getString(R.string.signal_rssi_distance, rssi, distance));
         }
-        return position;
     }
 
-
     /**
-     * Add a ScanResult item to the adapter if a result from that device isn't already present.
-     * Otherwise updates the existing position with the new ScanResult.
+     * Update the 'last seen' text of a row, if the elapsed time has moved into a different bucket
+     * since it was drawn. Meant to be called on a periodic tick for the visible rows.
      */
-    public void add(ScanResult scanResult) {
-
-        int existingPosition = getPosition(scanResult.getDevice().getAddress());
-
-        if (existingPosition >= 0) {
-            // Device is already in list, update its record.
-            mArrayList.set(existingPosition, scanResult);
-        } else {
-            // Add new Device's ScanResult to list.
-            mArrayList.add(scanResult);
+    public void refreshLastSeen(ViewHolder holder, long nowNanos) {
+        int position = holder.getAdapterPosition();
+        if (position != RecyclerView.NO_POSITION && position < mSnapshot.size()) {
+            bindLastSeen(holder, mSnapshot.get(position), nowNanos);
         }
     }
 
-    /**
-     * Clear out the adapter.
-     */
-    public void clear() {
-        mArrayList.clear();
+    private void bindLastSeen(ViewHolder holder, ScanResult scanResult, long nowNanos) {
+        long bucket = LastSeenFormatter.getBucket(nowNanos - scanResult.getTimestampNanos());
+        if (bucket == holder.lastSeenBucket) {
+            return;
+        }
+        holder.lastSeenBucket = bucket;
+
+        StringBuilder builder = holder.lastSeenBuilder;
+        builder.setLength(0);
+        mLastSeenFormatter.format(bucket, builder);
+        int length = builder.length();
+        if (length > holder.lastSeenChars.length) {
+            holder.lastSeenChars = new char[length];
+        }
+        builder.getChars(0, length, holder.lastSeenChars, 0);
+        holder.lastSeen.setText(holder.lastSeenChars, 0, length);
     }
 
     /**
-     * Takes in a number of nanoseconds and returns a human-readable string giving a vague
-     * description of how long ago that was.
+     * Replace the displayed results. Callers are responsible for notifying the list.
      */
-    public static String getTimeSinceString(Context context, long timeNanoseconds) {
-        String lastSeenText = context.getResources().getString(R.string.last_seen) + " ";
-
-        long timeSince = SystemClock.elapsedRealtimeNanos() - timeNanoseconds;
-        long secondsSince = TimeUnit.SECONDS.convert(timeSince, TimeUnit.NANOSECONDS);
-
-        if (secondsSince < 5) {
-            lastSeenText += context.getResources().getString(R.string.just_now);
-        } else if (secondsSince < 60) {
-            lastSeenText += secondsSince + " " + context.getResources()
-                    .getString(R.string.seconds_ago);
-        } else {
-            long minutesSince = TimeUnit.MINUTES.convert(secondsSince, TimeUnit.SECONDS);
-            if (minutesSince < 60) {
-                if (minutesSince == 1) {
-                    lastSeenText += minutesSince + " " + context.getResources()
-                            .getString(R.string.minute_ago);
-                } else {
-                    lastSeenText += minutesSince + " " + context.getResources()
-                            .getString(R.string.minutes_ago);
-                }
-            } else {
-                long hoursSince = TimeUnit.HOURS.convert(minutesSince, TimeUnit.MINUTES);
-                if (hoursSince == 1) {
-                    lastSeenText += hoursSince + " " + context.getResources()
-                            .getString(R.string.hour_ago);
-                } else {
-                    lastSeenText += hoursSince + " " + context.getResources()
-                            .getString(R.string.hours_ago);
-                }
-            }
-        }
+    public void setSnapshot(ScanSnapshot<ScanResult> snapshot) {
+        mSnapshot = snapshot;
+    }
 
-        return lastSeenText;
+    public ScanSnapshot<ScanResult> getSnapshot() {
+        return mSnapshot;
     }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.le.ScanSettings;
+
+/**
+ * Decides how long and how hard to scan, based on how quickly new devices are being discovered.
+ *
+ * Scanning happens in windows separated by pauses. Every window that turns up a new device
+ * ramps the schedule up to the most aggressive level; every window that finds nothing new backs
+ * it off one level, towards short low-power windows with long pauses.
+ *
+ * Android silently fails scans started more than {@link #MAX_STARTS} times within
+ * {@link #THROTTLE_WINDOW_MILLIS}, so {@link #getStartDelay()} also holds starts back until
+ * another one is allowed.
+ *
+ * Time comes from a {@link Clock} so the policy can be driven by a simulated clock on a JVM.
+ */
+public class ScanScheduler {
+
+    /**
+     * Source of the current time in milliseconds.
+     */
+    public interface Clock {
+        long millis();
+    }
+
+    /**
+     * Android's limit on scan starts per {@link #THROTTLE_WINDOW_MILLIS}.
+     */
+    static final int MAX_STARTS = 5;
+
+    static final long THROTTLE_WINDOW_MILLIS = 30000;
+
+    /**
+     * Keeps a little distance from the throttle boundary to absorb clock skew with the stack.
+     */
+    private static final long THROTTLE_MARGIN_MILLIS = 500;
+
+    // Levels, from most to least aggressive.
+
+    private static final int[] SCAN_MODES = {
+            ScanSettings.SCAN_MODE_LOW_LATENCY,
+            ScanSettings.SCAN_MODE_BALANCED,
+            ScanSettings.SCAN_MODE_LOW_POWER,
+            ScanSettings.SCAN_MODE_LOW_POWER
+    };
+
+    private static final long[] WINDOW_MILLIS = {10000, 6000, 4000, 3000};
+
+    private static final long[] PAUSE_MILLIS = {2000, 10000, 25000, 60000};
+
+    /**
+     * Level a fresh schedule starts at.
+     */
+    private static final int INITIAL_LEVEL = 1;
+
+    private final Clock mClock;
+
+    /**
+     * Ring of the most recent start times, oldest at {@link #mStartIndex}.
+     */
+    private final long[] mStartTimes = new long[MAX_STARTS];
+
+    private int mStartIndex;
+
+    private int mStartCount;
+
+    private int mLevel = INITIAL_LEVEL;
+
+    public ScanScheduler(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Go back to the initial level, e.g. when the user explicitly asks for a refresh. The start
+     * history is kept, since the throttle still applies.
+     */
+    public void reset() {
+        mLevel = INITIAL_LEVEL;
+    }
+
+    /**
+     * {@link ScanSettings} scan mode to use for the next window.
+     */
+    public int getScanMode() {
+        return SCAN_MODES[mLevel];
+    }
+
+    /**
+     * How long the next window should scan for.
+     */
+    public long getWindowMillis() {
+        return WINDOW_MILLIS[mLevel];
+    }
+
+    /**
+     * How long to wait after a window before starting the next one, ignoring the throttle.
+     */
+    public long getPauseMillis() {
+        return PAUSE_MILLIS[mLevel];
+    }
+
+    /**
+     * How long to wait before the next scan may be started without being throttled. 0 if it can
+     * start now.
+     */
+    public long getStartDelay() {
+        if (mStartCount < MAX_STARTS) {
+            return 0;
+        }
+        long allowedAt = mStartTimes[mStartIndex] + THROTTLE_WINDOW_MILLIS + THROTTLE_MARGIN_MILLIS;
+        return Math.max(0, allowedAt - mClock.millis());
+    }
+
+    /**
+     * Record that a scan was started now.
+     */
+    public void onScanStarted() {
+        mStartTimes[mStartIndex] = mClock.millis();
+        mStartIndex = (mStartIndex + 1) % MAX_STARTS;
+        if (mStartCount < MAX_STARTS) {
+            mStartCount++;
+        }
+    }
+
+    /**
+     * Record the outcome of a finished window and adjust the level for the next one.
+     *
+     * @param newDevices number of devices seen for the first time during the window.
+     */
+    public void onWindowFinished(int newDevices) {
+        if (newDevices > 0) {
+            mLevel = 0;
+        } else if (mLevel < SCAN_MODES.length - 1) {
+            mLevel++;
+        }
+    }
+
+    /**
+     * Current level, 0 being the most aggressive.
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+}
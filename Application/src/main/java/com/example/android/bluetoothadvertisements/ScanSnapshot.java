@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+/**
+ * Immutable copy of the discovered-device list published by {@link ScanIngestor}, along with the
+ * rows that changed since the previous snapshot. Safe to hand from the ingestion thread to the UI.
+ */
+public final class ScanSnapshot<T> {
+
+    private static final ScanSnapshot<Object> EMPTY =
+            new ScanSnapshot<>(0, new Object[0], new long[0], new float[0], new float[0],
+                    new int[0], true);
+
+    private final long mSequence;
+
+    private final Object[] mRecords;
+
+    private final long[] mIds;
+
+    private final float[] mRssi;
+
+    private final float[] mDistance;
+
+    private final int[] mChanged;
+
+    private final boolean mStructural;
+
+    ScanSnapshot(long sequence, Object[] records, long[] ids, float[] rssi, float[] distance,
+                 int[] changed, boolean structural) {
+        mSequence = sequence;
+        mRecords = records;
+        mIds = ids;
+        mRssi = rssi;
+        mDistance = distance;
+        mChanged = changed;
+        mStructural = structural;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> ScanSnapshot<T> empty() {
+        return (ScanSnapshot<T>) EMPTY;
+    }
+
+    /**
+     * Snapshots are numbered consecutively from 1, so a gap tells the consumer it skipped one and
+     * can't rely on {@link #getChangedPosition(int)} alone.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public int size() {
+        return mRecords.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int position) {
+        return (T) mRecords[position];
+    }
+
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    /**
+     * Smoothed RSSI of the device at the given position, in dBm.
+     */
+    public float getRssi(int position) {
+        return mRssi[position];
+    }
+
+    /**
+     * Estimated distance to the device at the given position in metres, or NaN if unknown.
+     */
+    public float getDistance(int position) {
+        return mDistance[position];
+    }
+
+    /**
+     * True if rows were added or removed since the previous snapshot.
+     */
+    public boolean isStructural() {
+        return mStructural;
+    }
+
+    /**
+     * Whether a list showing {@code previous} can be brought up to this snapshot by rebinding
+     * only the changed rows: no rows were added or removed, and no snapshot was skipped.
+     */
+    public boolean isIncrementalTo(ScanSnapshot<?> previous) {
+        return !mStructural && mSequence == previous.mSequence + 1;
+    }
+
+    public int getChangedCount() {
+        return mChanged.length;
+    }
+
+    public int getChangedPosition(int index) {
+        return mChanged[index];
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.BitSet;
+
+/**
+ * Collects row changes coming from the scan callback and hands them out as a single diff, so the
+ * list is refreshed at most once per publish interval instead of once per advertisement.
+ *
+ * Callers mark rows as they change and schedule a publish whenever a mark call returns true (the
+ * first change since the last publish); {@link #getPublishDelay(long)} tells them how long to
+ * wait so consecutive publishes stay at least one interval apart.
+ */
+public class ScanUpdateCoalescer {
+
+    /**
+     * One display frame at 60 fps.
+     */
+    public static final long DEFAULT_INTERVAL_MILLIS = 16;
+
+    /**
+     * Receives the rows that changed since the previous publish.
+     */
+    public interface Listener {
+
+        /**
+         * @param positions  changed row positions in ascending order; only the first
+         *                   {@code count} entries are valid and the array is reused.
+         * @param count      number of valid entries in {@code positions}.
+         * @param structural true if rows were added or removed, in which case positions may have
+         *                   shifted and the whole list should be refreshed.
+         */
+        void onPublish(int[] positions, int count, boolean structural);
+    }
+
+    private final long mIntervalMillis;
+
+    private final BitSet mDirty = new BitSet();
+
+    private int[] mPositions = new int[16];
+
+    private boolean mStructural;
+
+    private boolean mPending;
+
+    private long mLastPublishMillis = Long.MIN_VALUE / 2;
+
+    private long mPublishCount;
+
+    private long mMergedCount;
+
+    public ScanUpdateCoalescer() {
+        this(DEFAULT_INTERVAL_MILLIS);
+    }
+
+    public ScanUpdateCoalescer(long intervalMillis) {
+        mIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Record that the row at the given position was updated in place.
+     *
+     * @return true if this is the first change since the last publish and one must be scheduled.
+     */
+    public boolean markChanged(int position) {
+        if (mDirty.get(position)) {
+            mMergedCount++;
+        } else {
+            mDirty.set(position);
+        }
+        return schedule();
+    }
+
+    /**
+     * Record that rows were added or removed.
+     *
+     * @return true if this is the first change since the last publish and one must be scheduled.
+     */
+    public boolean markStructural() {
+        if (mStructural) {
+            mMergedCount++;
+        }
+        mStructural = true;
+        return schedule();
+    }
+
+    private boolean schedule() {
+        if (mPending) {
+            return false;
+        }
+        mPending = true;
+        return true;
+    }
+
+    /**
+     * Returns true if there are changes waiting to be published.
+     */
+    public boolean isPending() {
+        return mPending;
+    }
+
+    /**
+     * Returns how many milliseconds to wait before publishing so that publishes stay at least one
+     * interval apart.
+     */
+    public long getPublishDelay(long nowMillis) {
+        long elapsed = nowMillis - mLastPublishMillis;
+        return elapsed >= mIntervalMillis ? 0 : mIntervalMillis - elapsed;
+    }
+
+    /**
+     * Hand all pending changes to the listener and reset. Does nothing if nothing changed.
+     */
+    public void publish(long nowMillis, Listener listener) {
+        if (!mPending) {
+            return;
+        }
+
+        int count = 0;
+        for (int i = mDirty.nextSetBit(0); i >= 0; i = mDirty.nextSetBit(i + 1)) {
+            if (count == mPositions.length) {
+                int[] grown = new int[count * 2];
+                System.arraycopy(mPositions, 0, grown, 0, count);
+                mPositions = grown;
+            }
+            mPositions[count++] = i;
+        }
+        boolean structural = mStructural;
+
+        mDirty.clear();
+        mStructural = false;
+        mPending = false;
+        mLastPublishMillis = nowMillis;
+        mPublishCount++;
+
+        listener.onPublish(mPositions, count, structural);
+    }
+
+    /**
+     * Discard pending changes, e.g. when the list is cleared.
+     */
+    public void reset() {
+        mDirty.clear();
+        mStructural = false;
+        mPending = false;
+    }
+
+    public long getPublishCount() {
+        return mPublishCount;
+    }
+
+    /**
+     * Number of changes folded into a change that was already pending.
+     */
+    public long getMergedCount() {
+        return mMergedCount;
+    }
+}
@@ -24,7 +24,10 @@ import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.os.Bundle;
 import android.os.Handler;
-import android.support.v4.app.ListFragment;
+import android.os.SystemClock;
+import android.support.v4.app.Fragment;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -37,30 +40,174 @@ import android.widget.Toast;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
  * Scans for Bluetooth Low Energy Advertisements matching a filter and displays them to the user.
  */
-public class ScannerFragment extends ListFragment {
+public class ScannerFragment extends Fragment {
 
     private static final String TAG = ScannerFragment.class.getSimpleName();
 
     /**
-     * Stops scanning after 5 seconds.
+     * How long the controller may hold results before delivering them in one batch, when batched
+     * scanning is enabled.
      */
-    private static final long SCAN_PERIOD = 5000;
+    private static final long DEFAULT_REPORT_DELAY = 3000;
+
+    /**
+     * Devices not seen for this long are removed from the list.
+     */
+    private static final long DEVICE_TTL = TimeUnit.MILLISECONDS.convert(5, TimeUnit.MINUTES);
+
+    /**
+     * Most devices kept in the list; the least recently seen ones are removed beyond this.
+     */
+    private static final int MAX_DEVICES = 1000;
+
+    /**
+     * How often the 'last seen' times of visible rows are checked for a change.
+     */
+    private static final long LAST_SEEN_TICK = 1000;
+
+    /**
+     * Longest wait for the results flushed at the end of a window before its scan is stopped
+     * anyway.
+     */
+    private static final long FLUSH_TIMEOUT = 1000;
 
     private BluetoothAdapter mBluetoothAdapter;
 
     private BluetoothLeScanner mBluetoothLeScanner;
 
-    private ScanCallback mScanCallback;
+    private SampleScanCallback mScanCallback;
+
+    /**
+     * Callback of a finished window whose flushed results haven't been delivered yet. Its scan
+     * is stopped once they are.
+     */
+    private SampleScanCallback mFlushingCallback;
 
     private ScanResultAdapter mAdapter;
 
+    private RecyclerView mRecyclerView;
+
+    private View mEmptyView;
+
     private Handler mHandler;
 
+    private ScanIngestor<ScanResult> mIngestor;
+
+    /**
+     * Controller-side batching delay in milliseconds, 0 to deliver every result as it arrives.
+     */
+    private long mReportDelay = DEFAULT_REPORT_DELAY;
+
+    private final ScanCallbackStats mCallbackStats = new ScanCallbackStats();
+
+    private final ScanScheduler mScheduler = new ScanScheduler(new ScanScheduler.Clock() {
+        @Override
+        public long millis() {
+            return SystemClock.elapsedRealtime();
+        }
+    });
+
+    /**
+     * {@link ScanIngestor#getNewDeviceCount()} when the current scan window started.
+     */
+    private long mWindowNewDeviceBaseline;
+
+    /**
+     * Latest snapshot published by {@link #mIngestor} that hasn't been shown yet.
+     */
+    private final AtomicReference<ScanSnapshot<ScanResult>> mPendingSnapshot =
+            new AtomicReference<>();
+
+    private final ScanIngestor.ResultReader<ScanResult> mResultReader =
+            new ScanIngestor.ResultReader<ScanResult>() {
+
+        /**
+         * Only used on the ingestion thread.
+         */
+        private final AdvertisingDataParser mParser = new AdvertisingDataParser();
+
+        @Override
+        public String getAddress(ScanResult result) {
+            return result.getDevice().getAddress();
+        }
+
+        @Override
+        public int getRssi(ScanResult result) {
+            return result.getRssi();
+        }
+
+        @Override
+        public int getTxPowerLevel(ScanResult result) {
+            if (result.getScanRecord() == null) {
+                return AdvertisingDataParser.TX_POWER_UNKNOWN;
+            }
+            return mParser.reset(result.getScanRecord().getBytes()).findTxPowerLevel();
+        }
+
+        @Override
+        public long getTimestampNanos(ScanResult result) {
+            return result.getTimestampNanos();
+        }
+    };
+
+    /**
+     * {@link ScanResult#getTimestampNanos()} is based on elapsed realtime.
+     */
+    private final ScanIngestor.Clock mElapsedRealtimeClock = new ScanIngestor.Clock() {
+        @Override
+        public long nanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+
+    /**
+     * Called on the ingestion thread; only the newest snapshot is kept and shown.
+     */
+    private final ScanIngestor.Listener<ScanResult> mSnapshotListener =
+            new ScanIngestor.Listener<ScanResult>() {
+        @Override
+        public void onSnapshot(ScanSnapshot<ScanResult> snapshot) {
+            if (mPendingSnapshot.getAndSet(snapshot) == null) {
+                mHandler.post(mApplySnapshotRunnable);
+            }
+        }
+    };
+
+    private final Runnable mApplySnapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ScanSnapshot<ScanResult> snapshot = mPendingSnapshot.getAndSet(null);
+            if (snapshot != null) {
+                applySnapshot(snapshot);
+            }
+        }
+    };
+
+    /**
+     * Rewrites the 'last seen' text of visible rows whose time has moved on, then reschedules
+     * itself.
+     */
+    private final Runnable mLastSeenTickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mRecyclerView != null) {
+                long now = SystemClock.elapsedRealtimeNanos();
+                for (int i = 0; i < mRecyclerView.getChildCount(); i++) {
+                    ScanResultAdapter.ViewHolder holder = (ScanResultAdapter.ViewHolder)
+                            mRecyclerView.getChildViewHolder(mRecyclerView.getChildAt(i));
+                    mAdapter.refreshLastSeen(holder, now);
+                }
+            }
+            mHandler.postDelayed(this, LAST_SEEN_TICK);
+        }
+    };
+
     /**
      * Must be called after object creation by MainActivity.
      *
@@ -71,6 +218,22 @@ public class ScannerFragment extends ListFragment {
         mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
     }
 
+    /**
+     * Set how long the controller may batch results before waking the app up to deliver them.
+     * Takes effect on the next scan. Pass 0 to receive each result as it arrives.
+     */
+    public void setReportDelay(long reportDelayMillis) {
+        mReportDelay = reportDelayMillis;
+    }
+
+    /**
+     * Whether the next scan will use controller-side batching. Falls back to per-result delivery
+     * on controllers that can't batch.
+     */
+    private boolean isBatchScanning() {
+        return mReportDelay > 0 && mBluetoothAdapter.isOffloadedScanBatchingSupported();
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -85,34 +248,66 @@ public class ScannerFragment extends ListFragment {
         mAdapter = new ScanResultAdapter(getActivity().getApplicationContext(),
                 LayoutInflater.from(getActivity()));
         mHandler = new Handler();
+        mIngestor = new ScanIngestor<>(mResultReader, mSnapshotListener);
+        mIngestor.setEvictionPolicy(mElapsedRealtimeClock, DEVICE_TTL, MAX_DEVICES);
+        mIngestor.start();
+
+    }
 
+    @Override
+    public void onDestroy() {
+        stopScanning();
+        mIngestor.stop();
+        mHandler.removeCallbacks(mApplySnapshotRunnable);
+        super.onDestroy();
     }
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
 
-        final View view = super.onCreateView(inflater, container, savedInstanceState);
+        final View view = inflater.inflate(R.layout.fragment_scanner, container, false);
 
-        setListAdapter(mAdapter);
+        mEmptyView = view.findViewById(R.id.empty_view);
+        mRecyclerView = (RecyclerView) view.findViewById(R.id.scan_list);
+        mRecyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
+        mRecyclerView.setHasFixedSize(true);
+        mRecyclerView.setAdapter(mAdapter);
+        updateEmptyView();
 
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        // The adapter is retained with the fragment, so let go of the old view hierarchy.
+        mRecyclerView.setAdapter(null);
+        mRecyclerView = null;
+        mEmptyView = null;
+        super.onDestroyView();
+    }
+
     @Override
     public void onViewCreated(View view, Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
-        getListView().setDivider(null);
-        getListView().setDividerHeight(0);
-
-        setEmptyText(getString(R.string.empty_list));
-
         // Trigger refresh on app's 1st load
         startScanning();
 
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        mHandler.postDelayed(mLastSeenTickRunnable, LAST_SEEN_TICK);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mLastSeenTickRunnable);
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         super.onCreateOptionsMenu(menu, inflater);
@@ -132,45 +327,161 @@ public class ScannerFragment extends ListFragment {
     }
 
     /**
-     * Start scanning for BLE Advertisements (& set it up to stop after a set period of time).
+     * Start scanning for BLE Advertisements. Scanning then continues in windows whose length,
+     * spacing and power are chosen by {@link ScanScheduler}, until {@link #stopScanning()}.
      */
     public void startScanning() {
         if (mScanCallback == null) {
             Log.d(TAG, "Starting Scanning");
 
-            // Will stop the scanning after a set time.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    stopScanning();
-                }
-            }, SCAN_PERIOD);
+            mScheduler.reset();
 
-            // Kick off a new scan.
-            mScanCallback = new SampleScanCallback();
-            mBluetoothLeScanner.startScan(buildScanFilters(), buildScanSettings(), mScanCallback);
+            mHandler.removeCallbacks(mStartWindowRunnable);
+            long delay = mScheduler.getStartDelay();
+            if (delay > 0) {
+                mHandler.postDelayed(mStartWindowRunnable, delay);
+            } else {
+                startWindow();
+            }
 
-            String toastText = getString(R.string.scan_start_toast) + " "
-                    + TimeUnit.SECONDS.convert(SCAN_PERIOD, TimeUnit.MILLISECONDS) + " "
-                    + getString(R.string.seconds);
-            Toast.makeText(getActivity(), toastText, Toast.LENGTH_LONG).show();
+            Toast.makeText(getActivity(), R.string.scan_start_toast, Toast.LENGTH_LONG).show();
         } else {
-            Toast.makeText(getActivity(), R.string.already_scanning, Toast.LENGTH_SHORT);
+            Toast.makeText(getActivity(), R.string.already_scanning, Toast.LENGTH_SHORT).show();
         }
     }
 
     /**
-     * Stop scanning for BLE Advertisements.
+     * Stop scanning for BLE Advertisements and cancel any scheduled scan window.
      */
     public void stopScanning() {
         Log.d(TAG, "Stopping Scanning");
 
-        // Stop the scan, wipe the callback.
-        mBluetoothLeScanner.stopScan(mScanCallback);
+        mHandler.removeCallbacks(mStartWindowRunnable);
+        mHandler.removeCallbacks(mFinishWindowRunnable);
+        if (mScanCallback != null) {
+            stopWindow();
+        }
+    }
+
+    private final Runnable mFlushTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            finishFlush();
+        }
+    };
+
+    private final Runnable mStartWindowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startWindow();
+        }
+    };
+
+    private final Runnable mFinishWindowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stopWindow();
+
+            int newDevices = (int) (mIngestor.getNewDeviceCount() - mWindowNewDeviceBaseline);
+            mScheduler.onWindowFinished(newDevices);
+
+            long delay = Math.max(mScheduler.getPauseMillis(), mScheduler.getStartDelay());
+            Log.d(TAG, "Scan window found " + newDevices + " new devices, next window in "
+                    + delay + " ms at level " + mScheduler.getLevel());
+            mHandler.postDelayed(mStartWindowRunnable, delay);
+        }
+    };
+
+    /**
+     * Start one scan window, set up to stop after the length chosen by the scheduler.
+     */
+    private void startWindow() {
+        // Starts can be pushed back by the throttle, by which time the level may have changed.
+        long delay = mScheduler.getStartDelay();
+        if (delay > 0) {
+            mHandler.postDelayed(mStartWindowRunnable, delay);
+            return;
+        }
+
+        // Never two scans at once, should the last flush still be pending.
+        finishFlush();
+        mScanCallback = new SampleScanCallback();
+        mWindowNewDeviceBaseline = mIngestor.getNewDeviceCount();
+        mCallbackStats.start(SystemClock.elapsedRealtime());
+        mScheduler.onScanStarted();
+        mBluetoothLeScanner.startScan(buildScanFilters(), buildScanSettings(), mScanCallback);
+
+        mHandler.postDelayed(mFinishWindowRunnable, mScheduler.getWindowMillis());
+    }
+
+    /**
+     * Stop the scan of the current window.
+     */
+    private void stopWindow() {
+        // Results the controller is still holding for the next batch would be lost with the
+        // scan. The flush delivers them later, to this callback, so the scan is only stopped
+        // from there, or after FLUSH_TIMEOUT if they never come.
+        if (isBatchScanning()) {
+            finishFlush();
+            mFlushingCallback = mScanCallback;
+            mBluetoothLeScanner.flushPendingScanResults(mFlushingCallback);
+            mHandler.postDelayed(mFlushTimeoutRunnable, FLUSH_TIMEOUT);
+        } else {
+            mBluetoothLeScanner.stopScan(mScanCallback);
+        }
         mScanCallback = null;
+        mCallbackStats.stop(SystemClock.elapsedRealtime());
+
+        Log.d(TAG, "Scan results received: " + mIngestor.getReceivedCount()
+                + " merged: " + mIngestor.getMergedCount()
+                + " dropped: " + mIngestor.getDroppedCount()
+                + " evicted: " + mIngestor.getEvictedCount());
+        Log.d(TAG, (isBatchScanning() ? "Batched" : "Per-result") + " scan "
+                + mCallbackStats);
+    }
+
+    /**
+     * Stop the scan of the window whose flushed results were awaited, if any.
+     */
+    private void finishFlush() {
+        mHandler.removeCallbacks(mFlushTimeoutRunnable);
+        if (mFlushingCallback != null) {
+            mBluetoothLeScanner.stopScan(mFlushingCallback);
+            mFlushingCallback = null;
+        }
+    }
+
+    /**
+     * Show a snapshot published by the ingestion thread. Rows that changed are notified with
+     * {@link ScanResultAdapter#PAYLOAD_SIGNAL} so only their signal and 'last seen' text are
+     * rebound, unless rows were added or removed or a snapshot was skipped.
+     */
+    private void applySnapshot(ScanSnapshot<ScanResult> snapshot) {
+        ScanSnapshot<ScanResult> previous = mAdapter.getSnapshot();
+        mAdapter.setSnapshot(snapshot);
 
-        // Even if no new results, update 'last seen' times.
-        mAdapter.notifyDataSetChanged();
+        if (!snapshot.isIncrementalTo(previous)) {
+            // Stable ids let the RecyclerView keep the rows of devices that are still listed.
+            mAdapter.notifyDataSetChanged();
+            updateEmptyView();
+            return;
+        }
+
+        for (int i = 0; i < snapshot.getChangedCount(); i++) {
+            mAdapter.notifyItemChanged(snapshot.getChangedPosition(i),
+                    ScanResultAdapter.PAYLOAD_SIGNAL);
+        }
+    }
+
+    /**
+     * Show the empty list message while no devices have been found.
+     */
+    private void updateEmptyView() {
+        if (mRecyclerView != null) {
+            boolean empty = mAdapter.getItemCount() == 0;
+            mEmptyView.setVisibility(empty ? View.VISIBLE : View.GONE);
+            mRecyclerView.setVisibility(empty ? View.GONE : View.VISIBLE);
+        }
     }
 
     /**
@@ -188,11 +499,16 @@ public class ScannerFragment extends ListFragment {
     }
 
     /**
-     * Return a {@link ScanSettings} object set to use low power (to preserve battery life).
+     * Return a {@link ScanSettings} object using the scan mode picked by the scheduler for this
+     * window, and letting the controller batch results when supported so the app isn't woken for
+     * every packet.
      */
     private ScanSettings buildScanSettings() {
         ScanSettings.Builder builder = new ScanSettings.Builder();
-        builder.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+        builder.setScanMode(mScheduler.getScanMode());
+        if (isBatchScanning()) {
+            builder.setReportDelay(mReportDelay);
+        }
         return builder.build();
     }
 
@@ -205,18 +521,19 @@ public class ScannerFragment extends ListFragment {
         public void onBatchScanResults(List<ScanResult> results) {
             super.onBatchScanResults(results);
 
-            for (ScanResult result : results) {
-                mAdapter.add(result);
+            mCallbackStats.onCallback(results.size());
+            mIngestor.submitAll(results);
+            if (this == mFlushingCallback) {
+                finishFlush();
             }
-            mAdapter.notifyDataSetChanged();
         }
 
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
             super.onScanResult(callbackType, result);
 
-            mAdapter.add(result);
-            mAdapter.notifyDataSetChanged();
+            mCallbackStats.onCallback(1);
+            mIngestor.submit(result);
         }
 
         @Override
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+/**
+ * RSSI history and smoothing for one discovered device.
+ *
+ * Samples go into a fixed-size ring of primitive ints and the filters are updated in place, so
+ * adding a sample never allocates or boxes. The exponential moving average and the Kalman filter
+ * are updated on every sample; the median is computed on demand over the most recent samples.
+ *
+ * Distance is estimated with the log-distance path loss model, using the TX power level the
+ * device advertises (e.g. {@code AdvertiserService} sets {@code setIncludeTxPowerLevel(true)}).
+ */
+public class SignalTracker {
+
+    public static final int FILTER_EMA = 0;
+    public static final int FILTER_KALMAN = 1;
+    public static final int FILTER_MEDIAN = 2;
+
+    /**
+     * Typical loss between the antenna and one metre away. Advertised TX power is measured at the
+     * antenna, while the path loss model is anchored at one metre.
+     */
+    private static final int LOSS_AT_ONE_METRE = 41;
+
+    /**
+     * Filter settings, shared by every tracker of a scan.
+     */
+    public static final class Config {
+
+        public static final Config DEFAULT = new Config(FILTER_KALMAN, 16, 0.25, 0.008, 4, 2.0);
+
+        final int filter;
+        final int window;
+        final double emaAlpha;
+        final double kalmanProcessNoise;
+        final double kalmanMeasurementNoise;
+        final double pathLossExponent;
+
+        /**
+         * @param filter                 one of {@link #FILTER_EMA}, {@link #FILTER_KALMAN} or
+         *                               {@link #FILTER_MEDIAN}.
+         * @param window                 number of samples kept, and the N of median-of-N.
+         * @param emaAlpha               weight of a new sample in the moving average, (0, 1].
+         * @param kalmanProcessNoise     how much the true RSSI is expected to drift per sample.
+         * @param kalmanMeasurementNoise variance of a single RSSI reading.
+         * @param pathLossExponent       2 in free space, 2.7 - 4 indoors.
+         */
+        public Config(int filter, int window, double emaAlpha, double kalmanProcessNoise,
+                      double kalmanMeasurementNoise, double pathLossExponent) {
+            this.filter = filter;
+            this.window = window;
+            this.emaAlpha = emaAlpha;
+            this.kalmanProcessNoise = kalmanProcessNoise;
+            this.kalmanMeasurementNoise = kalmanMeasurementNoise;
+            this.pathLossExponent = pathLossExponent;
+        }
+    }
+
+    private final Config mConfig;
+
+    private final int[] mSamples;
+
+    /**
+     * Scratch space for computing the median without allocating.
+     */
+    private final int[] mSorted;
+
+    private int mHead;
+
+    private int mCount;
+
+    private double mEma;
+
+    private double mKalmanEstimate;
+
+    private double mKalmanError;
+
+    private int mTxPowerLevel = AdvertisingDataParser.TX_POWER_UNKNOWN;
+
+    public SignalTracker(Config config) {
+        mConfig = config;
+        mSamples = new int[config.window];
+        mSorted = new int[config.window];
+    }
+
+    /**
+     * Add one RSSI reading, in dBm.
+     */
+    public void addSample(int rssi) {
+        mSamples[mHead] = rssi;
+        mHead = (mHead + 1) % mSamples.length;
+
+        if (mCount == 0) {
+            mEma = rssi;
+            mKalmanEstimate = rssi;
+            mKalmanError = mConfig.kalmanMeasurementNoise;
+        } else {
+            mEma += mConfig.emaAlpha * (rssi - mEma);
+
+            double predictedError = mKalmanError + mConfig.kalmanProcessNoise;
+            double gain = predictedError / (predictedError + mConfig.kalmanMeasurementNoise);
+            mKalmanEstimate += gain * (rssi - mKalmanEstimate);
+            mKalmanError = (1 - gain) * predictedError;
+        }
+
+        if (mCount < mSamples.length) {
+            mCount++;
+        }
+    }
+
+    /**
+     * Remember the TX power level the device advertised, if it did.
+     */
+    public void setTxPowerLevel(int txPowerLevel) {
+        if (txPowerLevel != AdvertisingDataParser.TX_POWER_UNKNOWN) {
+            mTxPowerLevel = txPowerLevel;
+        }
+    }
+
+    public int getSampleCount() {
+        return mCount;
+    }
+
+    /**
+     * Most recent raw reading.
+     */
+    public int getLastRssi() {
+        return mSamples[(mHead + mSamples.length - 1) % mSamples.length];
+    }
+
+    /**
+     * RSSI smoothed by the configured filter.
+     */
+    public double getFilteredRssi() {
+        if (mCount == 0) {
+            return Double.NaN;
+        }
+        switch (mConfig.filter) {
+            case FILTER_EMA:
+                return mEma;
+            case FILTER_MEDIAN:
+                return getMedianRssi();
+            default:
+                return mKalmanEstimate;
+        }
+    }
+
+    private double getMedianRssi() {
+        // Insertion sort; the window is small and this keeps the scratch array reusable.
+        for (int i = 0; i < mCount; i++) {
+            int value = mSamples[(mHead + mSamples.length - 1 - i) % mSamples.length];
+            int j = i - 1;
+            while (j >= 0 && mSorted[j] > value) {
+                mSorted[j + 1] = mSorted[j];
+                j--;
+            }
+            mSorted[j + 1] = value;
+        }
+        int middle = mCount / 2;
+        return (mCount & 1) == 1
+                ? mSorted[middle]
+                : (mSorted[middle - 1] + mSorted[middle]) / 2.0;
+    }
+
+    /**
+     * Estimated distance to the device in metres, or NaN if it hasn't advertised its TX power.
+     */
+    public double getDistance() {
+        if (mTxPowerLevel == AdvertisingDataParser.TX_POWER_UNKNOWN || mCount == 0) {
+            return Double.NaN;
+        }
+        double measuredPower = mTxPowerLevel - LOSS_AT_ONE_METRE;
+        return Math.pow(10, (measuredPower - getFilteredRssi())
+                / (10 * mConfig.pathLossExponent));
+    }
+}
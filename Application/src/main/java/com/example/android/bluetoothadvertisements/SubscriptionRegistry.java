@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Which connected devices have enabled notifications or indications of which characteristics,
+ * as written to each characteristic's Client Characteristic Configuration descriptor.
+ *
+ * A CCCD's value is per client, so it can't be stored in the shared descriptor. Each registered
+ * characteristic gets a bit, and each device one {@code long} holding its notify bits in the low
+ * half and its indicate bits in the high half, so the state of many clients stays compact and
+ * finding the subscribers of a characteristic is a scan over a primitive array.
+ */
+public class SubscriptionRegistry {
+
+    /**
+     * Most characteristics that can be registered: one bit each per half of a {@code long}.
+     */
+    public static final int MAX_CHARACTERISTICS = 32;
+
+    /**
+     * CCCD value bits.
+     */
+    public static final int NOTIFY = 1;
+    public static final int INDICATE = 2;
+
+    private static final byte[] DISABLED_VALUE = {0, 0};
+    private static final byte[] NOTIFY_VALUE = {NOTIFY, 0};
+    private static final byte[] INDICATE_VALUE = {INDICATE, 0};
+    private static final byte[] BOTH_VALUE = {NOTIFY | INDICATE, 0};
+
+    /**
+     * Told when a device changes its configuration of a characteristic.
+     */
+    public interface Listener {
+
+        /**
+         * @param config {@link #NOTIFY} and/or {@link #INDICATE}, or 0 if disabled.
+         */
+        void onSubscriptionChanged(BluetoothDevice device,
+                                   BluetoothGattCharacteristic characteristic, int config);
+    }
+
+    private final IdentityHashMap<BluetoothGattCharacteristic, Integer> mSlots =
+            new IdentityHashMap<>();
+
+    /**
+     * Row of each device in {@link #mDevices} and {@link #mMasks}, by address.
+     */
+    private final HashMap<String, Integer> mRows = new HashMap<>();
+
+    private BluetoothDevice[] mDevices = new BluetoothDevice[4];
+
+    private long[] mMasks = new long[4];
+
+    private int mDeviceCount;
+
+    private Listener mListener;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Give {@code characteristic} a bit. Call once per characteristic with a CCCD, before any
+     * client connects.
+     */
+    public void register(BluetoothGattCharacteristic characteristic) {
+        if (mSlots.size() == MAX_CHARACTERISTICS) {
+            throw new IllegalStateException("Too many characteristics");
+        }
+        if (!mSlots.containsKey(characteristic)) {
+            mSlots.put(characteristic, mSlots.size());
+        }
+    }
+
+    /**
+     * Handles a write to the CCCD of {@code characteristic}.
+     *
+     * @return a {@link BluetoothGatt} status code.
+     */
+    public int onConfigWrite(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                             byte[] value) {
+        int status = validateConfigWrite(characteristic, value);
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            return status;
+        }
+        int slot = mSlots.get(characteristic);
+        int config = value[0] & (NOTIFY | INDICATE);
+
+        boolean changed;
+        synchronized (this) {
+            long bits = (config & NOTIFY) != 0 ? 1L << slot : 0;
+            if ((config & INDICATE) != 0) {
+                bits |= 1L << (slot + MAX_CHARACTERISTICS);
+            }
+            long clear = ~(1L << slot | 1L << (slot + MAX_CHARACTERISTICS));
+
+            int row = getRow(device, config != 0);
+            if (row < 0) {
+                return BluetoothGatt.GATT_SUCCESS;
+            }
+            long mask = (mMasks[row] & clear) | bits;
+            changed = mask != mMasks[row];
+            mMasks[row] = mask;
+            if (mask == 0) {
+                removeRow(row);
+            }
+        }
+
+        if (changed && mListener != null) {
+            mListener.onSubscriptionChanged(device, characteristic, config);
+        }
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * Check a write to the CCCD of {@code characteristic} without applying it.
+     *
+     * @return the status {@link #onConfigWrite} would return.
+     */
+    public int validateConfigWrite(BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (!mSlots.containsKey(characteristic)) {
+            return BluetoothGatt.GATT_WRITE_NOT_PERMITTED;
+        }
+        if (value == null || value.length == 0 || value.length > 2) {
+            return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+        }
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * The CCCD value of {@code characteristic} for {@code device}, for a read request.
+     */
+    public byte[] getConfigValue(BluetoothDevice device,
+                                 BluetoothGattCharacteristic characteristic) {
+        switch (getConfig(device, characteristic)) {
+            case NOTIFY:
+                return NOTIFY_VALUE;
+            case INDICATE:
+                return INDICATE_VALUE;
+            case NOTIFY | INDICATE:
+                return BOTH_VALUE;
+            default:
+                return DISABLED_VALUE;
+        }
+    }
+
+    /**
+     * @return {@link #NOTIFY} and/or {@link #INDICATE}, or 0 if not subscribed.
+     */
+    public synchronized int getConfig(BluetoothDevice device,
+                                      BluetoothGattCharacteristic characteristic) {
+        Integer slot = mSlots.get(characteristic);
+        Integer row = mRows.get(device.getAddress());
+        if (slot == null || row == null) {
+            return 0;
+        }
+        return configOf(mMasks[row], slot);
+    }
+
+    /**
+     * Add the devices subscribed to {@code characteristic} to {@code out}.
+     *
+     * @return the number of devices added.
+     */
+    public synchronized int getSubscribers(BluetoothGattCharacteristic characteristic,
+                                           List<BluetoothDevice> out) {
+        Integer slot = mSlots.get(characteristic);
+        if (slot == null) {
+            return 0;
+        }
+        long bits = 1L << slot | 1L << (slot + MAX_CHARACTERISTICS);
+        int count = 0;
+        for (int row = 0; row < mDeviceCount; row++) {
+            if ((mMasks[row] & bits) != 0) {
+                out.add(mDevices[row]);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Forget a device's configuration once it disconnects. Bonded devices would keep theirs
+     * across connections, but this server doesn't bond.
+     */
+    public synchronized void onDeviceDisconnected(BluetoothDevice device) {
+        Integer row = mRows.get(device.getAddress());
+        if (row != null) {
+            removeRow(row);
+        }
+    }
+
+    /**
+     * Number of devices subscribed to anything.
+     */
+    public synchronized int getDeviceCount() {
+        return mDeviceCount;
+    }
+
+    private static int configOf(long mask, int slot) {
+        int config = (mask & 1L << slot) != 0 ? NOTIFY : 0;
+        if ((mask & 1L << (slot + MAX_CHARACTERISTICS)) != 0) {
+            config |= INDICATE;
+        }
+        return config;
+    }
+
+    /**
+     * Must hold this object's lock.
+     *
+     * @return the device's row, or -1 if it has none and {@code create} is false.
+     */
+    private int getRow(BluetoothDevice device, boolean create) {
+        Integer row = mRows.get(device.getAddress());
+        if (row != null) {
+            return row;
+        }
+        if (!create) {
+            return -1;
+        }
+        if (mDeviceCount == mDevices.length) {
+            mDevices = Arrays.copyOf(mDevices, mDeviceCount * 2);
+            mMasks = Arrays.copyOf(mMasks, mDeviceCount * 2);
+        }
+        mDevices[mDeviceCount] = device;
+        mMasks[mDeviceCount] = 0;
+        mRows.put(device.getAddress(), mDeviceCount);
+        return mDeviceCount++;
+    }
+
+    /**
+     * Remove a row by moving the last one into its place. Must hold this object's lock.
+     */
+    private void removeRow(int row) {
+        mRows.remove(mDevices[row].getAddress());
+        int last = --mDeviceCount;
+        if (row != last) {
+            mDevices[row] = mDevices[last];
+            mMasks[row] = mMasks[last];
+            mRows.put(mDevices[row].getAddress(), row);
+        }
+        mDevices[last] = null;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+/**
+ * Hands values written without response off the binder thread to a consumer thread.
+ *
+ * A write without response needs no answer, so its handler only has to take the value and
+ * return. {@link #offer} stores a reference to the written array in the next slot of a ring that
+ * is allocated once, without copying the value or allocating, and never blocks: the binder
+ * delivers a new array for every callback, so the array can be handed over as it is. The
+ * consumer thread takes every waiting value at once and processes them without holding the
+ * lock, so the binder thread only ever waits for a few reference copies.
+ *
+ * When the consumer falls behind and the ring is full, new values are dropped and counted; the
+ * client can't be told, so size the ring for the largest burst the protocol allows.
+ */
+public class WriteRing {
+
+    private static final String TAG = WriteRing.class.getSimpleName();
+
+    /**
+     * Processes the handed-off values, in the order they were written.
+     */
+    public interface Consumer {
+
+        /**
+         * Called on the consumer thread.
+         */
+        void onWrite(BluetoothDevice device, byte[] value);
+    }
+
+    private final String mName;
+
+    private final Consumer mConsumer;
+
+    private final BluetoothDevice[] mDevices;
+
+    private final byte[][] mValues;
+
+    /**
+     * Index of the oldest value.
+     */
+    private int mHead;
+
+    private int mSize;
+
+    private int mHighWaterMark;
+
+    private long mDroppedCount;
+
+    private Thread mThread;
+
+    private boolean mStopped;
+
+    /**
+     * @param name     of the consumer thread.
+     * @param capacity most values waiting at once.
+     */
+    public WriteRing(String name, int capacity, Consumer consumer) {
+        mName = name;
+        mConsumer = consumer;
+        mDevices = new BluetoothDevice[capacity];
+        mValues = new byte[capacity][];
+    }
+
+    /**
+     * A write handler that offers every value to this ring. The status it returns is only sent
+     * for writes with response.
+     */
+    public GattAttributeDatabase.WriteHandler asWriteHandler() {
+        return new GattAttributeDatabase.WriteHandler() {
+            @Override
+            public int onWrite(BluetoothDevice device, byte[] value) {
+                return offer(device, value)
+                        ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE;
+            }
+        };
+    }
+
+    /**
+     * Start the consumer thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(mName) {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        mThread.start();
+    }
+
+    /**
+     * Stop the consumer thread once it has processed what is waiting. Later values are dropped,
+     * and the ring can't be started again.
+     */
+    public synchronized void stop() {
+        mStopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Queue {@code value} for the consumer. {@code value} must not be modified afterwards.
+     *
+     * @return false if the ring was full or stopped and the value was dropped.
+     */
+    public synchronized boolean offer(BluetoothDevice device, byte[] value) {
+        if (mSize == mValues.length || mStopped) {
+            mDroppedCount++;
+            return false;
+        }
+        int tail = (mHead + mSize) % mValues.length;
+        mDevices[tail] = device;
+        mValues[tail] = value;
+        mSize++;
+        mHighWaterMark = Math.max(mHighWaterMark, mSize);
+        if (mSize == 1) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    public synchronized int getDepth() {
+        return mSize;
+    }
+
+    /**
+     * Most values that were waiting at once.
+     */
+    public synchronized int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + " depth: " + mSize + " high water mark: " + mHighWaterMark
+                + " dropped: " + mDroppedCount;
+    }
+
+    private void drain() {
+        BluetoothDevice[] devices = new BluetoothDevice[mValues.length];
+        byte[][] values = new byte[mValues.length][];
+        while (true) {
+            int count;
+            synchronized (this) {
+                try {
+                    while (mSize == 0 && !mStopped) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Log.w(TAG, mName + " interrupted", e);
+                    return;
+                }
+                if (mSize == 0) {
+                    return;
+                }
+                count = mSize;
+                for (int i = 0; i < count; i++) {
+                    int index = (mHead + i) % mValues.length;
+                    devices[i] = mDevices[index];
+                    values[i] = mValues[index];
+                    mDevices[index] = null;
+                    mValues[index] = null;
+                }
+                mHead = (mHead + count) % mValues.length;
+                mSize = 0;
+            }
+
+            for (int i = 0; i < count; i++) {
+                mConsumer.onWrite(devices[i], values[i]);
+                devices[i] = null;
+                values[i] = null;
+            }
+        }
+    }
+}
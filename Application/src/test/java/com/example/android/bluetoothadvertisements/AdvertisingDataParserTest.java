@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisingDataParserTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+
+    @Test
+    public void walksStructures() {
+        byte[] data = bytes(
+                0x02, AdvertisingDataParser.TYPE_FLAGS, 0x06,
+                0x02, AdvertisingDataParser.TYPE_TX_POWER_LEVEL, 0xF4,
+                0x05, AdvertisingDataParser.TYPE_UUID16_COMPLETE, 0x0F, 0x18, 0x0A, 0x18,
+                0x04, AdvertisingDataParser.TYPE_LOCAL_NAME_COMPLETE, 'a', 'b', 'c',
+                0x00, 0x00);
+        AdvertisingDataParser parser = new AdvertisingDataParser().reset(data);
+
+        assertTrue(parser.next());
+        assertEquals(0x06, parser.getFlags());
+        assertTrue(parser.next());
+        assertEquals(-12, parser.getTxPowerLevel());
+        assertTrue(parser.next());
+        assertEquals(2, parser.getUuidCount());
+        assertEquals(0x180F, parser.getUuid16(0));
+        assertTrue(parser.containsUuid(AdvertisingDataParser.toMostSignificantBits(0x180A),
+                AdvertisingDataParser.BASE_UUID_LSB));
+        StringBuilder name = new StringBuilder();
+        assertTrue(parser.findLocalName(name));
+        assertEquals("abc", name.toString());
+        assertFalse(parser.next());
+    }
+
+    @Test
+    public void stopsAtStructureRunningPastEnd() {
+        AdvertisingDataParser parser = new AdvertisingDataParser()
+                .reset(bytes(0x05, AdvertisingDataParser.TYPE_FLAGS, 0x06));
+
+        assertFalse(parser.next());
+    }
+
+    @Test
+    public void readsServiceData() {
+        AdvertisingDataParser parser = new AdvertisingDataParser().reset(bytes(
+                0x05, AdvertisingDataParser.TYPE_SERVICE_DATA_UUID16, 0xAA, 0xFE, 0x10, 0x20));
+
+        assertTrue(parser.next());
+        assertTrue(parser.hasServiceDataUuid());
+        assertEquals(0xFEAA, parser.getServiceDataShortUuid());
+        assertEquals(AdvertisingDataParser.toMostSignificantBits(0xFEAA),
+                parser.getServiceDataUuidMostSignificantBits());
+        assertEquals(AdvertisingDataParser.BASE_UUID_LSB,
+                parser.getServiceDataUuidLeastSignificantBits());
+        assertEquals(4, parser.getServiceDataOffset());
+        assertEquals(2, parser.getServiceDataLength());
+    }
+
+    @Test
+    public void truncatedServiceDataHasNoUuid() {
+        int[] types = {
+                AdvertisingDataParser.TYPE_SERVICE_DATA_UUID16,
+                AdvertisingDataParser.TYPE_SERVICE_DATA_UUID32,
+                AdvertisingDataParser.TYPE_SERVICE_DATA_UUID128,
+        };
+        for (int type : types) {
+            // One byte of UUID, at the very end of the payload.
+            AdvertisingDataParser parser = new AdvertisingDataParser()
+                    .reset(bytes(0x02, 0x01, 0x06, 0x02, type, 0x12));
+            assertTrue(parser.next(type));
+
+            assertFalse(parser.hasServiceDataUuid());
+            assertEquals(-1, parser.getServiceDataShortUuid());
+            assertEquals(0, parser.getServiceDataUuidMostSignificantBits());
+            assertEquals(0, parser.getServiceDataUuidLeastSignificantBits());
+            assertEquals(0, parser.getServiceDataLength());
+        }
+    }
+
+    @Test
+    public void truncatedManufacturerDataHasNoId() {
+        AdvertisingDataParser parser = new AdvertisingDataParser().reset(
+                bytes(0x02, AdvertisingDataParser.TYPE_MANUFACTURER_SPECIFIC_DATA, 0x4C));
+
+        assertTrue(parser.next());
+        assertEquals(-1, parser.getManufacturerId());
+        assertEquals(0, parser.getManufacturerDataLength());
+    }
+
+    @Test
+    public void missingTxPowerIsUnknown() {
+        AdvertisingDataParser parser = new AdvertisingDataParser()
+                .reset(bytes(0x02, AdvertisingDataParser.TYPE_FLAGS, 0x06));
+
+        assertEquals(AdvertisingDataParser.TX_POWER_UNKNOWN, parser.findTxPowerLevel());
+        assertEquals(AdvertisingDataParser.TX_POWER_UNKNOWN,
+                new AdvertisingDataParser().reset(null).findTxPowerLevel());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class DeviceTableTest {
+
+    private static final String A = "00:11:22:33:44:55";
+    private static final String B = "66:77:88:99:AA:BB";
+    private static final String C = "CC:DD:EE:FF:00:11";
+
+    @Test
+    public void upsertAppendsNewDevicesAndUpdatesKnownOnes() {
+        DeviceTable<String> table = new DeviceTable<>();
+
+        assertEquals(~0, table.upsert(A, "a1", 1));
+        assertEquals(~1, table.upsert(B, "b1", 2));
+        assertEquals(0, table.upsert(A, "a2", 3));
+
+        assertEquals(2, table.size());
+        assertEquals("a2", table.get(0));
+        assertEquals("b1", table.get(1));
+        assertEquals(3, table.getLastSeenNanos(0));
+        assertEquals(1, table.indexOf(B));
+        assertEquals(-1, table.indexOf(C));
+    }
+
+    @Test
+    public void idsArePackedAddresses() {
+        assertEquals(0x001122334455L, DeviceTable.addressToId(A));
+        assertEquals(0x66778899AABBL, DeviceTable.addressToId(B));
+        assertEquals("not an address".hashCode(), DeviceTable.addressToId("not an address"));
+        assertEquals("00-11-22-33-44-55".hashCode(), DeviceTable.addressToId("00-11-22-33-44-55"));
+
+        DeviceTable<String> table = new DeviceTable<>();
+        table.upsert(A, "a", 0);
+        table.upsert(B, "b", 0);
+        assertNotEquals(table.getId(0), table.getId(1));
+    }
+
+    @Test
+    public void evictRemovesExpiredDevicesAndKeepsOrder() {
+        DeviceTable<String> table = new DeviceTable<>();
+        table.upsert(A, "a", 10);
+        table.upsert(B, "b", 20);
+        table.upsert(C, "c", 30);
+        table.upsert(A, "a", 40);
+
+        assertEquals(1, table.evict(25, 100));
+
+        assertEquals(2, table.size());
+        assertEquals(A, table.getAddress(0));
+        assertEquals(C, table.getAddress(1));
+        assertEquals(-1, table.indexOf(B));
+        assertEquals(1, table.indexOf(C));
+    }
+
+    @Test
+    public void evictDropsLeastRecentlySeenBeyondCap() {
+        DeviceTable<String> table = new DeviceTable<>();
+        table.upsert(A, "a", 1);
+        table.upsert(B, "b", 2);
+        table.upsert(C, "c", 3);
+        table.touch(0, 4);
+
+        assertEquals(1, table.evict(0, 2));
+
+        assertEquals(-1, table.indexOf(B));
+        assertEquals(0, table.indexOf(A));
+        assertEquals(1, table.indexOf(C));
+        assertEquals(0, table.evict(0, 2));
+    }
+
+    @Test
+    public void evictedDeviceIsAddedAgainAsNewRow() {
+        DeviceTable<String> table = new DeviceTable<>();
+        table.upsert(A, "a", 1);
+        table.upsert(B, "b", 2);
+        table.evict(2, 10);
+
+        assertEquals(~1, table.upsert(A, "a", 3));
+        assertEquals(B, table.getAddress(0));
+    }
+
+    @Test
+    public void clearEmptiesTable() {
+        DeviceTable<String> table = new DeviceTable<>();
+        table.upsert(A, "a", 1);
+        table.clear();
+
+        assertEquals(0, table.size());
+        assertEquals(-1, table.indexOf(A));
+        assertEquals(0, table.evict(Long.MAX_VALUE, 0));
+        assertEquals(~0, table.upsert(A, "a", 2));
+    }
+}
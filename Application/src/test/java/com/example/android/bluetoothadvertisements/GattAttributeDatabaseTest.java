@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class GattAttributeDatabaseTest {
+
+    private static final UUID SERVICE_UUID = UUID.fromString("0000aaaa-0000-1000-8000-00805f9b34fb");
+    private static final UUID LONG_UUID = UUID.fromString("0000aaa1-0000-1000-8000-00805f9b34fb");
+    private static final UUID SHORT_UUID = UUID.fromString("0000aaa2-0000-1000-8000-00805f9b34fb");
+    private static final UUID WRITE_ONLY_UUID =
+            UUID.fromString("0000aaa3-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHECKED_UUID =
+            UUID.fromString("0000aaa4-0000-1000-8000-00805f9b34fb");
+    private static final UUID DESCRIPTOR_UUID =
+            UUID.fromString("0000aaa4-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * Stands in for the stack: keeps the services added and the last response sent.
+     */
+    private static final class FakeServer implements GattAttributeDatabase.Server {
+        final List<BluetoothGattService> services = new ArrayList<>();
+        int status = -1;
+        int offset = -1;
+        byte[] value;
+
+        @Override
+        public boolean addService(BluetoothGattService service) {
+            services.add(service);
+            return true;
+        }
+
+        @Override
+        public boolean sendResponse(BluetoothDevice device, int requestId, int status, int offset,
+                                    byte[] value) {
+            this.status = status;
+            this.offset = offset;
+            this.value = value;
+            return true;
+        }
+    }
+
+    private final MtuTracker mMtus = new MtuTracker();
+
+    private final FakeServer mServer = new FakeServer();
+
+    private GattAttributeDatabase mDatabase;
+
+    private BluetoothDevice mDevice;
+
+    private BluetoothDevice mOtherDevice;
+
+    /**
+     * Value the long characteristic reads as; replaced, never modified, as handlers must.
+     */
+    private byte[] mLongValue;
+
+    private BluetoothGattCharacteristic mLong;
+
+    private BluetoothGattCharacteristic mShort;
+
+    private BluetoothGattCharacteristic mWriteOnly;
+
+    private BluetoothGattCharacteristic mChecked;
+
+    private BluetoothGattDescriptor mDescriptor;
+
+    private final List<byte[]> mWrites = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        mDevice = adapter.getRemoteDevice("00:11:22:33:44:55");
+        mOtherDevice = adapter.getRemoteDevice("66:77:88:99:AA:BB");
+        mLongValue = pattern(512, 0);
+
+        mDatabase = new GattAttributeDatabase(mMtus);
+        BluetoothGattService service = mDatabase.addService(SERVICE_UUID);
+        mLong = mDatabase.addCharacteristic(service, LONG_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ,
+                new GattAttributeDatabase.ReadHandler() {
+                    @Override
+                    public byte[] onRead(BluetoothDevice device) {
+                        return mLongValue;
+                    }
+                }, null);
+        mShort = mDatabase.addCharacteristic(service, SHORT_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ,
+                GattAttributeDatabase.staticValue(new byte[]{1, 2, 3}), null);
+        mWriteOnly = mDatabase.addCharacteristic(service, WRITE_ONLY_UUID,
+                BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE, null,
+                new GattAttributeDatabase.WriteHandler() {
+                    @Override
+                    public int onWrite(BluetoothDevice device, byte[] value) {
+                        mWrites.add(value);
+                        return BluetoothGatt.GATT_SUCCESS;
+                    }
+                });
+        mChecked = mDatabase.addCharacteristic(service, CHECKED_UUID,
+                BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE, null,
+                new GattAttributeDatabase.ValidatingWriteHandler() {
+                    @Override
+                    public int onValidate(BluetoothDevice device, byte[] value) {
+                        return value.length <= 2
+                                ? BluetoothGatt.GATT_SUCCESS
+                                : BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+                    }
+
+                    @Override
+                    public int onWrite(BluetoothDevice device, byte[] value) {
+                        mWrites.add(value);
+                        return BluetoothGatt.GATT_SUCCESS;
+                    }
+                });
+        mDescriptor = mDatabase.addDescriptor(mShort, DESCRIPTOR_UUID,
+                BluetoothGattDescriptor.PERMISSION_READ,
+                GattAttributeDatabase.staticValue(new byte[]{9}), null);
+        mDatabase.addService(UUID.randomUUID());
+        mDatabase.open(mServer);
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) (i * 7 + seed);
+        }
+        return value;
+    }
+
+    private void read(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                      int offset) {
+        mDatabase.onCharacteristicReadRequest(device, 1, offset, characteristic);
+    }
+
+    /**
+     * Read the whole value as a client would: request after request, each at the offset where
+     * the previous response ended, until one comes back shorter than the MTU allows.
+     */
+    private byte[] longRead(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                            Runnable afterFirst) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int payload = mMtus.getReadPayloadSize(device);
+        int offset = 0;
+        while (true) {
+            read(device, characteristic, offset);
+            assertEquals(BluetoothGatt.GATT_SUCCESS, mServer.status);
+            assertEquals(offset, mServer.offset);
+            out.write(mServer.value, 0, mServer.value.length);
+            if (offset == 0 && afterFirst != null) {
+                afterFirst.run();
+            }
+            offset += mServer.value.length;
+            if (mServer.value.length < payload) {
+                return out.toByteArray();
+            }
+        }
+    }
+
+    @Test
+    public void servicesAreAddedOneAtATime() {
+        assertEquals(1, mServer.services.size());
+        mDatabase.onServiceAdded(BluetoothGatt.GATT_SUCCESS, mServer.services.get(0));
+        assertEquals(2, mServer.services.size());
+        mDatabase.onServiceAdded(BluetoothGatt.GATT_SUCCESS, mServer.services.get(1));
+        assertEquals(2, mServer.services.size());
+    }
+
+    @Test
+    public void shortValueIsSentWhole() {
+        read(mDevice, mShort, 0);
+
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mServer.status);
+        assertArrayEquals(new byte[]{1, 2, 3}, mServer.value);
+    }
+
+    @Test
+    public void readAtOffsetSendsTail() {
+        read(mDevice, mShort, 2);
+
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mServer.status);
+        assertEquals(2, mServer.offset);
+        assertArrayEquals(new byte[]{3}, mServer.value);
+    }
+
+    @Test
+    public void readAtEndSendsNothing() {
+        read(mDevice, mShort, 3);
+
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mServer.status);
+        assertEquals(0, mServer.value.length);
+    }
+
+    @Test
+    public void readPastEndIsInvalidOffset() {
+        read(mDevice, mShort, 4);
+
+        assertEquals(BluetoothGatt.GATT_INVALID_OFFSET, mServer.status);
+        assertNull(mServer.value);
+    }
+
+    @Test
+    public void unreadableAttributeIsRefused() {
+        read(mDevice, mWriteOnly, 0);
+
+        assertEquals(BluetoothGatt.GATT_READ_NOT_PERMITTED, mServer.status);
+    }
+
+    @Test
+    public void descriptorReadIsDispatched() {
+        mDatabase.onDescriptorReadRequest(mDevice, 1, 0, mDescriptor);
+
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mServer.status);
+        assertArrayEquals(new byte[]{9}, mServer.value);
+    }
+
+    @Test
+    public void responsesFitTheMtu() {
+        read(mDevice, mLong, 0);
+        assertEquals(MtuTracker.DEFAULT_MTU - 1, mServer.value.length);
+
+        mMtus.onMtuChanged(mDevice, 247);
+        read(mDevice, mLong, 0);
+        assertEquals(246, mServer.value.length);
+        assertArrayEquals(Arrays.copyOfRange(mLongValue, 0, 246), mServer.value);
+    }
+
+    @Test
+    public void longReadReturnsWholeValueAtEachMtu() {
+        for (int mtu : new int[]{23, 185, 247, 517}) {
+            mMtus.onMtuChanged(mDevice, mtu);
+            assertArrayEquals("MTU " + mtu, mLongValue, longRead(mDevice, mLong, null));
+        }
+    }
+
+    @Test
+    public void longReadIsNotTornByValueChange() {
+        byte[] original = mLongValue;
+
+        byte[] read = longRead(mDevice, mLong, new Runnable() {
+            @Override
+            public void run() {
+                mLongValue = pattern(512, 1);
+            }
+        });
+
+        assertArrayEquals(original, read);
+        assertArrayEquals(mLongValue, longRead(mDevice, mLong, null));
+    }
+
+    @Test
+    public void longReadsOfDevicesAreKeptApart() {
+        byte[] original = mLongValue;
+        read(mDevice, mLong, 0);
+        mLongValue = pattern(512, 1);
+        read(mOtherDevice, mLong, 0);
+
+        read(mDevice, mLong, 22);
+        assertArrayEquals(Arrays.copyOfRange(original, 22, 44), mServer.value);
+        read(mOtherDevice, mLong, 22);
+        assertArrayEquals(Arrays.copyOfRange(mLongValue, 22, 44), mServer.value);
+    }
+
+    @Test
+    public void readingAnotherAttributeEndsLongRead() {
+        read(mDevice, mLong, 0);
+        mLongValue = pattern(512, 1);
+        read(mDevice, mShort, 0);
+
+        read(mDevice, mLong, 22);
+        assertArrayEquals(Arrays.copyOfRange(mLongValue, 22, 44), mServer.value);
+    }
+
+    @Test
+    public void disconnectEndsLongRead() {
+        read(mDevice, mLong, 0);
+        mLongValue = pattern(512, 1);
+        mDatabase.onDeviceDisconnected(mDevice);
+
+        read(mDevice, mLong, 22);
+        assertArrayEquals(Arrays.copyOfRange(mLongValue, 22, 44), mServer.value);
+    }
+
+    @Test
+    public void writeIsDispatchedAndAnsweredWhenAsked() {
+        byte[] value = {4, 5};
+        mDatabase.onCharacteristicWriteRequest(mDevice, 1, mWriteOnly, false, true, 0, value);
+
+        assertEquals(1, mWrites.size());
+        assertSame(value, mWrites.get(0));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mServer.status);
+
+        mServer.status = -1;
+        mDatabase.onCharacteristicWriteRequest(mDevice, 1, mShort, false, false, 0, value);
+        assertEquals(-1, mServer.status);
+        mDatabase.onCharacteristicWriteRequest(mDevice, 1, mShort, false, true, 0, value);
+        assertEquals(BluetoothGatt.GATT_WRITE_NOT_PERMITTED, mServer.status);
+    }
+
+    @Test
+    public void executeWriteAppliesNothingIfAnyValueIsRefused() {
+        mDatabase.onCharacteristicWriteRequest(mDevice, 1, mWriteOnly, true, true, 0,
+                new byte[]{1, 2});
+        mDatabase.onCharacteristicWriteRequest(mDevice, 2, mChecked, true, true, 0,
+                new byte[]{3, 4});
+        mDatabase.onCharacteristicWriteRequest(mDevice, 3, mChecked, true, true, 2,
+                new byte[]{5});
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mServer.status);
+
+        mDatabase.onExecuteWrite(mDevice, 4, true);
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH, mServer.status);
+        assertTrue(mWrites.isEmpty());
+
+        // The refused transaction is gone, and the next one is applied whole.
+        mDatabase.onCharacteristicWriteRequest(mDevice, 5, mWriteOnly, true, true, 0,
+                new byte[]{1, 2});
+        mDatabase.onCharacteristicWriteRequest(mDevice, 6, mChecked, true, true, 0,
+                new byte[]{3, 4});
+        mDatabase.onExecuteWrite(mDevice, 7, true);
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mServer.status);
+        assertEquals(2, mWrites.size());
+        assertArrayEquals(new byte[]{3, 4}, mWrites.get(1));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class GattBroadcasterTest {
+
+    private static final byte[] NOTIFY = {SubscriptionRegistry.NOTIFY, 0};
+
+    private static final byte[] INDICATE = {SubscriptionRegistry.INDICATE, 0};
+
+    /**
+     * Value and confirm flag last sent to each device, by address.
+     */
+    private final HashMap<String, byte[]> mSent = new HashMap<>();
+
+    private final HashMap<String, Boolean> mConfirmed = new HashMap<>();
+
+    private final SubscriptionRegistry mSubscriptions = new SubscriptionRegistry();
+
+    private final MtuTracker mMtus = new MtuTracker();
+
+    private NotificationQueue mQueue;
+
+    private GattBroadcaster mBroadcaster;
+
+    private BluetoothGattCharacteristic mCharacteristic;
+
+    @Before
+    public void setUp() {
+        mQueue = new NotificationQueue(new NotificationQueue.Sender() {
+            @Override
+            public boolean send(BluetoothDevice device,
+                                BluetoothGattCharacteristic characteristic, byte[] value,
+                                boolean confirm) {
+                mSent.put(device.getAddress(), value);
+                mConfirmed.put(device.getAddress(), confirm);
+                return true;
+            }
+        }, null, new Handler(Looper.getMainLooper()));
+        mBroadcaster = new GattBroadcaster(mSubscriptions, mQueue, mMtus);
+        mCharacteristic = new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+        mSubscriptions.register(mCharacteristic);
+    }
+
+    private BluetoothDevice subscribe(int index, int mtu, byte[] config) {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter()
+                .getRemoteDevice(String.format("00:11:22:33:44:%02X", index));
+        mMtus.onMtuChanged(device, mtu);
+        mSubscriptions.onConfigWrite(device, mCharacteristic, config);
+        return device;
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) i;
+        }
+        return value;
+    }
+
+    @Test
+    public void valueIsClippedToEachDevicesPayload() {
+        BluetoothDevice small = subscribe(1, MtuTracker.DEFAULT_MTU, NOTIFY);
+        BluetoothDevice large = subscribe(2, 247, NOTIFY);
+        BluetoothDevice alsoSmall = subscribe(3, MtuTracker.DEFAULT_MTU, NOTIFY);
+        byte[] value = pattern(100);
+
+        mBroadcaster.broadcast(mCharacteristic, value, null);
+
+        byte[] clipped = mSent.get(small.getAddress());
+        assertArrayEquals(Arrays.copyOf(value, 20), clipped);
+        assertSame(value, mSent.get(large.getAddress()));
+        // Devices with the same MTU share one copy.
+        assertSame(clipped, mSent.get(alsoSmall.getAddress()));
+    }
+
+    @Test
+    public void valueThatFitsIsSentAsIs() {
+        BluetoothDevice device = subscribe(1, MtuTracker.DEFAULT_MTU, NOTIFY);
+        byte[] value = pattern(20);
+
+        mBroadcaster.broadcast(mCharacteristic, value, null);
+        assertSame(value, mSent.get(device.getAddress()));
+    }
+
+    @Test
+    public void indicationsGoOnlyToDevicesThatAskedForThem() {
+        BluetoothDevice notified = subscribe(1, MtuTracker.DEFAULT_MTU, NOTIFY);
+        BluetoothDevice indicated = subscribe(2, MtuTracker.DEFAULT_MTU, INDICATE);
+
+        mBroadcaster.broadcast(mCharacteristic, pattern(4), null);
+        assertFalse(mConfirmed.get(notified.getAddress()));
+        assertTrue(mConfirmed.get(indicated.getAddress()));
+    }
+
+    @Test
+    public void broadcastCompletesOnceEveryDeviceReported() {
+        BluetoothDevice first = subscribe(1, MtuTracker.DEFAULT_MTU, NOTIFY);
+        BluetoothDevice second = subscribe(2, MtuTracker.DEFAULT_MTU, NOTIFY);
+        final int[] completed = new int[1];
+        GattBroadcaster.Broadcast broadcast = mBroadcaster.broadcast(mCharacteristic,
+                pattern(4), new GattBroadcaster.Callback() {
+                    @Override
+                    public void onDelivered(GattBroadcaster.Broadcast broadcast,
+                                            BluetoothDevice device, int status) {
+                    }
+
+                    @Override
+                    public void onComplete(GattBroadcaster.Broadcast broadcast) {
+                        completed[0]++;
+                    }
+                });
+        assertEquals(2, broadcast.getDeviceCount());
+
+        mQueue.onNotificationSent(first, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(0, completed[0]);
+        mQueue.onNotificationSent(second, BluetoothGatt.GATT_FAILURE);
+        assertEquals(1, completed[0]);
+        assertEquals(1, broadcast.getDeliveredCount());
+        assertEquals(1, broadcast.getFailedCount());
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the manager with connections that never reach the stack, delivering their callbacks
+ * by hand.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class GattConnectionManagerTest {
+
+    private static final String A = "00:11:22:33:44:01";
+
+    private static final String B = "00:11:22:33:44:02";
+
+    private static final String C = "00:11:22:33:44:03";
+
+    private static final long ROTATION_MILLIS = 5000;
+
+    /**
+     * Opens a {@link BluetoothGatt} with no stack behind it, which ignores disconnect and close,
+     * and keeps the callback of each attempt.
+     */
+    private static final class FakeConnector implements GattConnectionManager.Connector {
+        final List<String> addresses = new ArrayList<>();
+        final List<BluetoothGatt> gatts = new ArrayList<>();
+        final List<BluetoothGattCallback> callbacks = new ArrayList<>();
+        boolean failing;
+
+        @Override
+        public BluetoothGatt connect(BluetoothDevice device, BluetoothGattCallback callback) {
+            if (failing) {
+                return null;
+            }
+            BluetoothGatt gatt = newGatt(device);
+            addresses.add(device.getAddress());
+            gatts.add(gatt);
+            callbacks.add(callback);
+            return gatt;
+        }
+
+        /**
+         * The latest attempt on {@code address}.
+         */
+        int last(String address) {
+            return addresses.lastIndexOf(address);
+        }
+
+        private static BluetoothGatt newGatt(BluetoothDevice device) {
+            try {
+                // With no service, the stack's binder interface, behind it.
+                Constructor<BluetoothGatt> constructor = BluetoothGatt.class.getDeclaredConstructor(
+                        Class.forName("android.bluetooth.IBluetoothGatt"), BluetoothDevice.class,
+                        int.class, boolean.class, int.class);
+                constructor.setAccessible(true);
+                return constructor.newInstance(null, device, 0, false, 0);
+            } catch (ReflectiveOperationException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private final FakeConnector mConnector = new FakeConnector();
+
+    /**
+     * "address STATE" of every state change, in order.
+     */
+    private final List<String> mStates = new ArrayList<>();
+
+    private final List<Integer> mStatuses = new ArrayList<>();
+
+    private final GattOperationQueue.Callback mCallback = new GattOperationQueue.Callback() {
+        @Override
+        public void onComplete(GattOperationQueue.Operation operation, int status) {
+            mStatuses.add(status);
+        }
+    };
+
+    private BluetoothGattCharacteristic mCharacteristic;
+
+    private GattConnectionManager mManager;
+
+    @Before
+    public void setUp() {
+        mCharacteristic = new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        manager(2);
+    }
+
+    private void manager(int maxConnections) {
+        mManager = new GattConnectionManager(mConnector, BluetoothAdapter.getDefaultAdapter(),
+                new Handler(Looper.getMainLooper()), null, new GattConnectionManager.Listener() {
+            @Override
+            public void onStateChanged(GattConnectionManager.Session session,
+                                       GattConnectionManager.State state) {
+                mStates.add(session.getAddress() + " " + state);
+            }
+
+            @Override
+            public void onCharacteristicRead(GattConnectionManager.Session session,
+                                             BluetoothGattCharacteristic characteristic,
+                                             int status) {
+            }
+
+            @Override
+            public void onCharacteristicChanged(GattConnectionManager.Session session,
+                                                BluetoothGattCharacteristic characteristic) {
+            }
+        }, maxConnections, ROTATION_MILLIS);
+    }
+
+    private static void advance(long millis) {
+        ShadowLooper.idleMainLooper(millis, TimeUnit.MILLISECONDS);
+    }
+
+    private void connected(String address) {
+        int attempt = mConnector.last(address);
+        mConnector.callbacks.get(attempt).onConnectionStateChange(mConnector.gatts.get(attempt),
+                BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+    }
+
+    /**
+     * Connected and discovered. The discovery the queue asked for is refused by the fake
+     * connection, so its retries are run out first to leave the queue idle.
+     */
+    private void ready(String address) {
+        connected(address);
+        advance(GattOperationQueue.RETRY_DELAY_MILLIS * GattOperationQueue.DEFAULT_MAX_ATTEMPTS);
+        int attempt = mConnector.last(address);
+        mConnector.callbacks.get(attempt).onServicesDiscovered(mConnector.gatts.get(attempt),
+                BluetoothGatt.GATT_SUCCESS);
+    }
+
+    private void disconnected(String address, int status) {
+        int attempt = mConnector.last(address);
+        mConnector.callbacks.get(attempt).onConnectionStateChange(mConnector.gatts.get(attempt),
+                status, BluetoothProfile.STATE_DISCONNECTED);
+    }
+
+    private GattConnectionManager.State state(String address) {
+        return mManager.getSession(address).getState();
+    }
+
+    @Test
+    public void nothingConnectsBeforeStart() {
+        mManager.connect(A);
+        assertTrue(mConnector.addresses.isEmpty());
+
+        mManager.start();
+        assertEquals(Arrays.asList(A), mConnector.addresses);
+        assertEquals(GattConnectionManager.State.CONNECTING, state(A));
+    }
+
+    @Test
+    public void sessionsBeyondTheLimitWait() {
+        mManager.start();
+        mManager.connect(A);
+        mManager.connect(B);
+        mManager.connect(C);
+
+        assertEquals(Arrays.asList(A, B), mConnector.addresses);
+        assertEquals(2, mManager.getActiveCount());
+        assertEquals(GattConnectionManager.State.WAITING, state(C));
+
+        // C takes the first slot given up.
+        mManager.disconnect(A);
+        assertEquals(Arrays.asList(A, B, C), mConnector.addresses);
+        assertEquals(2, mManager.getActiveCount());
+    }
+
+    @Test
+    public void readySessionsRotateWhileOthersWait() {
+        manager(1);
+        mManager.start();
+        mManager.connect(A);
+        mManager.connect(B);
+        ready(A);
+        assertEquals(GattConnectionManager.State.READY, state(A));
+
+        advance(ROTATION_MILLIS + GattConnectionManager.CHECK_INTERVAL_MILLIS);
+        assertEquals(GattConnectionManager.State.DISCONNECTING, state(A));
+        assertEquals(Arrays.asList(A), mConnector.addresses);
+
+        // A goes to the back of the line, and B gets its turn.
+        disconnected(A, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(GattConnectionManager.State.WAITING, state(A));
+        assertEquals(Arrays.asList(A, B), mConnector.addresses);
+
+        ready(B);
+        advance(ROTATION_MILLIS + GattConnectionManager.CHECK_INTERVAL_MILLIS);
+        disconnected(B, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(Arrays.asList(A, B, A), mConnector.addresses);
+        assertEquals(1, mManager.getSession(A).getConnectionCount());
+    }
+
+    @Test
+    public void nothingRotatesWithoutAnotherWaiting() {
+        manager(1);
+        mManager.start();
+        mManager.connect(A);
+        ready(A);
+
+        advance(ROTATION_MILLIS * 2);
+        assertEquals(GattConnectionManager.State.READY, state(A));
+    }
+
+    @Test
+    public void timedOutAttemptIsRetriedAfterADelay() {
+        mManager.start();
+        mManager.connect(A);
+        mManager.getSession(A).getOperationQueue().readCharacteristic(mCharacteristic,
+                mCallback);
+
+        advance(GattConnectionManager.CONNECT_TIMEOUT_MILLIS
+                + GattConnectionManager.CHECK_INTERVAL_MILLIS);
+        assertEquals(GattConnectionManager.State.WAITING, state(A));
+        assertEquals(0, mManager.getActiveCount());
+        // The queue waits for the next attempt.
+        assertTrue(mStatuses.isEmpty());
+        assertEquals(1, mManager.getSession(A).getOperationQueue().getDepth());
+
+        advance(GattConnectionManager.RETRY_DELAY_MILLIS
+                - GattConnectionManager.CHECK_INTERVAL_MILLIS);
+        assertEquals(1, mConnector.addresses.size());
+        advance(GattConnectionManager.CHECK_INTERVAL_MILLIS);
+        assertEquals(Arrays.asList(A, A), mConnector.addresses);
+        assertEquals(GattConnectionManager.State.CONNECTING, state(A));
+    }
+
+    @Test
+    public void attemptThatCannotStartIsRetriedAfterADelay() {
+        mConnector.failing = true;
+        mManager.start();
+        mManager.connect(A);
+        assertEquals(GattConnectionManager.State.WAITING, state(A));
+
+        mConnector.failing = false;
+        advance(GattConnectionManager.RETRY_DELAY_MILLIS
+                - GattConnectionManager.CHECK_INTERVAL_MILLIS);
+        assertTrue(mConnector.addresses.isEmpty());
+        advance(GattConnectionManager.CHECK_INTERVAL_MILLIS);
+        assertEquals(Arrays.asList(A), mConnector.addresses);
+    }
+
+    @Test
+    public void failedAttemptWaitsForTheRetryDelay() {
+        mManager.start();
+        mManager.connect(A);
+
+        disconnected(A, 133);
+        assertEquals(GattConnectionManager.State.WAITING, state(A));
+        assertEquals(1, mConnector.addresses.size());
+
+        advance(GattConnectionManager.RETRY_DELAY_MILLIS);
+        assertEquals(Arrays.asList(A, A), mConnector.addresses);
+    }
+
+    @Test
+    public void unexpectedDisconnectionRequeuesWithTheQueueKept() {
+        mManager.start();
+        mManager.connect(A);
+        ready(A);
+        // Refused by the fake connection, so it waits for a retry when the link drops.
+        mManager.getSession(A).getOperationQueue().readCharacteristic(mCharacteristic,
+                mCallback);
+
+        disconnected(A, 8);
+        assertTrue(mStates.contains(A + " " + GattConnectionManager.State.WAITING));
+        assertTrue(mStatuses.isEmpty());
+        assertEquals(1, mManager.getSession(A).getOperationQueue().getDepth());
+        // A device that was connected takes its turn again at once.
+        assertEquals(GattConnectionManager.State.CONNECTING, state(A));
+        assertEquals(Arrays.asList(A, A), mConnector.addresses);
+    }
+
+    @Test
+    public void disconnectWhileWaitingClosesAtOnce() {
+        manager(1);
+        mManager.start();
+        mManager.connect(A);
+        GattConnectionManager.Session b = mManager.connect(B);
+        b.getOperationQueue().readCharacteristic(mCharacteristic, mCallback);
+
+        mManager.disconnect(B);
+        assertEquals(GattConnectionManager.State.CLOSED, b.getState());
+        assertEquals(Arrays.asList(GattOperationQueue.STATUS_DISCONNECTED), mStatuses);
+        assertNull(mManager.getSession(B));
+
+        mManager.disconnect(A);
+        assertEquals(Arrays.asList(A), mConnector.addresses);
+    }
+
+    @Test
+    public void disconnectWhileConnectingFreesTheSlotAtOnce() {
+        manager(1);
+        mManager.start();
+        GattConnectionManager.Session a = mManager.connect(A);
+        mManager.connect(B);
+
+        mManager.disconnect(A);
+        assertEquals(GattConnectionManager.State.CLOSED, a.getState());
+        assertEquals(Arrays.asList(A, B), mConnector.addresses);
+
+        // A late callback of the closed attempt is ignored.
+        mConnector.callbacks.get(0).onConnectionStateChange(mConnector.gatts.get(0),
+                BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+        assertEquals(GattConnectionManager.State.CLOSED, a.getState());
+    }
+
+    @Test
+    public void disconnectWhileReadyClosesOnceDisconnected() {
+        manager(1);
+        mManager.start();
+        GattConnectionManager.Session a = mManager.connect(A);
+        mManager.connect(B);
+        ready(A);
+
+        mManager.disconnect(A);
+        assertEquals(GattConnectionManager.State.DISCONNECTING, a.getState());
+        // B waits until A has given up its connection.
+        assertEquals(1, mConnector.addresses.size());
+        assertEquals(1, mManager.getActiveCount());
+
+        disconnected(A, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(GattConnectionManager.State.CLOSED, a.getState());
+        assertEquals(Arrays.asList(A, B), mConnector.addresses);
+        assertTrue(mStates.contains(A + " " + GattConnectionManager.State.CLOSED));
+    }
+
+    @Test
+    public void disconnectWhileRotatingOutIsNotRequeued() {
+        manager(1);
+        mManager.start();
+        GattConnectionManager.Session a = mManager.connect(A);
+        mManager.connect(B);
+        ready(A);
+        advance(ROTATION_MILLIS + GattConnectionManager.CHECK_INTERVAL_MILLIS);
+        assertEquals(GattConnectionManager.State.DISCONNECTING, a.getState());
+
+        mManager.disconnect(A);
+        disconnected(A, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(GattConnectionManager.State.CLOSED, a.getState());
+        assertNull(mManager.getSession(A));
+    }
+
+    @Test
+    public void closeEndsEverySession() {
+        manager(1);
+        mManager.start();
+        GattConnectionManager.Session a = mManager.connect(A);
+        GattConnectionManager.Session b = mManager.connect(B);
+        b.getOperationQueue().readCharacteristic(mCharacteristic, mCallback);
+
+        mManager.close();
+        assertEquals(GattConnectionManager.State.CLOSED, a.getState());
+        assertEquals(GattConnectionManager.State.CLOSED, b.getState());
+        assertEquals(Arrays.asList(GattOperationQueue.STATUS_DISCONNECTED), mStatuses);
+        assertEquals(0, mManager.getActiveCount());
+
+        // Still started: a device connected later is connected as usual.
+        mManager.connect(C);
+        assertEquals(Arrays.asList(A, C), mConnector.addresses);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class GattDiscoveryCacheTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private GattDiscoveryCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mCache = new GattDiscoveryCache(new File(mFolder.getRoot(), "gatt"));
+    }
+
+    private static List<BluetoothGattService> tree(int characteristicCount) {
+        List<BluetoothGattService> services = new ArrayList<>();
+        BluetoothGattService service = new BluetoothGattService(
+                Constants.UUID_ALERT_NOTIFICATION_SERVICE,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        for (int i = 0; i < characteristicCount; i++) {
+            BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+                    new UUID(i, i), BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                    BluetoothGattCharacteristic.PERMISSION_READ);
+            characteristic.addDescriptor(new BluetoothGattDescriptor(new UUID(i, -i),
+                    BluetoothGattDescriptor.PERMISSION_WRITE));
+            service.addCharacteristic(characteristic);
+        }
+        services.add(service);
+        services.add(new BluetoothGattService(new UUID(7, 7),
+                BluetoothGattService.SERVICE_TYPE_SECONDARY));
+        return services;
+    }
+
+    private File getFile() {
+        File[] files = new File(mFolder.getRoot(), "gatt").listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    @Test
+    public void storedTreeLoadsBackTheSame() {
+        List<BluetoothGattService> services = tree(3);
+        assertTrue(mCache.store(ADDRESS, services));
+
+        List<BluetoothGattService> loaded = mCache.load(ADDRESS);
+        assertEquals(2, loaded.size());
+        assertEquals(GattDiscoveryCache.schemaHash(services),
+                GattDiscoveryCache.schemaHash(loaded));
+        BluetoothGattCharacteristic characteristic =
+                loaded.get(0).getCharacteristics().get(2);
+        assertEquals(new UUID(2, 2), characteristic.getUuid());
+        assertEquals(BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                characteristic.getProperties());
+        assertEquals(new UUID(2, -2), characteristic.getDescriptors().get(0).getUuid());
+        assertEquals(BluetoothGattService.SERVICE_TYPE_SECONDARY, loaded.get(1).getType());
+    }
+
+    @Test
+    public void sameTreeIsNotRewrittenAndChangedTreeIs() {
+        assertTrue(mCache.store(ADDRESS, tree(3)));
+        assertFalse(mCache.store(ADDRESS, tree(3)));
+
+        assertNotEquals(GattDiscoveryCache.schemaHash(tree(3)),
+                GattDiscoveryCache.schemaHash(tree(4)));
+        assertTrue(mCache.store(ADDRESS, tree(4)));
+        assertEquals(4, mCache.load(ADDRESS).get(0).getCharacteristics().size());
+    }
+
+    @Test
+    public void truncatedFileIsDroppedAndRewritten() throws Exception {
+        mCache.store(ADDRESS, tree(3));
+        File file = getFile();
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        truncated.setLength(file.length() / 2);
+        truncated.close();
+
+        assertNull(mCache.load(ADDRESS));
+        assertFalse(file.exists());
+        assertTrue(mCache.store(ADDRESS, tree(3)));
+        assertEquals(3, mCache.load(ADDRESS).get(0).getCharacteristics().size());
+    }
+
+    @Test
+    public void fileOfAnotherFormatIsIgnored() throws Exception {
+        mCache.store(ADDRESS, tree(3));
+        RandomAccessFile file = new RandomAccessFile(getFile(), "rw");
+        file.writeInt(0);
+        file.close();
+
+        assertNull(mCache.load(ADDRESS));
+        assertTrue(mCache.store(ADDRESS, tree(3)));
+    }
+
+    @Test
+    public void invalidatedTreeIsGone() {
+        mCache.store(ADDRESS, tree(3));
+        mCache.invalidate(ADDRESS);
+
+        assertNull(mCache.load(ADDRESS));
+        assertTrue(mCache.store(ADDRESS, tree(3)));
+        assertNull(mCache.load("66:77:88:99:AA:BB"));
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class GattEventBusTest {
+
+    private static final UUID UUID_DATA = UUID.randomUUID();
+
+    /**
+     * Keeps each batch it is given.
+     */
+    private static final class RecordingSubscriber<E> implements GattEventBus.Subscriber<E> {
+        final List<List<E>> batches = new ArrayList<>();
+
+        @Override
+        public void onEvents(List<E> events) {
+            batches.add(events);
+        }
+
+        List<E> all() {
+            List<E> all = new ArrayList<>();
+            for (List<E> batch : batches) {
+                all.addAll(batch);
+            }
+            return all;
+        }
+    }
+
+    private final GattEventBus mBus = new GattEventBus();
+
+    private final RecordingSubscriber<GattEventBus.DataEvent> mData = new RecordingSubscriber<>();
+
+    @Before
+    public void setUp() {
+        // Batches are delivered only when the test runs the main looper.
+        ShadowLooper.pauseMainLooper();
+    }
+
+    @After
+    public void tearDown() {
+        ShadowLooper.unPauseMainLooper();
+    }
+
+    private static GattEventBus.DataEvent data(int i) {
+        return new GattEventBus.DataEvent("00:11:22:33:44:55", UUID_DATA, new byte[]{(byte) i});
+    }
+
+    private static List<Integer> values(List<GattEventBus.DataEvent> events) {
+        List<Integer> values = new ArrayList<>();
+        for (GattEventBus.DataEvent event : events) {
+            values.add((int) event.value[0]);
+        }
+        return values;
+    }
+
+    private GattEventBus.Subscription<GattEventBus.DataEvent> subscribeData(
+            int capacity, GattEventBus.Overflow overflow) {
+        return mBus.subscribe(GattEventBus.DataEvent.class, mData,
+                new Handler(Looper.getMainLooper()), capacity, overflow);
+    }
+
+    @Test
+    public void waitingEventsAreDeliveredInBatches() {
+        mBus.subscribe(GattEventBus.DataEvent.class, mData);
+        int count = GattEventBus.DEFAULT_MAX_BATCH + 10;
+        for (int i = 0; i < count; i++) {
+            assertTrue(mBus.publish(data(i)));
+        }
+        assertTrue(mData.batches.isEmpty());
+
+        ShadowLooper.runMainLooperOneTask();
+        assertEquals(1, mData.batches.size());
+        assertEquals(GattEventBus.DEFAULT_MAX_BATCH, mData.batches.get(0).size());
+
+        ShadowLooper.runUiThreadTasks();
+        assertEquals(2, mData.batches.size());
+        assertEquals(10, mData.batches.get(1).size());
+        for (int i = 0; i < count; i++) {
+            assertEquals((byte) i, mData.all().get(i).value[0]);
+        }
+    }
+
+    @Test
+    public void dropOldestKeepsTheLatest() {
+        GattEventBus.Subscription<GattEventBus.DataEvent> subscription =
+                subscribeData(3, GattEventBus.Overflow.DROP_OLDEST);
+        assertTrue(mBus.publish(data(1)));
+        assertTrue(mBus.publish(data(2)));
+        assertTrue(mBus.publish(data(3)));
+        assertFalse(mBus.publish(data(4)));
+        assertFalse(mBus.publish(data(5)));
+
+        ShadowLooper.runUiThreadTasks();
+        assertEquals(Arrays.asList(3, 4, 5), values(mData.all()));
+        assertEquals(2, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void dropNewestKeepsWhatWasWaiting() {
+        GattEventBus.Subscription<GattEventBus.DataEvent> subscription =
+                subscribeData(3, GattEventBus.Overflow.DROP_NEWEST);
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(mBus.publish(data(i)));
+        }
+        assertFalse(mBus.publish(data(4)));
+
+        ShadowLooper.runUiThreadTasks();
+        assertEquals(Arrays.asList(1, 2, 3), values(mData.all()));
+        assertEquals(1, subscription.getDroppedCount());
+
+        // Room again once delivered.
+        assertTrue(mBus.publish(data(5)));
+    }
+
+    @Test
+    public void defaultOverflowDependsOnTheType() {
+        assertEquals(GattEventBus.Overflow.DROP_OLDEST,
+                GattEventBus.defaultOverflow(GattEventBus.DataEvent.class));
+        assertEquals(GattEventBus.Overflow.DROP_NEWEST,
+                GattEventBus.defaultOverflow(GattEventBus.ConnectionEvent.class));
+        assertEquals(GattEventBus.Overflow.DROP_NEWEST,
+                GattEventBus.defaultOverflow(GattEventBus.AdvertisingFailedEvent.class));
+    }
+
+    @Test
+    public void connectionEventsAreNotDroppedToMakeRoom() {
+        RecordingSubscriber<GattEventBus.ConnectionEvent> connections =
+                new RecordingSubscriber<>();
+        mBus.subscribe(GattEventBus.ConnectionEvent.class, connections);
+        for (int i = 0; i < GattEventBus.DEFAULT_CAPACITY; i++) {
+            assertTrue(mBus.publish(new GattEventBus.ConnectionEvent("00:11:22:33:44:55",
+                    BluetoothProfile.STATE_CONNECTED)));
+        }
+        assertFalse(mBus.publish(new GattEventBus.ConnectionEvent("00:11:22:33:44:55",
+                BluetoothProfile.STATE_DISCONNECTED)));
+
+        ShadowLooper.runUiThreadTasks();
+        List<GattEventBus.ConnectionEvent> delivered = connections.all();
+        assertEquals(GattEventBus.DEFAULT_CAPACITY, delivered.size());
+        for (GattEventBus.ConnectionEvent event : delivered) {
+            assertEquals(BluetoothProfile.STATE_CONNECTED, event.state);
+        }
+    }
+
+    @Test
+    public void eventsOnlyGoToSubscribersOfTheirType() {
+        RecordingSubscriber<GattEventBus.ConnectionEvent> connections =
+                new RecordingSubscriber<>();
+        mBus.subscribe(GattEventBus.ConnectionEvent.class, connections);
+        assertFalse(mBus.hasSubscribers(GattEventBus.DataEvent.class));
+
+        assertTrue(mBus.publish(data(1)));
+        ShadowLooper.runUiThreadTasks();
+        assertTrue(connections.batches.isEmpty());
+    }
+
+    @Test
+    public void unsubscribeDropsWhatIsWaiting() {
+        GattEventBus.Subscription<GattEventBus.DataEvent> subscription =
+                mBus.subscribe(GattEventBus.DataEvent.class, mData);
+        mBus.publish(data(1));
+        mBus.publish(data(2));
+
+        mBus.unsubscribe(subscription);
+        ShadowLooper.runUiThreadTasks();
+        assertTrue(mData.batches.isEmpty());
+        assertFalse(mBus.hasSubscribers(GattEventBus.DataEvent.class));
+        assertTrue(mBus.publish(data(3)));
+        ShadowLooper.runUiThreadTasks();
+        assertTrue(mData.batches.isEmpty());
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class GattOperationQueueTest {
+
+    /**
+     * Starts what it is given, unless told to refuse, and keeps what was started.
+     */
+    private static final class FakeClient implements GattOperationQueue.Client {
+        final List<Object> started = new ArrayList<>();
+        final List<BluetoothGattService> services = new ArrayList<>();
+        int refusals;
+
+        private boolean start(Object target) {
+            if (refusals > 0) {
+                refusals--;
+                return false;
+            }
+            started.add(target);
+            return true;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return start(GattOperationQueue.Type.DISCOVER_SERVICES);
+        }
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return start(characteristic);
+        }
+
+        @Override
+        public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return start(characteristic);
+        }
+
+        @Override
+        public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+            return start(descriptor);
+        }
+
+        @Override
+        public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+            return start(descriptor);
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return start(mtu);
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                     boolean enabled) {
+            return true;
+        }
+
+        @Override
+        public List<BluetoothGattService> getServices() {
+            return services;
+        }
+    }
+
+    private final List<Integer> mStatuses = new ArrayList<>();
+
+    private final GattOperationQueue.Callback mCallback = new GattOperationQueue.Callback() {
+        @Override
+        public void onComplete(GattOperationQueue.Operation operation, int status) {
+            mStatuses.add(status);
+        }
+    };
+
+    private final List<GattOperationQueue.Operation> mTimedOut = new ArrayList<>();
+
+    private final FakeClient mClient = new FakeClient();
+
+    private GattOperationQueue mQueue;
+
+    private BluetoothGattCharacteristic mCharacteristic;
+
+    private BluetoothGattCharacteristic mOther;
+
+    @Before
+    public void setUp() {
+        mQueue = new GattOperationQueue(new Handler(Looper.getMainLooper()),
+                new GattOperationQueue.TimeoutListener() {
+                    @Override
+                    public void onTimeout(GattOperationQueue.Operation operation) {
+                        mTimedOut.add(operation);
+                    }
+                });
+        mCharacteristic = characteristic();
+        mOther = characteristic();
+    }
+
+    private static BluetoothGattCharacteristic characteristic() {
+        return new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_READ
+                        | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_READ
+                        | BluetoothGattCharacteristic.PERMISSION_WRITE);
+    }
+
+    private static final UUID UUID_SERVICE = UUID.randomUUID();
+
+    private static final UUID UUID_CHARACTERISTIC = UUID.randomUUID();
+
+    private static final UUID UUID_GONE = UUID.randomUUID();
+
+    /**
+     * A service as discovered on one connection: new objects each time, the same UUIDs.
+     */
+    private static BluetoothGattService discoveredService(boolean withGone) {
+        BluetoothGattService service = new BluetoothGattService(UUID_SERVICE,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+                UUID_CHARACTERISTIC, BluetoothGattCharacteristic.PROPERTY_WRITE
+                | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_WRITE);
+        characteristic.addDescriptor(new BluetoothGattDescriptor(
+                Constants.UUID_CLIENT_CHARACTERISTIC_CONFIG,
+                BluetoothGattDescriptor.PERMISSION_WRITE));
+        service.addCharacteristic(characteristic);
+        if (withGone) {
+            service.addCharacteristic(new BluetoothGattCharacteristic(UUID_GONE,
+                    BluetoothGattCharacteristic.PROPERTY_READ,
+                    BluetoothGattCharacteristic.PERMISSION_READ));
+        }
+        return service;
+    }
+
+    private static void advance(long millis) {
+        ShadowLooper.idleMainLooper(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void completionOnlyMatchesTheRunningOperation() {
+        mQueue.attach(mClient);
+        GattOperationQueue.Operation read = mQueue.readCharacteristic(mCharacteristic, mCallback);
+        mQueue.readCharacteristic(mOther, mCallback);
+        assertEquals(Arrays.<Object>asList(mCharacteristic), mClient.started);
+
+        // Another characteristic, and another type on the right one, are both ignored.
+        mQueue.onCharacteristicRead(mOther, BluetoothGatt.GATT_SUCCESS);
+        mQueue.onCharacteristicWrite(mCharacteristic, BluetoothGatt.GATT_SUCCESS);
+        assertTrue(mStatuses.isEmpty());
+        assertEquals(1, mClient.started.size());
+
+        mCharacteristic.setValue(new byte[]{7});
+        mQueue.onCharacteristicRead(mCharacteristic, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(Arrays.asList(BluetoothGatt.GATT_SUCCESS), mStatuses);
+        assertArrayEquals(new byte[]{7}, read.getResult());
+        assertEquals(Arrays.<Object>asList(mCharacteristic, mOther), mClient.started);
+    }
+
+    @Test
+    public void refusedStartIsRetried() {
+        mQueue.attach(mClient);
+        mClient.refusals = GattOperationQueue.DEFAULT_MAX_ATTEMPTS - 1;
+        GattOperationQueue.Operation read = mQueue.readCharacteristic(mCharacteristic, mCallback);
+        assertTrue(mClient.started.isEmpty());
+
+        advance(GattOperationQueue.RETRY_DELAY_MILLIS);
+        assertTrue(mClient.started.isEmpty());
+        advance(GattOperationQueue.RETRY_DELAY_MILLIS);
+        assertEquals(Arrays.<Object>asList(mCharacteristic), mClient.started);
+        assertEquals(GattOperationQueue.DEFAULT_MAX_ATTEMPTS, read.getAttempts());
+    }
+
+    @Test
+    public void operationRefusedEveryTimeFailsAndTheNextRuns() {
+        mQueue.attach(mClient);
+        mClient.refusals = GattOperationQueue.DEFAULT_MAX_ATTEMPTS;
+        mQueue.readCharacteristic(mCharacteristic, mCallback);
+        mQueue.readCharacteristic(mOther, mCallback);
+
+        advance(GattOperationQueue.RETRY_DELAY_MILLIS * GattOperationQueue.DEFAULT_MAX_ATTEMPTS);
+        assertEquals(Arrays.asList(GattOperationQueue.STATUS_NOT_STARTED), mStatuses);
+        assertEquals(Arrays.<Object>asList(mOther), mClient.started);
+    }
+
+    @Test
+    public void timeoutFailsTheOperationWithoutIssuingItAgain() {
+        mQueue.attach(mClient);
+        GattOperationQueue.Operation write = mQueue.writeCharacteristic(mCharacteristic,
+                new byte[]{1}, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, mCallback);
+        mQueue.readCharacteristic(mOther, mCallback);
+
+        advance(GattOperationQueue.DEFAULT_TIMEOUT_MILLIS);
+        assertEquals(Arrays.asList(GattOperationQueue.STATUS_TIMEOUT), mStatuses);
+        assertEquals(Arrays.asList(write), mTimedOut);
+
+        // Nothing more is issued on the connection, and a late completion is ignored.
+        advance(GattOperationQueue.DEFAULT_TIMEOUT_MILLIS);
+        mQueue.onCharacteristicWrite(mCharacteristic, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(1, mStatuses.size());
+        assertEquals(1, mClient.started.size());
+        assertEquals(1, mQueue.getDepth());
+
+        // What was waiting runs on the next connection.
+        FakeClient reconnected = new FakeClient();
+        mQueue.attach(reconnected);
+        assertEquals(Arrays.<Object>asList(mOther), reconnected.started);
+    }
+
+    @Test
+    public void batchReportsOnceWithItsFailures() {
+        final List<Integer> failures = new ArrayList<>();
+        mQueue.attach(mClient);
+        GattOperationQueue.Batch batch = new GattOperationQueue.Batch()
+                .writeCharacteristic(mCharacteristic, new byte[]{1},
+                        BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT)
+                .writeCharacteristic(mOther, new byte[]{2},
+                        BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT)
+                .readCharacteristic(mCharacteristic);
+        mQueue.submit(batch, new GattOperationQueue.BatchCallback() {
+            @Override
+            public void onComplete(GattOperationQueue.Batch batch, int failed) {
+                failures.add(failed);
+            }
+        });
+
+        mQueue.onCharacteristicWrite(mCharacteristic, BluetoothGatt.GATT_SUCCESS);
+        mQueue.onCharacteristicWrite(mOther, BluetoothGatt.GATT_WRITE_NOT_PERMITTED);
+        assertTrue(failures.isEmpty());
+        mQueue.onCharacteristicRead(mCharacteristic, BluetoothGatt.GATT_SUCCESS);
+
+        assertEquals(Arrays.asList(1), failures);
+        assertEquals(BluetoothGatt.GATT_WRITE_NOT_PERMITTED,
+                batch.getOperations().get(1).getStatus());
+        assertTrue(mQueue.isIdle());
+    }
+
+    @Test
+    public void readAllReadsEachInOrder() {
+        final List<GattOperationQueue.Batch> done = new ArrayList<>();
+        mQueue.attach(mClient);
+        GattOperationQueue.Batch batch = mQueue.readAll(Arrays.asList(mCharacteristic, mOther),
+                new GattOperationQueue.BatchCallback() {
+                    @Override
+                    public void onComplete(GattOperationQueue.Batch batch, int failed) {
+                        assertEquals(0, failed);
+                        done.add(batch);
+                    }
+                });
+
+        mCharacteristic.setValue(new byte[]{1});
+        mQueue.onCharacteristicRead(mCharacteristic, BluetoothGatt.GATT_SUCCESS);
+        mOther.setValue(new byte[]{2});
+        mQueue.onCharacteristicRead(mOther, BluetoothGatt.GATT_SUCCESS);
+
+        assertEquals(Arrays.<Object>asList(mCharacteristic, mOther), mClient.started);
+        assertEquals(1, done.size());
+        assertSame(batch, done.get(0));
+        assertArrayEquals(new byte[]{1}, batch.getOperations().get(0).getResult());
+        assertArrayEquals(new byte[]{2}, batch.getOperations().get(1).getResult());
+    }
+
+    @Test
+    public void emptyBatchReportsAtOnce() {
+        final List<Integer> failures = new ArrayList<>();
+        mQueue.readAll(new ArrayList<BluetoothGattCharacteristic>(),
+                new GattOperationQueue.BatchCallback() {
+                    @Override
+                    public void onComplete(GattOperationQueue.Batch batch, int failed) {
+                        failures.add(failed);
+                    }
+                });
+        assertEquals(Arrays.asList(0), failures);
+    }
+
+    @Test
+    public void latencyIsRecordedPerType() {
+        mQueue.attach(mClient);
+        mQueue.readCharacteristic(mCharacteristic, mCallback);
+        mQueue.readCharacteristic(mOther, mCallback);
+        mQueue.requestMtu(247, mCallback);
+
+        mQueue.onCharacteristicRead(mCharacteristic, BluetoothGatt.GATT_SUCCESS);
+        mQueue.onCharacteristicRead(mOther, BluetoothGatt.GATT_SUCCESS);
+        mQueue.onMtuChanged(247, BluetoothGatt.GATT_SUCCESS);
+
+        assertEquals(2, mQueue.getLatency(GattOperationQueue.Type.READ_CHARACTERISTIC)
+                .getCount());
+        assertEquals(1, mQueue.getLatency(GattOperationQueue.Type.REQUEST_MTU).getCount());
+        assertEquals(0, mQueue.getLatency(GattOperationQueue.Type.WRITE_CHARACTERISTIC)
+                .getCount());
+    }
+
+    @Test
+    public void discoveryRunsAheadOfOperationsKeptAcrossAttach() {
+        BluetoothGattService service = new BluetoothGattService(UUID_SERVICE,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        service.addCharacteristic(mCharacteristic);
+        mClient.services.add(service);
+        mQueue.readCharacteristic(mCharacteristic, mCallback);
+        GattOperationQueue.Operation discovery = mQueue.attachAndDiscover(mClient, null);
+        assertEquals(Arrays.<Object>asList(GattOperationQueue.Type.DISCOVER_SERVICES),
+                mClient.started);
+
+        mQueue.onServicesDiscovered(BluetoothGatt.GATT_SUCCESS);
+        assertEquals(BluetoothGatt.GATT_SUCCESS, discovery.getStatus());
+        assertNull(discovery.getResult());
+        assertEquals(mCharacteristic, mClient.started.get(1));
+    }
+
+    @Test
+    public void detachKeepsOperationsNotStarted() {
+        // Nothing is attached, as while a session waits for a slot or its attempt timed out.
+        mQueue.readCharacteristic(mCharacteristic, mCallback);
+        mQueue.writeCharacteristic(mCharacteristic, new byte[]{1},
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, mCallback);
+
+        mQueue.detach();
+        assertTrue(mStatuses.isEmpty());
+        assertEquals(2, mQueue.getDepth());
+    }
+
+    @Test
+    public void disconnectFailsEverythingQueued() {
+        mQueue.readCharacteristic(mCharacteristic, mCallback);
+        mQueue.writeCharacteristic(mCharacteristic, new byte[]{1},
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, mCallback);
+
+        mQueue.onDisconnected();
+        assertEquals(2, mStatuses.size());
+        for (int status : mStatuses) {
+            assertEquals(GattOperationQueue.STATUS_DISCONNECTED, status);
+        }
+        assertTrue(mQueue.isIdle());
+    }
+
+    @Test
+    public void operationsKeptAcrossReconnectRunOnTheNewConnection() {
+        BluetoothGattService oldService = discoveredService(true);
+        mClient.services.add(oldService);
+        mQueue.attach(mClient);
+        BluetoothGattCharacteristic oldCharacteristic =
+                oldService.getCharacteristic(UUID_CHARACTERISTIC);
+        mQueue.writeCharacteristic(oldCharacteristic, new byte[]{1},
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, mCallback);
+        GattOperationQueue.Operation write = mQueue.writeCharacteristic(oldCharacteristic,
+                new byte[]{2}, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, mCallback);
+        GattOperationQueue.Operation subscribe =
+                mQueue.setNotification(oldCharacteristic, true, mCallback);
+        GattOperationQueue.Operation read =
+                mQueue.readCharacteristic(oldService.getCharacteristic(UUID_GONE), mCallback);
+
+        // The connection drops during the first write; the rest are kept.
+        mQueue.detach();
+        assertEquals(Arrays.asList(GattOperationQueue.STATUS_DISCONNECTED), mStatuses);
+
+        FakeClient reconnected = new FakeClient();
+        BluetoothGattService newService = discoveredService(false);
+        reconnected.services.add(newService);
+        BluetoothGattCharacteristic newCharacteristic =
+                newService.getCharacteristic(UUID_CHARACTERISTIC);
+        mQueue.attachAndDiscover(reconnected, null);
+        mQueue.onServicesDiscovered(BluetoothGatt.GATT_SUCCESS);
+
+        // The read's characteristic is gone from the new tree.
+        assertEquals(GattOperationQueue.STATUS_NOT_FOUND, read.getStatus());
+        assertSame(newCharacteristic, write.getCharacteristic());
+        assertEquals(Arrays.<Object>asList(GattOperationQueue.Type.DISCOVER_SERVICES,
+                newCharacteristic), reconnected.started);
+        assertArrayEquals(new byte[]{2}, newCharacteristic.getValue());
+
+        // Completions from the new connection match.
+        mQueue.onCharacteristicWrite(newCharacteristic, BluetoothGatt.GATT_SUCCESS);
+        BluetoothGattDescriptor newDescriptor =
+                newCharacteristic.getDescriptor(Constants.UUID_CLIENT_CHARACTERISTIC_CONFIG);
+        assertSame(newDescriptor, subscribe.getDescriptor());
+        mQueue.onDescriptorWrite(newDescriptor, BluetoothGatt.GATT_SUCCESS);
+
+        assertEquals(BluetoothGatt.GATT_SUCCESS, write.getStatus());
+        assertEquals(BluetoothGatt.GATT_SUCCESS, subscribe.getStatus());
+        assertTrue(mQueue.isIdle());
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GattSerialStreamTest {
+
+    /**
+     * Accepts every notification and keeps what was sent.
+     */
+    private static final class RecordingLink implements GattSerialStream.Link {
+        final List<byte[]> frames = new ArrayList<>();
+        final List<Integer> grants = new ArrayList<>();
+
+        @Override
+        public boolean sendData(byte[] frame) {
+            frames.add(frame.clone());
+            return true;
+        }
+
+        @Override
+        public boolean sendCredits(byte[] grant) {
+            grants.add(grant[0] & 0xff);
+            return true;
+        }
+    }
+
+    /**
+     * Carries one side's notifications to the other side's stream on its own thread, like a
+     * radio, and reports each one sent once it was delivered.
+     */
+    private static final class FakeRadio extends Thread implements GattSerialStream.Link {
+        /**
+         * Notifications in flight; credit grants are marked by a null first element.
+         */
+        final BlockingQueue<byte[][]> notifications = new LinkedBlockingQueue<>();
+        GattSerialStream sender;
+        GattSerialStream receiver;
+
+        FakeRadio() {
+            super("FakeRadio");
+            setDaemon(true);
+        }
+
+        @Override
+        public boolean sendData(byte[] frame) {
+            notifications.add(new byte[][]{frame.clone()});
+            return true;
+        }
+
+        @Override
+        public boolean sendCredits(byte[] grant) {
+            notifications.add(new byte[][]{null, grant.clone()});
+            return true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    byte[][] notification = notifications.take();
+                    if (notification[0] == null) {
+                        receiver.onCreditsReceived(notification[1]);
+                    } else {
+                        receiver.onFrameReceived(notification[0]);
+                    }
+                    sender.onSendComplete();
+                }
+            } catch (InterruptedException e) {
+                // Test over.
+            }
+        }
+    }
+
+    private final RecordingLink mLink = new RecordingLink();
+
+    private final List<Thread> mThreads = new ArrayList<>();
+
+    private GattSerialStream mStream;
+
+    @Before
+    public void setUp() {
+        mStream = new GattSerialStream(mLink, 200);
+    }
+
+    @After
+    public void tearDown() {
+        for (Thread thread : mThreads) {
+            thread.interrupt();
+        }
+    }
+
+    private static byte patternByte(long position) {
+        return (byte) (position * 31 + (position >> 8));
+    }
+
+    /**
+     * Write {@code total} bytes of a pattern to {@code out} on a new thread.
+     */
+    private Thread startWriter(final OutputStream out, final int total) {
+        Thread writer = new Thread("Writer") {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[4096];
+                try {
+                    for (int written = 0; written < total; written += chunk.length) {
+                        for (int i = 0; i < chunk.length; i++) {
+                            chunk[i] = patternByte(written + i);
+                        }
+                        out.write(chunk, 0, Math.min(chunk.length, total - written));
+                    }
+                    out.flush();
+                } catch (Exception e) {
+                    // The reader sees the data stop.
+                }
+            }
+        };
+        writer.setDaemon(true);
+        mThreads.add(writer);
+        writer.start();
+        return writer;
+    }
+
+    /**
+     * Read {@code total} bytes from {@code in}.
+     *
+     * @return how many of them didn't match the pattern.
+     */
+    private static int readPattern(InputStream in, int total) throws Exception {
+        byte[] buffer = new byte[4096];
+        int mismatches = 0;
+        long position = 0;
+        while (position < total) {
+            int count = in.read(buffer, 0, buffer.length);
+            assertTrue(count > 0);
+            for (int i = 0; i < count; i++) {
+                if (buffer[i] != patternByte(position++)) {
+                    mismatches++;
+                }
+            }
+        }
+        return mismatches;
+    }
+
+    @Test
+    public void resizeBeforeFirstGrantSetsCreditSize() {
+        mStream.setFrameSize(50);
+        mStream.start();
+
+        assertEquals(1, mLink.grants.size());
+        assertEquals(4, (int) mLink.grants.get(0));
+    }
+
+    @Test
+    public void resizeAfterGrantDoesNotOverflowReceiveBuffer() throws Exception {
+        mStream.start();
+        int credits = mLink.grants.get(0);
+        assertEquals(10, credits);
+        mStream.onSendComplete();
+
+        // A larger MTU mustn't be taken as room for larger frames on credits already granted.
+        mStream.setFrameSize(100);
+        assertEquals(1, mLink.grants.size());
+        for (int i = 0; i < credits; i++) {
+            mStream.onFrameReceived(new byte[GattSerialStream.DEFAULT_FRAME_SIZE]);
+        }
+        assertEquals(0, mStream.getOverflowBytes());
+
+        // Credits freed by reading are still counted in frames of the original size.
+        byte[] buffer = new byte[200];
+        assertEquals(200, mStream.getInputStream().read(buffer, 0, buffer.length));
+        assertEquals(2, mLink.grants.size());
+        assertEquals(10, (int) mLink.grants.get(1));
+    }
+
+    @Test
+    public void resizeAfterGrantStillChangesSentFrames() throws Exception {
+        mStream.start();
+        mStream.onSendComplete();
+        mStream.setFrameSize(100);
+        mStream.onCreditsReceived(new byte[]{1});
+
+        mStream.getOutputStream().write(new byte[150]);
+        assertEquals(1, mLink.frames.size());
+        assertEquals(100, mLink.frames.get(0).length);
+    }
+
+    /**
+     * Moves 4 MB each way between two streams over fake radios at a 244-byte frame size, and
+     * reports the rate. This measures the stream's own overhead, not radio throughput.
+     */
+    @Test(timeout = 60000)
+    public void throughputOverFakeLink() throws Exception {
+        final int total = 4 << 20;
+        FakeRadio toCentral = new FakeRadio();
+        FakeRadio toPeripheral = new FakeRadio();
+        GattSerialStream peripheral = new GattSerialStream(toCentral);
+        GattSerialStream central = new GattSerialStream(toPeripheral);
+        toCentral.sender = peripheral;
+        toCentral.receiver = central;
+        toPeripheral.sender = central;
+        toPeripheral.receiver = peripheral;
+        mThreads.add(toCentral);
+        mThreads.add(toPeripheral);
+        toCentral.start();
+        toPeripheral.start();
+        peripheral.setFrameSize(244);
+        central.setFrameSize(244);
+        peripheral.start();
+        central.start();
+
+        long start = System.nanoTime();
+        startWriter(peripheral.getOutputStream(), total);
+        startWriter(central.getOutputStream(), total);
+        final int[] mismatches = new int[1];
+        final InputStream centralIn = central.getInputStream();
+        Thread centralReader = new Thread("CentralReader") {
+            @Override
+            public void run() {
+                try {
+                    mismatches[0] = readPattern(centralIn, total);
+                } catch (Exception e) {
+                    mismatches[0] = -1;
+                }
+            }
+        };
+        centralReader.start();
+        assertEquals(0, readPattern(peripheral.getInputStream(), total));
+        centralReader.join();
+        long elapsedNanos = System.nanoTime() - start;
+
+        assertEquals(0, mismatches[0]);
+        assertEquals(0, peripheral.getOverflowBytes());
+        assertEquals(0, central.getOverflowBytes());
+        assertEquals(total, peripheral.getBytesSent());
+        assertEquals(total, central.getBytesReceived());
+        System.out.println("GattSerialStream over fake link: "
+                + (total * 1000L / Math.max(1, elapsedNanos / 1000)) + " KB/s each way");
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattServerCallback;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class GattServerDispatcherTest {
+
+    private static final int EVENTS = 1000;
+
+    /**
+     * Keeps the requestIds of the write requests it is given, and the threads they ran on.
+     */
+    private static class RecordingCallback extends BluetoothGattServerCallback {
+        final List<Integer> requestIds = new ArrayList<>();
+        final List<String> threads = new ArrayList<>();
+        final CountDownLatch done;
+
+        RecordingCallback(int events) {
+            done = new CountDownLatch(events);
+        }
+
+        @Override
+        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+            synchronized (this) {
+                requestIds.add(requestId);
+                threads.add(Thread.currentThread().getName());
+            }
+            done.countDown();
+        }
+    }
+
+    private GattServerDispatcher mDispatcher;
+
+    @After
+    public void tearDown() {
+        if (mDispatcher != null) {
+            mDispatcher.shutdown();
+        }
+    }
+
+    private static BluetoothDevice device(String address) {
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+    }
+
+    /**
+     * Two devices the dispatcher puts on different stripes.
+     */
+    private static BluetoothDevice[] devicesOnDifferentStripes() {
+        String first = "00:11:22:33:44:50";
+        for (int i = 1; i < 10; i++) {
+            String other = "00:11:22:33:44:5" + i;
+            if ((first.hashCode() & Integer.MAX_VALUE) % GattServerDispatcher.DEFAULT_STRIPES
+                    != (other.hashCode() & Integer.MAX_VALUE)
+                    % GattServerDispatcher.DEFAULT_STRIPES) {
+                return new BluetoothDevice[]{device(first), device(other)};
+            }
+        }
+        throw new AssertionError("No two addresses on different stripes");
+    }
+
+    @Test
+    public void eventsOfADeviceRunInOrderOnOneStripe() throws Exception {
+        RecordingCallback callback = new RecordingCallback(EVENTS);
+        mDispatcher = new GattServerDispatcher(callback);
+        BluetoothDevice device = device("00:11:22:33:44:55");
+
+        for (int i = 0; i < EVENTS; i++) {
+            mDispatcher.onExecuteWrite(device, i, true);
+        }
+
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        synchronized (callback) {
+            for (int i = 0; i < EVENTS; i++) {
+                assertEquals(i, (int) callback.requestIds.get(i));
+                assertEquals(callback.threads.get(0), callback.threads.get(i));
+            }
+        }
+        assertTrue(callback.threads.get(0).startsWith("GattServer-"));
+    }
+
+    @Test
+    public void slowStripeDoesNotHoldUpAnother() throws Exception {
+        final BluetoothDevice[] devices = devicesOnDifferentStripes();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch otherRan = new CountDownLatch(1);
+        mDispatcher = new GattServerDispatcher(new BluetoothGattServerCallback() {
+            @Override
+            public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+                if (device.equals(devices[0])) {
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else {
+                    otherRan.countDown();
+                }
+            }
+        });
+
+        mDispatcher.onExecuteWrite(devices[0], 0, true);
+        mDispatcher.onExecuteWrite(devices[1], 0, true);
+
+        try {
+            assertTrue(otherRan.await(2, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void failingHandlerKeepsTheStripeRunning() throws Exception {
+        final RecordingCallback recorder = new RecordingCallback(1);
+        mDispatcher = new GattServerDispatcher(new BluetoothGattServerCallback() {
+            @Override
+            public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+                if (requestId == 0) {
+                    throw new IllegalStateException("handler failed");
+                }
+                recorder.onExecuteWrite(device, requestId, execute);
+            }
+        }, 1);
+        BluetoothDevice device = device("00:11:22:33:44:55");
+
+        mDispatcher.onExecuteWrite(device, 0, true);
+        mDispatcher.onExecuteWrite(device, 1, true);
+
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, (int) recorder.requestIds.get(0));
+    }
+
+    @Test
+    public void latenciesAreRecordedPerEvent() throws Exception {
+        RecordingCallback callback = new RecordingCallback(3);
+        mDispatcher = new GattServerDispatcher(callback);
+        BluetoothDevice device = device("00:11:22:33:44:55");
+
+        for (int i = 0; i < 3; i++) {
+            mDispatcher.onExecuteWrite(device, i, true);
+        }
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        mDispatcher.shutdown();
+
+        // Recorded after the handler returns, so wait for the stripe to finish.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mDispatcher.getHandlerTime().getCount() < 3
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, mDispatcher.getQueueLatency().getCount());
+        assertEquals(3, mDispatcher.getHandlerTime().getCount());
+    }
+
+    @Test
+    public void eventsAfterShutdownAreDropped() {
+        RecordingCallback callback = new RecordingCallback(1);
+        mDispatcher = new GattServerDispatcher(callback);
+        mDispatcher.shutdown();
+
+        mDispatcher.onExecuteWrite(device("00:11:22:33:44:55"), 0, true);
+
+        assertEquals(0, mDispatcher.getQueueLatency().getCount());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HexEncoderTest {
+
+    private final HexEncoder mEncoder = new HexEncoder();
+
+    @Test
+    public void encodesAsciiThenHex() {
+        assertEquals("Hi\n48 69 ", mEncoder.encode(new byte[]{'H', 'i'}));
+        assertEquals("\n", mEncoder.encode(new byte[0]));
+        assertEquals("", mEncoder.encodeHex(new byte[0]));
+    }
+
+    @Test
+    public void everyByteMatchesFormattedHex() {
+        byte[] data = new byte[256];
+        StringBuilder hex = new StringBuilder();
+        StringBuilder ascii = new StringBuilder();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+            hex.append(String.format("%02X ", i));
+            ascii.append(i >= 0x20 && i < 0x7f ? (char) i : '.');
+        }
+
+        assertEquals(hex.toString(), mEncoder.encodeHex(data));
+        assertEquals(ascii + "\n" + hex, mEncoder.encode(data));
+    }
+
+    @Test
+    public void shorterInputAfterLongerIsNotPaddedWithOldOutput() {
+        mEncoder.encodeHex(new byte[100]);
+        assertEquals("0A FF ", mEncoder.encodeHex(new byte[]{10, -1}));
+        assertEquals(".\n7F ", mEncoder.encode(new byte[]{0x7f}));
+    }
+
+    /**
+     * The formatting broadcastUpdate() did before HexEncoder, for comparison.
+     */
+    private static String formatWithStringFormat(byte[] data) {
+        StringBuilder builder = new StringBuilder(data.length);
+        for (byte b : data) {
+            builder.append(String.format("%02X ", b));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return average nanoseconds per call, after as many calls again to warm up.
+     */
+    private long timeEncoder(byte[] data, int iterations) {
+        int length = 0;
+        for (int i = 0; i < iterations; i++) {
+            length += mEncoder.encodeHex(data).length();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            length += mEncoder.encodeHex(data).length();
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals(2 * iterations * data.length * 3, length);
+        return elapsed / iterations;
+    }
+
+    private static long timeStringFormat(byte[] data, int iterations) {
+        int length = 0;
+        for (int i = 0; i < iterations; i++) {
+            length += formatWithStringFormat(data).length();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            length += formatWithStringFormat(data).length();
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals(2 * iterations * data.length * 3, length);
+        return elapsed / iterations;
+    }
+
+    @Test
+    public void fasterThanStringFormat() {
+        // A default ATT payload, and the largest one at the usual 247-byte MTU.
+        int[] sizes = {20, 244};
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            for (int i = 0; i < size; i++) {
+                data[i] = (byte) (i * 37);
+            }
+            assertEquals(formatWithStringFormat(data), mEncoder.encodeHex(data));
+
+            int iterations = 400000 / size;
+            long formatNanos = timeStringFormat(data, iterations);
+            long encoderNanos = timeEncoder(data, iterations);
+            System.out.println("Hex of " + size + " bytes: String.format " + formatNanos
+                    + " ns/op, HexEncoder " + encoderNanos + " ns/op");
+            assertTrue(encoderNanos < formatNanos);
+        }
+    }
+}
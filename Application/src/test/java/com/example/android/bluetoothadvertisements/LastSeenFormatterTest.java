@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import android.content.res.Resources;
+import android.util.SparseArray;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class LastSeenFormatterTest {
+
+    /**
+     * Serves the app's English strings, counting lookups.
+     */
+    private static final class FakeResources extends Resources {
+        final SparseArray<String> strings = new SparseArray<>();
+        int lookups;
+
+        FakeResources(Resources base) {
+            super(base.getAssets(), base.getDisplayMetrics(), base.getConfiguration());
+            strings.put(R.string.last_seen, "Last Seen:");
+            strings.put(R.string.just_now, "just now");
+            strings.put(R.string.seconds_ago, "seconds ago");
+            strings.put(R.string.minute_ago, "minute ago");
+            strings.put(R.string.minutes_ago, "minutes ago");
+            strings.put(R.string.hour_ago, "hour ago");
+            strings.put(R.string.hours_ago, "hours ago");
+        }
+
+        @Override
+        public String getString(int id) {
+            lookups++;
+            return strings.get(id);
+        }
+    }
+
+    private FakeResources mResources;
+
+    private LastSeenFormatter mFormatter;
+
+    @Before
+    public void setUp() {
+        mResources = new FakeResources(RuntimeEnvironment.application.getResources());
+        mFormatter = new LastSeenFormatter(mResources);
+    }
+
+    private static long bucket(long millis) {
+        return LastSeenFormatter.getBucket(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private String format(long millis) {
+        StringBuilder out = new StringBuilder();
+        mFormatter.format(bucket(millis), out);
+        return out.toString();
+    }
+
+    @Test
+    public void bucketBoundaries() {
+        assertEquals("Last Seen: just now", format(0));
+        assertEquals("Last Seen: just now", format(4999));
+        assertEquals("Last Seen: 5 seconds ago", format(5000));
+        assertEquals("Last Seen: 59 seconds ago", format(59999));
+        assertEquals("Last Seen: 1 minute ago", format(60000));
+        assertEquals("Last Seen: 2 minutes ago", format(120000));
+        assertEquals("Last Seen: 59 minutes ago", format(TimeUnit.HOURS.toMillis(1) - 1));
+        assertEquals("Last Seen: 1 hour ago", format(TimeUnit.HOURS.toMillis(1)));
+        assertEquals("Last Seen: 25 hours ago", format(TimeUnit.HOURS.toMillis(25)));
+    }
+
+    @Test
+    public void timesInOneBucketFormatTheSame() {
+        assertEquals(bucket(5000), bucket(5999));
+        assertNotEquals(bucket(5999), bucket(6000));
+        assertEquals(bucket(60000), bucket(119999));
+        assertEquals(bucket(0), bucket(4999));
+        for (long millis : new long[]{0, 5000, 60000, TimeUnit.HOURS.toMillis(3)}) {
+            assertNotEquals(LastSeenFormatter.NO_BUCKET, bucket(millis));
+        }
+    }
+
+    @Test
+    public void stringsAreResolvedOnceAndReused() {
+        int lookups = mResources.lookups;
+        assertEquals(7, lookups);
+
+        StringBuilder out = new StringBuilder();
+        for (long millis = 0; millis < TimeUnit.HOURS.toMillis(2); millis += 1000) {
+            out.setLength(0);
+            mFormatter.format(bucket(millis), out);
+        }
+        assertEquals(lookups, mResources.lookups);
+    }
+}
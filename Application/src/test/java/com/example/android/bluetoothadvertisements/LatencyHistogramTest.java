@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+
+    @Test
+    public void emptyReportsZero() {
+        assertEquals(0, mHistogram.getCount());
+        assertEquals(0, mHistogram.getPercentileMicros(50));
+        assertEquals(0, mHistogram.getMaxMicros());
+    }
+
+    @Test
+    public void durationsFallInPowerOfTwoBuckets() {
+        mHistogram.record(999);
+        mHistogram.record(1000);
+        mHistogram.record(1999);
+        mHistogram.record(2000);
+        mHistogram.record(3999);
+        // Far out, so the max doesn't cap the bounds below it.
+        mHistogram.record(10000000000L);
+
+        assertEquals(6, mHistogram.getCount());
+        // Below a microsecond.
+        assertEquals(1, mHistogram.getPercentileMicros(100.0 / 6));
+        // 1 us, up to 2.
+        assertEquals(2, mHistogram.getPercentileMicros(200.0 / 6));
+        assertEquals(2, mHistogram.getPercentileMicros(50));
+        // 2 and 3 us, up to 4.
+        assertEquals(4, mHistogram.getPercentileMicros(400.0 / 6));
+        assertEquals(4, mHistogram.getPercentileMicros(500.0 / 6));
+        assertEquals(10000000, mHistogram.getPercentileMicros(100));
+        assertEquals(10000000, mHistogram.getMaxMicros());
+    }
+
+    @Test
+    public void boundIsCappedAtTheMax() {
+        mHistogram.record(1000000);
+        // 1000 us is in the bucket up to 1024.
+        assertEquals(1000, mHistogram.getPercentileMicros(50));
+    }
+
+    @Test
+    public void outOfRangeDurationsAreClamped() {
+        mHistogram.record(-5);
+        mHistogram.record(Long.MAX_VALUE);
+
+        assertEquals(2, mHistogram.getCount());
+        assertEquals(1, mHistogram.getPercentileMicros(50));
+        // The last bucket, bounded by the max.
+        assertEquals(Long.MAX_VALUE / 1000, mHistogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void resetClearsCountsAndMax() {
+        mHistogram.record(5000);
+        mHistogram.reset();
+
+        assertEquals(0, mHistogram.getCount());
+        assertEquals(0, mHistogram.getMaxMicros());
+    }
+}
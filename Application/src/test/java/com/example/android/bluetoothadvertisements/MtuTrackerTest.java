@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class MtuTrackerTest {
+
+    private final MtuTracker mMtus = new MtuTracker();
+
+    private final BluetoothDevice mDevice =
+            BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:11:22:33:44:55");
+
+    @Test
+    public void payloadSizesFollowTheMtu() {
+        assertEquals(20, mMtus.getPayloadSize(mDevice));
+        assertEquals(22, mMtus.getReadPayloadSize(mDevice));
+
+        mMtus.onMtuChanged(mDevice, 185);
+        assertEquals(182, mMtus.getPayloadSize(mDevice));
+        assertEquals(184, mMtus.getReadPayloadSize(mDevice));
+
+        mMtus.onDeviceDisconnected(mDevice);
+        assertEquals(MtuTracker.DEFAULT_MTU, mMtus.getMtu(mDevice));
+    }
+
+    @Test
+    public void reportedMtuIsClamped() {
+        mMtus.onMtuChanged(mDevice, 1000);
+        assertEquals(MtuTracker.MAX_MTU, mMtus.getMtu(mDevice));
+
+        mMtus.onMtuChanged(mDevice, 10);
+        assertEquals(MtuTracker.DEFAULT_MTU, mMtus.getMtu(mDevice));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class NotificationQueueTest {
+
+    /**
+     * Stands in for the stack: refuses while {@link #refusing}, and keeps what it accepted.
+     */
+    private static final class FakeSender implements NotificationQueue.Sender {
+        final List<byte[]> sent = new ArrayList<>();
+        boolean refusing;
+
+        /**
+         * Run inside the send, as the stack's binder call would.
+         */
+        Runnable during;
+
+        @Override
+        public boolean send(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                            byte[] value, boolean confirm) {
+            if (during != null) {
+                during.run();
+            }
+            if (refusing) {
+                return false;
+            }
+            sent.add(value);
+            return true;
+        }
+    }
+
+    private final FakeSender mSender = new FakeSender();
+
+    /**
+     * Statuses the listener was told, in order.
+     */
+    private final List<Integer> mCompleted = new ArrayList<>();
+
+    private NotificationQueue mQueue;
+
+    private BluetoothDevice mDevice;
+
+    private BluetoothGattCharacteristic mCharacteristic;
+
+    @Before
+    public void setUp() {
+        mDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:11:22:33:44:55");
+        mCharacteristic = new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+        mQueue = new NotificationQueue(mSender, new NotificationQueue.Listener() {
+            @Override
+            public void onSent(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                               int status) {
+                mCompleted.add(status);
+            }
+        }, new Handler(Looper.getMainLooper()));
+    }
+
+    private static void advance(long millis) {
+        ShadowLooper.idleMainLooper(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void refusedValueIsRetriedWithoutAnotherCompletion() {
+        mSender.refusing = true;
+        assertTrue(mQueue.send(mDevice, mCharacteristic, new byte[]{1}, false));
+        assertTrue(mQueue.send(mDevice, mCharacteristic, new byte[]{2}, false));
+        assertEquals(0, mQueue.getInFlight());
+        assertEquals(2, mQueue.getDepth());
+
+        // Still refused on the first retry; the queue keeps trying.
+        advance(NotificationQueue.RETRY_DELAY_MILLIS);
+        assertTrue(mSender.sent.isEmpty());
+
+        mSender.refusing = false;
+        advance(NotificationQueue.RETRY_DELAY_MILLIS);
+        assertEquals(1, mSender.sent.size());
+        assertEquals(1, mSender.sent.get(0)[0]);
+        assertEquals(1, mQueue.getInFlight());
+
+        mQueue.onNotificationSent(mDevice, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(2, mSender.sent.size());
+        assertEquals(2, mSender.sent.get(1)[0]);
+        assertEquals(1, mCompleted.size());
+    }
+
+    @Test
+    public void clearStopsRetrying() {
+        mSender.refusing = true;
+        mQueue.send(mDevice, mCharacteristic, new byte[]{1}, false);
+        mQueue.clear();
+        mSender.refusing = false;
+
+        advance(NotificationQueue.RETRY_DELAY_MILLIS);
+        assertTrue(mSender.sent.isEmpty());
+        assertEquals(0, mQueue.getDepth());
+    }
+
+    @Test
+    public void valueRefusedTooOftenIsDroppedAndReported() {
+        final List<Integer> receipts = new ArrayList<>();
+        mSender.refusing = true;
+        mQueue.send(mDevice, mCharacteristic, new byte[]{1}, false);
+        mQueue.post(mDevice, mCharacteristic, new byte[]{2}, false,
+                new NotificationQueue.Receipt() {
+                    @Override
+                    public void onDelivered(BluetoothDevice device, int status) {
+                        receipts.add(status);
+                    }
+                });
+
+        // Queuing each value tried the first one again.
+        for (int i = 2; i < NotificationQueue.MAX_SEND_ATTEMPTS; i++) {
+            assertTrue(mCompleted.isEmpty());
+            advance(NotificationQueue.RETRY_DELAY_MILLIS);
+        }
+        assertEquals(1, mCompleted.size());
+        assertEquals(NotificationQueue.STATUS_DROPPED, (int) mCompleted.get(0));
+        assertEquals(1, mQueue.getDroppedCount());
+        assertEquals(1, mQueue.getDepth());
+
+        // The next value isn't held up by the dropped one.
+        mSender.refusing = false;
+        advance(NotificationQueue.RETRY_DELAY_MILLIS);
+        assertEquals(1, mSender.sent.size());
+        assertEquals(2, mSender.sent.get(0)[0]);
+        mQueue.onNotificationSent(mDevice, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(1, receipts.size());
+        assertEquals(BluetoothGatt.GATT_SUCCESS, (int) receipts.get(0));
+    }
+
+    @Test
+    public void senderRunsWithoutTheQueueLock() throws Exception {
+        final boolean[] posted = new boolean[1];
+        mSender.during = new Runnable() {
+            @Override
+            public void run() {
+                mSender.during = null;
+                Thread other = new Thread() {
+                    @Override
+                    public void run() {
+                        posted[0] = mQueue.post(mDevice, mCharacteristic, new byte[]{2}, false);
+                    }
+                };
+                other.start();
+                try {
+                    other.join(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        mQueue.send(mDevice, mCharacteristic, new byte[]{1}, false);
+        assertTrue(posted[0]);
+        assertEquals(1, mSender.sent.size());
+
+        mQueue.onNotificationSent(mDevice, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(2, mSender.sent.size());
+        assertEquals(2, mSender.sent.get(1)[0]);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PreparedWriteQueueTest {
+
+    /**
+     * Records applied writes, and refuses to validate the attribute named in {@link #mRefused}.
+     */
+    private static final class RecordingExecutor implements PreparedWriteQueue.Executor<String> {
+
+        final List<String> mWritten = new ArrayList<>();
+
+        final List<byte[]> mValues = new ArrayList<>();
+
+        String mRefused;
+
+        @Override
+        public int onValidate(String attribute, byte[] value) {
+            return attribute.equals(mRefused)
+                    ? BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH
+                    : BluetoothGatt.GATT_SUCCESS;
+        }
+
+        @Override
+        public int onWrite(String attribute, byte[] value) {
+            mWritten.add(attribute);
+            mValues.add(value);
+            return BluetoothGatt.GATT_SUCCESS;
+        }
+    }
+
+    private final PreparedWriteQueue<String> mQueue = new PreparedWriteQueue<>(64);
+
+    private final RecordingExecutor mExecutor = new RecordingExecutor();
+
+    @Test
+    public void executeJoinsFragmentsInOrder() {
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mQueue.prepare("a", 0, new byte[] {1, 2}));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mQueue.prepare("b", 0, new byte[] {9}));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mQueue.prepare("a", 2, new byte[] {3}));
+
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mQueue.execute(mExecutor));
+        assertEquals(Arrays.asList("a", "b"), mExecutor.mWritten);
+        assertArrayEquals(new byte[] {1, 2, 3}, mExecutor.mValues.get(0));
+        assertArrayEquals(new byte[] {9}, mExecutor.mValues.get(1));
+        assertTrue(mQueue.isEmpty());
+    }
+
+    @Test
+    public void refusedValueCancelsTheWholeTransaction() {
+        mQueue.prepare("a", 0, new byte[] {1});
+        mQueue.prepare("b", 0, new byte[] {2});
+        mQueue.prepare("c", 0, new byte[] {3});
+        mExecutor.mRefused = "c";
+
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH, mQueue.execute(mExecutor));
+        assertTrue(mExecutor.mWritten.isEmpty());
+        assertTrue(mQueue.isEmpty());
+
+        // The queue is usable again once the failed transaction is gone.
+        mExecutor.mRefused = null;
+        mQueue.prepare("a", 0, new byte[] {4});
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mQueue.execute(mExecutor));
+        assertEquals(Arrays.asList("a"), mExecutor.mWritten);
+    }
+
+    @Test
+    public void badFragmentsAreRefusedBeforeExecute() {
+        mQueue.prepare("a", 0, new byte[] {1, 2});
+        assertEquals(BluetoothGatt.GATT_INVALID_OFFSET, mQueue.prepare("a", 5, new byte[] {3}));
+        assertEquals(PreparedWriteQueue.PREPARE_QUEUE_FULL, mQueue.prepare("b", 0, new byte[100]));
+
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mQueue.execute(mExecutor));
+        assertEquals(Arrays.asList("a"), mExecutor.mWritten);
+        assertArrayEquals(new byte[] {1, 2}, mExecutor.mValues.get(0));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ScanCallbackStatsTest {
+
+    @Test
+    public void countsCallbacksAndResultsPerMinute() {
+        ScanCallbackStats stats = new ScanCallbackStats();
+        stats.start(0);
+        for (int i = 0; i < 10; i++) {
+            stats.onCallback(6);
+        }
+        stats.stop(30000);
+
+        assertEquals(10, stats.getCallbackCount());
+        assertEquals(60, stats.getResultCount());
+        assertEquals(20.0, stats.getCallbacksPerMinute(), 0.001);
+        assertEquals(120.0, stats.getResultsPerMinute(), 0.001);
+    }
+
+    @Test
+    public void batchedScanWakesLessForSameResults() {
+        ScanCallbackStats perResult = new ScanCallbackStats();
+        ScanCallbackStats batched = new ScanCallbackStats();
+        perResult.start(0);
+        batched.start(0);
+        // 20 results a second for a minute; batches every 3 s.
+        for (int second = 0; second < 60; second++) {
+            for (int i = 0; i < 20; i++) {
+                perResult.onCallback(1);
+            }
+            if (second % 3 == 2) {
+                batched.onCallback(60);
+            }
+        }
+        perResult.stop(60000);
+        batched.stop(60000);
+
+        assertEquals(perResult.getResultCount(), batched.getResultCount());
+        assertEquals(1200.0, perResult.getCallbacksPerMinute(), 0.001);
+        assertEquals(20.0, batched.getCallbacksPerMinute(), 0.001);
+    }
+
+    @Test
+    public void startResetsAndUnstoppedSessionHasNoRate() {
+        ScanCallbackStats stats = new ScanCallbackStats();
+        stats.start(0);
+        stats.onCallback(3);
+        stats.start(1000);
+
+        assertEquals(0, stats.getCallbackCount());
+        assertEquals(0, stats.getResultCount());
+        assertEquals(0.0, stats.getCallbacksPerMinute(), 0.0);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScanIngestorTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /**
+     * A synthetic scan result.
+     */
+    private static final class Result {
+        final String address;
+        final long timestampNanos;
+
+        Result(String address, long timestampNanos) {
+            this.address = address;
+            this.timestampNanos = timestampNanos;
+        }
+    }
+
+    private static final ScanIngestor.ResultReader<Result> READER =
+            new ScanIngestor.ResultReader<Result>() {
+        @Override
+        public String getAddress(Result result) {
+            return result.address;
+        }
+
+        @Override
+        public int getRssi(Result result) {
+            return -60;
+        }
+
+        @Override
+        public int getTxPowerLevel(Result result) {
+            return AdvertisingDataParser.TX_POWER_UNKNOWN;
+        }
+
+        @Override
+        public long getTimestampNanos(Result result) {
+            return result.timestampNanos;
+        }
+    };
+
+    /**
+     * Keeps the latest snapshot and the largest one seen.
+     */
+    private static final class Recorder implements ScanIngestor.Listener<Result> {
+        volatile ScanSnapshot<Result> latest = ScanSnapshot.empty();
+        final AtomicInteger largest = new AtomicInteger();
+
+        @Override
+        public void onSnapshot(ScanSnapshot<Result> snapshot) {
+            latest = snapshot;
+            if (snapshot.size() > largest.get()) {
+                largest.set(snapshot.size());
+            }
+        }
+    }
+
+    /**
+     * Simulated scan time, advanced by the tests.
+     */
+    private volatile long mNowNanos;
+
+    private final ScanIngestor.Clock mClock = new ScanIngestor.Clock() {
+        @Override
+        public long nanos() {
+            return mNowNanos;
+        }
+    };
+
+    private Recorder mRecorder;
+
+    private ScanIngestor<Result> mIngestor;
+
+    @Before
+    public void setUp() {
+        mRecorder = new Recorder();
+        mIngestor = new ScanIngestor<>(READER, mRecorder, SignalTracker.Config.DEFAULT, 1024, 1);
+    }
+
+    @After
+    public void tearDown() {
+        mIngestor.stop();
+    }
+
+    private static String address(int i) {
+        return String.format("02:00:00:%02X:%02X:%02X", (i >> 16) & 0xFF, (i >> 8) & 0xFF,
+                i & 0xFF);
+    }
+
+    /**
+     * Submit without dropping, waiting while the queue is full.
+     */
+    private void submit(Result result) throws InterruptedException {
+        while (!mIngestor.submit(result)) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Wait until every submitted result is in a published snapshot.
+     */
+    private void awaitSnapshot(int size) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (mRecorder.latest.size() != size) {
+            assertTrue("Timed out, snapshot size " + mRecorder.latest.size(),
+                    System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void repeatedResultsUpdateOneRow() throws InterruptedException {
+        mIngestor.start();
+        for (int i = 0; i < 1000; i++) {
+            submit(new Result(address(i % 10), i));
+        }
+        awaitSnapshot(10);
+
+        assertEquals(10, mIngestor.getNewDeviceCount());
+        assertEquals(0, mIngestor.getDroppedCount());
+    }
+
+    @Test
+    public void deviceCountStaysWithinCap() throws InterruptedException {
+        final int cap = 50;
+        mIngestor.setEvictionPolicy(mClock, TimeUnit.MINUTES.toMillis(5), cap);
+        mIngestor.start();
+
+        int total = 200000;
+        for (int i = 0; i < total; i++) {
+            mNowNanos = i;
+            submit(new Result(address(i), i));
+        }
+        String last = address(total - 1);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (mRecorder.latest.size() == 0
+                || !last.equals(mRecorder.latest.get(mRecorder.latest.size() - 1).address)) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+
+        assertEquals(total, mIngestor.getNewDeviceCount());
+        assertEquals(total - cap, mIngestor.getEvictedCount());
+        // Eviction runs before publishing whenever a batch leaves the table over the cap.
+        assertEquals(cap, mRecorder.largest.get());
+        ScanSnapshot<Result> snapshot = mRecorder.latest;
+        for (int i = 0; i < cap; i++) {
+            assertEquals(address(total - cap + i), snapshot.get(i).address);
+        }
+    }
+
+    @Test
+    public void expiredDevicesAreEvictedAndReleased() throws InterruptedException {
+        mIngestor.setEvictionPolicy(mClock, 1000, Integer.MAX_VALUE);
+        mIngestor.start();
+
+        List<WeakReference<Result>> old = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Result result = new Result(address(i), 0);
+            old.add(new WeakReference<>(result));
+            submit(result);
+        }
+        awaitSnapshot(100);
+
+        mNowNanos = TimeUnit.SECONDS.toNanos(10);
+        submit(new Result(address(1000), mNowNanos));
+        awaitSnapshot(1);
+
+        // Nothing the ingestor keeps may still reference an evicted result.
+        for (int attempt = 0; attempt < 20 && !allCleared(old); attempt++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        for (WeakReference<Result> reference : old) {
+            assertNull(reference.get());
+        }
+        assertEquals(100, mIngestor.getEvictedCount());
+    }
+
+    private static boolean allCleared(List<WeakReference<Result>> references) {
+        for (WeakReference<Result> reference : references) {
+            if (reference.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
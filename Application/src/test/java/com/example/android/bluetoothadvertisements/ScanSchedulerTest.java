@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.le.ScanSettings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScanSchedulerTest {
+
+    /**
+     * Simulated time, moved by the tests.
+     */
+    private long mNow;
+
+    private ScanScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mNow = 1000000;
+        mScheduler = new ScanScheduler(new ScanScheduler.Clock() {
+            @Override
+            public long millis() {
+                return mNow;
+            }
+        });
+    }
+
+    @Test
+    public void newDevicesRampUpAndQuietWindowsBackOff() {
+        assertEquals(ScanSettings.SCAN_MODE_BALANCED, mScheduler.getScanMode());
+
+        mScheduler.onWindowFinished(3);
+        assertEquals(0, mScheduler.getLevel());
+        assertEquals(ScanSettings.SCAN_MODE_LOW_LATENCY, mScheduler.getScanMode());
+
+        long pause = mScheduler.getPauseMillis();
+        for (int i = 0; i < 10; i++) {
+            mScheduler.onWindowFinished(0);
+            assertTrue(mScheduler.getPauseMillis() >= pause);
+            pause = mScheduler.getPauseMillis();
+        }
+        assertEquals(3, mScheduler.getLevel());
+        assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, mScheduler.getScanMode());
+
+        mScheduler.reset();
+        assertEquals(1, mScheduler.getLevel());
+    }
+
+    @Test
+    public void startsAreHeldBackByThrottle() {
+        for (int i = 0; i < ScanScheduler.MAX_STARTS; i++) {
+            assertEquals(0, mScheduler.getStartDelay());
+            mScheduler.onScanStarted();
+            mNow += 1000;
+        }
+
+        long delay = mScheduler.getStartDelay();
+        assertTrue(delay > ScanScheduler.THROTTLE_WINDOW_MILLIS - ScanScheduler.MAX_STARTS * 1000);
+
+        mNow += delay;
+        assertEquals(0, mScheduler.getStartDelay());
+        mScheduler.onScanStarted();
+        // The second start of the first batch is now the oldest in the window.
+        assertTrue(mScheduler.getStartDelay() > 0);
+    }
+
+    @Test
+    public void noMoreThanMaxStartsInAnyWindow() {
+        long[] starts = new long[200];
+        int count = 0;
+        long end = mNow + 10 * ScanScheduler.THROTTLE_WINDOW_MILLIS;
+        while (mNow < end) {
+            mNow += mScheduler.getStartDelay();
+            mScheduler.onScanStarted();
+            starts[count++] = mNow;
+            mNow += 100;
+        }
+
+        for (int i = ScanScheduler.MAX_STARTS; i < count; i++) {
+            assertTrue(starts[i] - starts[i - ScanScheduler.MAX_STARTS]
+                    > ScanScheduler.THROTTLE_WINDOW_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanSnapshotTest {
+
+    private static ScanSnapshot<String> snapshot(long sequence, boolean structural,
+                                                 int... changed) {
+        return new ScanSnapshot<>(sequence, new Object[]{"a", "b", "c"}, new long[]{1, 2, 3},
+                new float[]{-50, -60, -70}, new float[]{1, Float.NaN, 3}, changed, structural);
+    }
+
+    @Test
+    public void nextSignalOnlySnapshotIsIncremental() {
+        ScanSnapshot<String> first = snapshot(1, true);
+        ScanSnapshot<String> second = snapshot(2, false, 0, 2);
+
+        assertTrue(second.isIncrementalTo(first));
+        assertEquals(2, second.getChangedCount());
+        assertEquals(2, second.getChangedPosition(1));
+    }
+
+    @Test
+    public void structuralSnapshotNeedsFullRefresh() {
+        assertFalse(snapshot(2, true).isIncrementalTo(snapshot(1, true)));
+    }
+
+    @Test
+    public void skippedSnapshotNeedsFullRefresh() {
+        assertFalse(snapshot(3, false, 1).isIncrementalTo(snapshot(1, true)));
+        assertFalse(snapshot(1, false, 1).isIncrementalTo(snapshot(1, true)));
+    }
+
+    @Test
+    public void firstSnapshotFollowsEmpty() {
+        ScanSnapshot<String> empty = ScanSnapshot.empty();
+
+        assertEquals(0, empty.size());
+        assertTrue(empty.isStructural());
+        assertTrue(snapshot(1, false).isIncrementalTo(empty));
+    }
+
+    @Test
+    public void rowsKeepIdsAndSignal() {
+        ScanSnapshot<String> snapshot = snapshot(1, true);
+
+        assertEquals("b", snapshot.get(1));
+        assertEquals(3, snapshot.getId(2));
+        assertEquals(-60f, snapshot.getRssi(1), 0f);
+        assertTrue(Float.isNaN(snapshot.getDistance(1)));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanUpdateCoalescerTest {
+
+    /**
+     * Keeps what the last publish handed out.
+     */
+    private static final class Recorder implements ScanUpdateCoalescer.Listener {
+        int[] positions;
+        boolean structural;
+        int calls;
+
+        @Override
+        public void onPublish(int[] positions, int count, boolean structural) {
+            this.positions = Arrays.copyOf(positions, count);
+            this.structural = structural;
+            calls++;
+        }
+    }
+
+    @Test
+    public void changesAreMergedIntoOnePublish() {
+        ScanUpdateCoalescer coalescer = new ScanUpdateCoalescer(16);
+        Recorder recorder = new Recorder();
+
+        assertTrue(coalescer.markChanged(5));
+        assertFalse(coalescer.markChanged(2));
+        assertFalse(coalescer.markChanged(5));
+        coalescer.publish(100, recorder);
+
+        assertEquals(1, recorder.calls);
+        assertArrayEquals(new int[]{2, 5}, recorder.positions);
+        assertFalse(recorder.structural);
+        assertEquals(1, coalescer.getMergedCount());
+        assertFalse(coalescer.isPending());
+    }
+
+    @Test
+    public void structuralChangeIsReported() {
+        ScanUpdateCoalescer coalescer = new ScanUpdateCoalescer(16);
+        Recorder recorder = new Recorder();
+
+        assertTrue(coalescer.markStructural());
+        coalescer.publish(0, recorder);
+
+        assertTrue(recorder.structural);
+        assertEquals(0, recorder.positions.length);
+    }
+
+    @Test
+    public void publishWithoutChangesDoesNothing() {
+        ScanUpdateCoalescer coalescer = new ScanUpdateCoalescer(16);
+        Recorder recorder = new Recorder();
+
+        coalescer.publish(0, recorder);
+        coalescer.markChanged(1);
+        coalescer.reset();
+        coalescer.publish(0, recorder);
+
+        assertEquals(0, recorder.calls);
+        assertEquals(0, coalescer.getPublishCount());
+    }
+
+    @Test
+    public void publishesStayOneIntervalApart() {
+        ScanUpdateCoalescer coalescer = new ScanUpdateCoalescer(16);
+
+        assertEquals(0, coalescer.getPublishDelay(1000));
+        coalescer.markChanged(0);
+        coalescer.publish(1000, new Recorder());
+
+        assertEquals(16, coalescer.getPublishDelay(1000));
+        assertEquals(6, coalescer.getPublishDelay(1010));
+        assertEquals(0, coalescer.getPublishDelay(1016));
+    }
+
+    @Test
+    public void manyPositionsGrowTheBuffer() {
+        ScanUpdateCoalescer coalescer = new ScanUpdateCoalescer(16);
+        Recorder recorder = new Recorder();
+        for (int i = 99; i >= 0; i--) {
+            coalescer.markChanged(i);
+        }
+        coalescer.publish(0, recorder);
+
+        assertEquals(100, recorder.positions.length);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, recorder.positions[i]);
+        }
+    }
+}
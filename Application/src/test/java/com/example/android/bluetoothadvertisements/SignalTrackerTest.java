@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SignalTrackerTest {
+
+    private static SignalTracker tracker(int filter, int window) {
+        return new SignalTracker(new SignalTracker.Config(filter, window, 0.25, 0.008, 4, 2.0));
+    }
+
+    @Test
+    public void emptyTrackerHasNoEstimate() {
+        SignalTracker tracker = new SignalTracker(SignalTracker.Config.DEFAULT);
+        tracker.setTxPowerLevel(0);
+
+        assertTrue(Double.isNaN(tracker.getFilteredRssi()));
+        assertTrue(Double.isNaN(tracker.getDistance()));
+    }
+
+    @Test
+    public void medianIgnoresOutliersAndOldSamples() {
+        SignalTracker tracker = tracker(SignalTracker.FILTER_MEDIAN, 5);
+        for (int rssi : new int[]{-20, -20, -20, -60, -61, -90, -62, -59}) {
+            tracker.addSample(rssi);
+        }
+
+        assertEquals(5, tracker.getSampleCount());
+        assertEquals(-59, tracker.getLastRssi());
+        assertEquals(-61.0, tracker.getFilteredRssi(), 0.0);
+
+        SignalTracker even = tracker(SignalTracker.FILTER_MEDIAN, 4);
+        for (int rssi : new int[]{-50, -60, -70, -80}) {
+            even.addSample(rssi);
+        }
+        assertEquals(-65.0, even.getFilteredRssi(), 0.0);
+    }
+
+    @Test
+    public void emaMovesTowardsNewSamples() {
+        SignalTracker tracker = tracker(SignalTracker.FILTER_EMA, 8);
+        tracker.addSample(-60);
+        tracker.addSample(-80);
+
+        assertEquals(-65.0, tracker.getFilteredRssi(), 1e-9);
+    }
+
+    @Test
+    public void kalmanSmoothsNoise() {
+        SignalTracker tracker = tracker(SignalTracker.FILTER_KALMAN, 16);
+        Random random = new Random(1);
+        double worstRaw = 0;
+        for (int i = 0; i < 1000; i++) {
+            int rssi = -70 + (int) Math.round(random.nextGaussian() * 4);
+            worstRaw = Math.max(worstRaw, Math.abs(rssi + 70));
+            tracker.addSample(rssi);
+        }
+
+        assertEquals(-70.0, tracker.getFilteredRssi(), 1.5);
+        assertTrue(worstRaw > 5);
+    }
+
+    @Test
+    public void distanceFollowsPathLossModel() {
+        SignalTracker tracker = tracker(SignalTracker.FILTER_EMA, 4);
+        tracker.setTxPowerLevel(0);
+        // 41 dB is the loss at one metre; each further 20 dB is a factor of ten at exponent 2.
+        tracker.addSample(-41);
+        assertEquals(1.0, tracker.getDistance(), 1e-9);
+
+        SignalTracker far = tracker(SignalTracker.FILTER_EMA, 4);
+        far.setTxPowerLevel(0);
+        far.addSample(-61);
+        far.setTxPowerLevel(AdvertisingDataParser.TX_POWER_UNKNOWN);
+        assertEquals(10.0, far.getDistance(), 1e-9);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class SubscriptionRegistryTest {
+
+    private static final byte[] NOTIFY = {SubscriptionRegistry.NOTIFY, 0};
+
+    private static final byte[] INDICATE = {SubscriptionRegistry.INDICATE, 0};
+
+    private static final byte[] DISABLED = {0, 0};
+
+    private final SubscriptionRegistry mRegistry = new SubscriptionRegistry();
+
+    /**
+     * Configs reported to the listener, in order.
+     */
+    private final List<Integer> mChanges = new ArrayList<>();
+
+    private BluetoothGattCharacteristic mAlert;
+
+    private BluetoothGattCharacteristic mStatus;
+
+    @Before
+    public void setUp() {
+        mAlert = characteristic();
+        mStatus = characteristic();
+        mRegistry.register(mAlert);
+        mRegistry.register(mStatus);
+        mRegistry.setListener(new SubscriptionRegistry.Listener() {
+            @Override
+            public void onSubscriptionChanged(BluetoothDevice device,
+                                              BluetoothGattCharacteristic characteristic,
+                                              int config) {
+                mChanges.add(config);
+            }
+        });
+    }
+
+    private static BluetoothGattCharacteristic characteristic() {
+        return new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+    }
+
+    private static BluetoothDevice device(int index) {
+        return BluetoothAdapter.getDefaultAdapter()
+                .getRemoteDevice(String.format("00:11:22:33:44:%02X", index));
+    }
+
+    private List<BluetoothDevice> subscribers(BluetoothGattCharacteristic characteristic) {
+        List<BluetoothDevice> out = new ArrayList<>();
+        mRegistry.getSubscribers(characteristic, out);
+        return out;
+    }
+
+    @Test
+    public void listenerIsToldOnlyOfChanges() {
+        BluetoothDevice device = device(1);
+        mRegistry.onConfigWrite(device, mAlert, NOTIFY);
+        mRegistry.onConfigWrite(device, mAlert, NOTIFY);
+        mRegistry.onConfigWrite(device, mAlert, INDICATE);
+        mRegistry.onConfigWrite(device, mAlert, DISABLED);
+
+        assertEquals(3, mChanges.size());
+        assertEquals(SubscriptionRegistry.NOTIFY, (int) mChanges.get(0));
+        assertEquals(SubscriptionRegistry.INDICATE, (int) mChanges.get(1));
+        assertEquals(0, (int) mChanges.get(2));
+        assertEquals(0, mRegistry.getDeviceCount());
+    }
+
+    @Test
+    public void configIsKeptPerCharacteristicAndDevice() {
+        BluetoothDevice first = device(1);
+        BluetoothDevice second = device(2);
+        mRegistry.onConfigWrite(first, mAlert, NOTIFY);
+        mRegistry.onConfigWrite(first, mStatus, INDICATE);
+        mRegistry.onConfigWrite(second, mStatus, NOTIFY);
+
+        assertArrayEquals(NOTIFY, mRegistry.getConfigValue(first, mAlert));
+        assertArrayEquals(INDICATE, mRegistry.getConfigValue(first, mStatus));
+        assertArrayEquals(DISABLED, mRegistry.getConfigValue(second, mAlert));
+        assertEquals(1, subscribers(mAlert).size());
+        assertEquals(2, subscribers(mStatus).size());
+    }
+
+    @Test
+    public void removingADeviceKeepsTheOthers() {
+        for (int i = 0; i < 10; i++) {
+            mRegistry.onConfigWrite(device(i), mAlert, NOTIFY);
+        }
+        mRegistry.onDeviceDisconnected(device(3));
+        mRegistry.onConfigWrite(device(0), mAlert, DISABLED);
+
+        List<BluetoothDevice> subscribers = subscribers(mAlert);
+        assertEquals(8, subscribers.size());
+        assertEquals(8, mRegistry.getDeviceCount());
+        for (int i = 1; i < 10; i++) {
+            assertEquals(i != 3, subscribers.contains(device(i)));
+        }
+        assertEquals(0, mRegistry.getConfig(device(3), mAlert));
+    }
+
+    @Test
+    public void badWritesAreRefusedAndChangeNothing() {
+        BluetoothDevice device = device(1);
+        assertEquals(BluetoothGatt.GATT_WRITE_NOT_PERMITTED,
+                mRegistry.onConfigWrite(device, characteristic(), NOTIFY));
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH,
+                mRegistry.onConfigWrite(device, mAlert, new byte[]{1, 0, 0}));
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH,
+                mRegistry.onConfigWrite(device, mAlert, new byte[0]));
+
+        assertTrue(mChanges.isEmpty());
+        assertEquals(0, mRegistry.getDeviceCount());
+    }
+}
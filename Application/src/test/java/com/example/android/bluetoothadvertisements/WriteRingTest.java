@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WriteRingTest {
+
+    private static final int CAPACITY = 4;
+
+    private final List<byte[]> mConsumed = new ArrayList<>();
+
+    private CountDownLatch mLatch = new CountDownLatch(0);
+
+    private final WriteRing mRing = new WriteRing("test", CAPACITY, new WriteRing.Consumer() {
+        @Override
+        public void onWrite(BluetoothDevice device, byte[] value) {
+            synchronized (mConsumed) {
+                mConsumed.add(value);
+            }
+            mLatch.countDown();
+        }
+    });
+
+    @After
+    public void tearDown() {
+        mRing.stop();
+    }
+
+    private void awaitConsumed(int count) throws InterruptedException {
+        assertTrue(mLatch.await(5, TimeUnit.SECONDS));
+        synchronized (mConsumed) {
+            assertEquals(count, mConsumed.size());
+        }
+    }
+
+    @Test
+    public void valuesAreHandedOverInOrderWithoutCopying() throws Exception {
+        mLatch = new CountDownLatch(100);
+        mRing.start();
+        List<byte[]> offered = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] value = {(byte) i};
+            offered.add(value);
+            while (!mRing.offer(null, value)) {
+                Thread.yield();
+            }
+        }
+
+        awaitConsumed(100);
+        for (int i = 0; i < 100; i++) {
+            assertSame(offered.get(i), mConsumed.get(i));
+        }
+    }
+
+    @Test
+    public void fullRingDropsAndCounts() {
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue(mRing.offer(null, new byte[1]));
+        }
+        assertFalse(mRing.offer(null, new byte[1]));
+        assertEquals(BluetoothGatt.GATT_FAILURE,
+                mRing.asWriteHandler().onWrite(null, new byte[1]));
+
+        assertEquals(2, mRing.getDroppedCount());
+        assertEquals(CAPACITY, mRing.getDepth());
+        assertEquals(CAPACITY, mRing.getHighWaterMark());
+    }
+
+    @Test
+    public void stopProcessesWhatIsWaitingAndRefusesTheRest() throws Exception {
+        mLatch = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            mRing.offer(null, new byte[]{(byte) i});
+        }
+        mRing.stop();
+        assertFalse(mRing.offer(null, new byte[1]));
+
+        mRing.start();
+        awaitConsumed(3);
+        assertEquals(1, mRing.getDroppedCount());
+    }
+}